@@ -0,0 +1,292 @@
+package com.onecmd.diskqueue;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Base of the queues storing primitive values or byte arrays in DataPages.
+ * A page file is little-endian: the number of values followed by the values written by the page.
+ * Producers and consumers share one lock, use the batch methods of the subclasses for throughput.
+ */
+public abstract class AbstractDataPageQueue<P extends DataPage> {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(AbstractDataPageQueue.class);
+
+    private static final int HEADER_SIZE = 4;
+
+    /**
+     * A page file is written from one ByteBuffer, pages must not need more bytes than this.
+     */
+    static final long MAX_PAGE_BYTES = Integer.MAX_VALUE - 8 - HEADER_SIZE;
+
+    protected String name;
+    protected CacheConfig config;
+    protected CacheStatistics statistics;
+
+    private ArrayDeque<P> pages = new ArrayDeque<>();
+
+    protected Lock lock = new ReentrantLock();
+
+    protected AbstractDataPageQueue(String name, int capacity, int heapCapacity, long maxDiskSizeInMB, int filePageSize, boolean usingDisk, String diskCacheFileRoot){
+        this.name = name;
+        statistics = new CacheStatistics();
+
+        config = CacheConfig.create(name, capacity, heapCapacity, maxDiskSizeInMB, filePageSize, usingDisk, diskCacheFileRoot);
+        config.initDiskStorage();
+    }
+
+    protected abstract P createPage(long id, int capacity);
+
+    public CacheConfig getConfig() {
+        return config;
+    }
+
+    public CacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    public int size(){
+        return statistics.getCacheSize();
+    }
+
+    public int getHeapSize(){
+        return statistics.getHeapSize();
+    }
+
+    public boolean isEmpty(){
+        return size()<1;
+    }
+
+    public boolean isDiskFull(){
+        return statistics.getDiskFileSize() >= config.getMaxDiskSize();
+    }
+
+    /**
+     * Must hold lock.
+     * Persist pages if heap is full, then return how much values can be added.
+     * @return 0 if capacity, heap or disk is full
+     */
+    protected int prepareWrite(){
+        checkAndPersist();
+
+        int room = Math.min(config.getCapacity() - size(), config.getHeapCapacity() - getHeapSize());
+        if(room < 1){
+            LOGGER.warn("Failed to add to queue[name=" + name + "]: full, capacity=" + config.getCapacity() + ", size: " + size()
+                    + ", heapCapacity=" + config.getHeapCapacity() + ", heapSize=" + getHeapSize());
+            return 0;
+        }
+        else if(isDiskFull()){
+            LOGGER.warn("Failed to add to queue[name=" + name + "]: disk full: MaxDiskSize=" + config.getMaxDiskSize() + ", fileSize: " + statistics.getDiskFileSize());
+            return 0;
+        }
+        return room;
+    }
+
+    /**
+     * Must hold lock.
+     * @return the tail page, a new page is appended if the tail is full
+     */
+    protected P getWritePage(){
+        P tail = pages.peekLast();
+        if(null == tail || tail.isFull()){
+            tail = createPage(config.getNewSubPoolId(), config.getPageSize());
+            pages.addLast(tail);
+        }
+        return tail;
+    }
+
+    /**
+     * Must hold lock.
+     * @param total values added to the pages
+     */
+    protected void added(int total){
+        statistics.getAndAddCacheSize(total);
+    }
+
+    /**
+     * Must hold lock.
+     * Return the head page having values, loaded from disk if it was persisted.
+     * Load failed: return null if values already drained, so they are returned to the caller, otherwise throw exception.
+     * @param drained values already drained by the caller
+     * @return null if no values
+     * @throws IOException
+     */
+    protected P getReadPage(int drained) throws IOException {
+        while (true){
+            P head = pages.peekFirst();
+            if(null == head){
+                return null;
+            }
+
+            if(head.size() > 0){
+                if(head.isPersisted()){
+                    try {
+                        load(head);
+                    }
+                    catch (IOException e){
+                        if(drained > 0){
+                            LOGGER.warn("Failed to load page[" + head.getId() + "] of queue[name=" + name + "]: " + e.getMessage(), e);
+                            return null;
+                        }
+                        throw e;
+                    }
+                }
+                return head;
+            }
+
+            if(head == pages.peekLast()){
+                return null;
+            }
+            pages.pollFirst();
+        }
+    }
+
+    /**
+     * Must hold lock.
+     * @param total values drained from the pages
+     */
+    protected void removed(int total){
+        statistics.getAndAddCacheSize(-1 * total);
+    }
+
+    /**
+     * Must hold lock.
+     * Persist full pages, the newest first, until heap size is less than heap capacity.
+     */
+    private void checkAndPersist(){
+        if(!config.isUsingDisk() || getHeapSize() < config.getHeapCapacity()){
+            return;
+        }
+
+        Iterator<P> iter = pages.descendingIterator();
+        if(iter.hasNext()){
+            iter.next();
+        }
+
+        while (iter.hasNext() && getHeapSize() + config.getPageSize() > config.getHeapCapacity() && !isDiskFull()){
+            P page = iter.next();
+            if(page.isPersisted() || page.size() < 1){
+                continue;
+            }
+            if(!persist(page)){
+                break;
+            }
+        }
+    }
+
+    private File getFile(P page){
+        return new File(config.getDiskCacheFileRoot() + File.separator + page.getId() + ".dat");
+    }
+
+    /**
+     * Success: return true;
+     * Failed: return false, the page stays in heap;
+     * @param page
+     * @return
+     */
+    private boolean persist(P page){
+        LOGGER.trace("Enter page[" + page.getId() + "].persist(size: " + page.size() + ")");
+
+        if(page.getByteSize() > MAX_PAGE_BYTES){
+            LOGGER.warn("Failed to persist page[" + page.getId() + "] of queue[name=" + name + "]: " + page.getByteSize() + " bytes, max=" + MAX_PAGE_BYTES);
+            return false;
+        }
+
+        File file = getFile(page);
+        int total = page.size();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + (int) page.getByteSize()).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(total);
+
+        try {
+            page.writeTo(buffer);
+            buffer.flip();
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                raf.setLength(0);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            finally {
+                raf.close();
+            }
+        }
+        catch (IOException e){
+            LOGGER.warn("Failed to persist page[" + page.getId() + "] of queue[name=" + name + "]: " + e.getMessage(), e);
+            FileUtils.deleteQuietly(file);
+
+            buffer.position(HEADER_SIZE);
+            page.readFrom(buffer, total);
+            return false;
+        }
+
+        page.setPersisted(true);
+        statistics.getAndAddDiskSize(total);
+        statistics.getAndAddDiskFileSize(file.length());
+        statistics.getAndAddPersistedFiles(1);
+        return true;
+    }
+
+    private void load(P page) throws IOException {
+        LOGGER.trace("Enter page[" + page.getId() + "].load()");
+
+        File file = getFile(page);
+        if(!file.exists()){
+            throw new IOException("File damaged or not exist: " + file.getName());
+        }
+
+        long fileSize = file.length();
+        ByteBuffer buffer = ByteBuffer.wrap(FileUtils.readFileToByteArray(file)).order(ByteOrder.LITTLE_ENDIAN);
+        int total = buffer.getInt();
+        if(total != page.size() || buffer.remaining() != page.getByteSize()){
+            throw new IOException("File damaged: " + file.getName() + ", size=" + total + ", expected=" + page.size());
+        }
+
+        page.readFrom(buffer, total);
+        page.setPersisted(false);
+        FileUtils.deleteQuietly(file);
+
+        statistics.getAndAddDiskSize(-1 * total);
+        statistics.getAndAddDiskFileSize(-1 * fileSize);
+        statistics.getAndAddLoadedFiles(1);
+    }
+
+    public void clear(){
+        LOGGER.trace("Enter clear()");
+        try {
+            lock.lock();
+
+            for(P page : pages){
+                if(page.isPersisted()){
+                    File file = getFile(page);
+                    statistics.getAndAddDiskSize(-1 * page.size());
+                    statistics.getAndAddDiskFileSize(-1 * file.length());
+                    FileUtils.deleteQuietly(file);
+                }
+            }
+            pages.clear();
+
+            statistics.getAndAddCacheSize(-1 * statistics.getCacheSize());
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public String getSummary(){
+        return config.toString()+", "+statistics.toString();
+    }
+}
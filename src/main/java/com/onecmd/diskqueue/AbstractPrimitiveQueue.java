@@ -0,0 +1,84 @@
+package com.onecmd.diskqueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.IOException;
+
+/**
+ * Base of the queues storing primitive values without boxing in PrimitivePages.
+ * @param <A> the array type, e.g. long[]
+ */
+public abstract class AbstractPrimitiveQueue<A> extends AbstractDataPageQueue<PrimitivePage<A>> {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(AbstractPrimitiveQueue.class);
+
+    protected AbstractPrimitiveQueue(String name, int capacity, int heapCapacity, long maxDiskSizeInMB, int filePageSize, boolean usingDisk, String diskCacheFileRoot){
+        super(name, capacity, heapCapacity, maxDiskSizeInMB, filePageSize, usingDisk, diskCacheFileRoot);
+    }
+
+    /**
+     * Add values in order until the queue is full.
+     * @param values
+     * @param offset
+     * @param length
+     * @return how much added
+     */
+    protected int addValues(A values, int offset, int length){
+        LOGGER.trace("Enter addAll(length=" + length + ")");
+        if(null == values){
+            throw new NullPointerException("Parameter values should not be NULL.");
+        }
+
+        int total = 0;
+        try {
+            lock.lock();
+
+            while (total < length){
+                int room = prepareWrite();
+                if(room < 1){
+                    break;
+                }
+
+                PrimitivePage<A> page = getWritePage();
+                int count = Math.min(Math.min(room, page.getFreeSize()), length - total);
+                page.add(values, offset + total, count);
+                added(count);
+                total += count;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        return total;
+    }
+
+    /**
+     * Success: return how much drained;
+     * Failed: throw exception;
+     * @param buffer
+     * @param offset
+     * @param fetchSize
+     * @return
+     * @throws IOException
+     */
+    protected int drainValues(A buffer, int offset, int fetchSize) throws IOException {
+        if(null == buffer){
+            throw new NullPointerException("Parameter buffer should not be NULL.");
+        }
+
+        int total = 0;
+        try {
+            lock.lock();
+
+            PrimitivePage<A> page;
+            while (total < fetchSize && null != (page = getReadPage(total))){
+                total += page.drainTo(buffer, offset + total, fetchSize - total);
+            }
+            removed(total);
+        }
+        finally {
+            lock.unlock();
+        }
+        return total;
+    }
+}
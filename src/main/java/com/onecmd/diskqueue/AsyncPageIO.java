@@ -0,0 +1,245 @@
+package com.onecmd.diskqueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Page file writes and reads through AsynchronousFileChannel, up to queueDepth of them outstanding at a time.
+ * The caller encodes the next page while the previous ones are written, completions run in the channel thread pool.
+ * Pages are copied to pooled direct buffers, so the channel does not copy them again to temporary direct buffers.
+ * A file is written from its start without truncating it, see PageFilePool.
+ * With a DirectPageIO the files are opened with its options and the buffers aligned and padded to its block size.
+ */
+public class AsyncPageIO {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(AsyncPageIO.class);
+
+    private static final int MIN_BUFFER_SIZE = 64 * 1024;
+
+    private int queueDepth;
+    private Semaphore outstanding;
+    private AtomicInteger peakOutstanding = new AtomicInteger(0);
+    private DirectPageIO direct;
+
+    /**
+     * Direct buffers not in use, at most queueDepth, a buffer too small for a page is replaced by a larger one.
+     */
+    private ArrayBlockingQueue<ByteBuffer> buffers;
+
+    private AtomicLong writes = new AtomicLong(0);
+    private AtomicLong reads = new AtomicLong(0);
+
+    public AsyncPageIO(int queueDepth){
+        this(queueDepth, null);
+    }
+
+    /**
+     * @param queueDepth
+     * @param direct null if files are written and read through the page cache
+     */
+    public AsyncPageIO(int queueDepth, DirectPageIO direct){
+        this.direct = direct;
+        this.queueDepth = queueDepth < 1 ? 1 : queueDepth;
+        this.outstanding = new Semaphore(this.queueDepth);
+        this.buffers = new ArrayBlockingQueue<>(this.queueDepth);
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return operations started and not completed yet
+     */
+    public int getOutstanding(){
+        return queueDepth - outstanding.availablePermits();
+    }
+
+    /**
+     * @return the most operations outstanding at a time so far
+     */
+    public int getPeakOutstanding(){
+        return peakOutstanding.get();
+    }
+
+    public long getWrites() {
+        return writes.get();
+    }
+
+    public long getReads() {
+        return reads.get();
+    }
+
+    private int align(int size){
+        return null == direct ? size : direct.align(size);
+    }
+
+    private ByteBuffer takeBuffer(int size){
+        ByteBuffer buffer = buffers.poll();
+        if(null == buffer || buffer.capacity() < size){
+            int capacity = Math.max(MIN_BUFFER_SIZE, Integer.highestOneBit(Math.max(1, size - 1)) << 1);
+            buffer = null == direct ? ByteBuffer.allocateDirect(capacity) : direct.allocate(capacity);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * A permit of outstanding was acquired.
+     */
+    private void started(){
+        int current = getOutstanding();
+        int peak;
+        while (current > (peak = peakOutstanding.get()) && !peakOutstanding.compareAndSet(peak, current)){
+        }
+    }
+
+    private void done(ByteBuffer buffer){
+        if(null != buffer){
+            buffers.offer(buffer);
+        }
+        outstanding.release();
+    }
+
+    private static void closeQuietly(AsynchronousFileChannel channel){
+        try {
+            channel.close();
+        }
+        catch (IOException e){
+            LOGGER.trace("Failed to close channel: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Start writing page to file, wait if queueDepth writes and reads are outstanding.
+     * @param file
+     * @param page
+     * @return completed with the file size, or exceptionally if the write failed
+     * @throws InterruptedException
+     */
+    public CompletableFuture<Long> write(final File file, byte[] page) throws InterruptedException {
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+        outstanding.acquire();
+        started();
+
+        int length = align(page.length);
+        final ByteBuffer buffer = takeBuffer(length);
+        buffer.put(page);
+        while (buffer.position() < length){
+            buffer.put((byte) 0);
+        }
+        buffer.flip();
+
+        final AsynchronousFileChannel channel;
+        try {
+            channel = null == direct ? AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)
+                    : AsynchronousFileChannel.open(file.toPath(), direct.getWriteOptions(), null);
+        }
+        catch (IOException e){
+            done(buffer);
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        writes.incrementAndGet();
+        channel.write(buffer, 0, null, new CompletionHandler<Integer, Object>() {
+            long position = 0;
+
+            public void completed(Integer written, Object attachment) {
+                position += written;
+                if(buffer.hasRemaining()){
+                    channel.write(buffer, position, null, this);
+                    return;
+                }
+
+                closeQuietly(channel);
+                done(buffer);
+                future.complete(file.length());
+            }
+
+            public void failed(Throwable e, Object attachment) {
+                closeQuietly(channel);
+                done(buffer);
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Start reading the whole file, e.g. to load a page before it is drained.
+     * @param file
+     * @return null if queueDepth writes and reads are outstanding, otherwise completed with the content of the file
+     */
+    public CompletableFuture<byte[]> tryRead(File file){
+        if(!outstanding.tryAcquire()){
+            return null;
+        }
+        started();
+
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        final AsynchronousFileChannel channel;
+        final ByteBuffer buffer;
+        final long size;
+        try {
+            channel = null == direct ? AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ)
+                    : AsynchronousFileChannel.open(file.toPath(), direct.getReadOptions(), null);
+            size = channel.size();
+            if(size > Integer.MAX_VALUE / 2){
+                closeQuietly(channel);
+                throw new IOException("File too large: " + file.getName() + ", size=" + size);
+            }
+            buffer = takeBuffer(align((int) size));
+            buffer.limit(align((int) size));
+        }
+        catch (IOException e){
+            done(null);
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        reads.incrementAndGet();
+        channel.read(buffer, 0, null, new CompletionHandler<Integer, Object>() {
+            long position = 0;
+
+            public void completed(Integer read, Object attachment) {
+                if(read > 0){
+                    position += read;
+                }
+                if(read >= 0 && buffer.hasRemaining() && position < size){
+                    channel.read(buffer, position, null, this);
+                    return;
+                }
+
+                closeQuietly(channel);
+                buffer.flip();
+                byte[] data = new byte[buffer.remaining()];
+                buffer.get(data);
+                done(buffer);
+                future.complete(data);
+            }
+
+            public void failed(Throwable e, Object attachment) {
+                closeQuietly(channel);
+                done(buffer);
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    public String toString(){
+        return "queueDepth=" + queueDepth + ", direct=" + (null != direct && direct.isDirect()) + ", outstanding=" + getOutstanding() + ", peakOutstanding=" + getPeakOutstanding() + ", writes=" + writes.get() + ", reads=" + reads.get();
+    }
+}
@@ -0,0 +1,72 @@
+package com.onecmd.diskqueue;
+
+import java.util.function.ToLongFunction;
+
+/**
+ * Bytes left for a byte-bounded drain, see DiskQueue.drainTo(pool, maxItems, maxBytes).
+ * Objects of a page loaded without decoding are counted by their serialized size,
+ * objects in heap by the estimator if set, otherwise by the average payload size of the page they were loaded from,
+ * otherwise by encoding them.
+ * The first object is always taken, so an object larger than maxBytes does not block the queue,
+ * and the drain stops at the first object which does not fit, so the order is kept.
+ */
+class ByteBudget<T> {
+
+    private long remaining;
+    private int taken = 0;
+    private boolean stopped = false;
+    private ToLongFunction<? super T> estimator;
+
+    /**
+     * @param maxBytes
+     * @param estimator null to use the serialized sizes
+     */
+    ByteBudget(long maxBytes, ToLongFunction<? super T> estimator){
+        this.remaining = maxBytes;
+        this.estimator = estimator;
+    }
+
+    /**
+     * Failed: throw IllegalStateException if the size can not be known without an estimator;
+     * @param obj
+     * @param pageAverage payload size per object of the page obj was loaded from, 0 if not loaded from a page
+     * @param encoder null if the persister can not encode obj
+     * @return
+     * @throws Exception
+     */
+    long estimate(T obj, long pageAverage, EncodingCachePersiter<T> encoder) throws Exception {
+        if(null != estimator){
+            return Math.max(0, estimator.applyAsLong(obj));
+        }
+        if(pageAverage > 0){
+            return pageAverage;
+        }
+        if(null != encoder){
+            return encoder.encodedSize(obj);
+        }
+        throw new IllegalStateException("Size of objects in heap unknown, the persister can not encode them: set DiskQueue.setSizeEstimator().");
+    }
+
+    /**
+     * @param bytes
+     * @return false if the object does not fit, nothing is taken afterwards
+     */
+    boolean tryTake(long bytes){
+        if(stopped || (taken > 0 && bytes > remaining)){
+            stopped = true;
+            return false;
+        }
+
+        remaining -= bytes;
+        taken++;
+        return true;
+    }
+
+    boolean isExhausted(){
+        return stopped || (taken > 0 && remaining <= 0);
+    }
+
+    long getRemaining(){
+        return remaining;
+    }
+}
@@ -1,11 +1,17 @@
 package com.onecmd.diskqueue;
 
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.File;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  */
 public class CacheConfig {
 
+    private static Logger LOGGER = LoggerFactory.getLogger(CacheConfig.class);
+
     private String diskCacheFileRoot = "/var/diskqueue/data";
 
     private int capacity = 500000;
@@ -14,9 +20,72 @@ public class CacheConfig {
     private int pageSize = 1000;
     private boolean usingDisk = true;
     private int persistTimeoutSeconds = 10;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.REJECT;
+    private boolean lazyDecode = false;
+    private long ttlMillis = 0;
+    private int recycledPageFiles = 0;
+    private volatile PageFilePool pageFilePool = null;
+    private int asyncIoDepth = 0;
+    private volatile AsyncPageIO asyncPageIO = null;
+    private boolean directIo = false;
+    private volatile DirectPageIO directPageIO = null;
+    private long compressedTierBytes = 0;
+    private volatile CompressedPageTier compressedPageTier = null;
+    private long targetPageBytes = 0;
+    private long targetPageMillis = 100;
+    private volatile PageSizer pageSizer = null;
+    private long minUsableSpace = 0;
+    private int producerBatchSize = 100;
+    private long producerLingerMillis = 5;
 
     private AtomicLong subPoolId = new AtomicLong(0);
 
+    /**
+     * Config from the constructor parameters of the queues:
+     * capacity is at least 100, heapCapacity at most capacity, pageSize between 1 and a third of heapCapacity.
+     * @param name folder of the queue under diskCacheFileRoot
+     * @param capacity
+     * @param heapCapacity
+     * @param maxDiskSizeInMB less than 1 means the default
+     * @param filePageSize
+     * @param usingDisk
+     * @param diskCacheFileRoot
+     * @return
+     */
+    public static CacheConfig create(String name, int capacity, int heapCapacity, long maxDiskSizeInMB, int filePageSize, boolean usingDisk, String diskCacheFileRoot){
+        CacheConfig config = new CacheConfig();
+
+        config.setCapacity(capacity < 100 ? 100 : capacity);
+
+        int heap = heapCapacity> capacity ? capacity : heapCapacity;
+        config.setHeapCapacity(heap < 1 ? 0 : heap);
+
+        long maxDiskSize = maxDiskSizeInMB < 1 ? config.getMaxDiskSize() : maxDiskSizeInMB*1024*1024;
+        config.setMaxDiskSize(maxDiskSize);
+
+        int pageSize = filePageSize > heapCapacity/3 ? heapCapacity/3 : filePageSize;
+        config.setPageSize(pageSize < 1 ? 1 : pageSize);
+
+        config.setUsingDisk(usingDisk);
+        config.setDiskCacheFileRoot(diskCacheFileRoot + File.separator + name);
+        return config;
+    }
+
+    /**
+     * If usingDisk, delete and create the folder of diskCacheFileRoot, which becomes its absolute path.
+     */
+    public void initDiskStorage() {
+        if(isUsingDisk()){
+            File file = new File(getDiskCacheFileRoot());
+            LOGGER.info("Disk data file path: " + file.getAbsolutePath());
+
+            FileUtils.deleteQuietly(file);
+
+            file.mkdirs();
+            setDiskCacheFileRoot(file.getAbsolutePath());
+        }
+    }
+
     public long getNewSubPoolId(){
         return subPoolId.incrementAndGet();
     }
@@ -77,6 +146,262 @@ public class CacheConfig {
         this.persistTimeoutSeconds = persistTimeoutSeconds;
     }
 
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public boolean isLazyDecode() {
+        return lazyDecode;
+    }
+
+    /**
+     * Keep a page loaded from disk in its serialized form and decode each object when it is drained.
+     * Only used if the persister is a LazyCachePersiter.
+     * @param lazyDecode
+     */
+    public void setLazyDecode(boolean lazyDecode) {
+        this.lazyDecode = lazyDecode;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * Time to live of objects added without their own TTL, expired objects are discarded when drained.
+     * 0 means never expire.
+     * @param ttlMillis
+     */
+    public void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    public int getRecycledPageFiles() {
+        return recycledPageFiles;
+    }
+
+    /**
+     * Keep up to recycledPageFiles page files after loading them and overwrite them when persisting,
+     * instead of creating and deleting a file per page. 0 means not recycled.
+     * Set it before the first page is persisted.
+     * @param recycledPageFiles
+     */
+    public void setRecycledPageFiles(int recycledPageFiles) {
+        this.recycledPageFiles = recycledPageFiles;
+    }
+
+    /**
+     * @return null if page files are not recycled
+     */
+    public PageFilePool getPageFilePool(){
+        if(recycledPageFiles < 1){
+            return null;
+        }
+
+        PageFilePool pool = pageFilePool;
+        if(null == pool){
+            synchronized (this){
+                if(null == pageFilePool){
+                    pageFilePool = new PageFilePool(new File(diskCacheFileRoot), recycledPageFiles);
+                }
+                pool = pageFilePool;
+            }
+        }
+        return pool;
+    }
+
+    public int getAsyncIoDepth() {
+        return asyncIoDepth;
+    }
+
+    /**
+     * Write and read pages through AsyncPageIO with up to asyncIoDepth operations outstanding,
+     * several pages are persisted at a time and the next persisted pages are read ahead of draining.
+     * 0 means pages are written and read one by one by the persister. Only used if the persister is an EncodingCachePersiter.
+     * Set it before the first page is persisted.
+     * @param asyncIoDepth
+     */
+    public void setAsyncIoDepth(int asyncIoDepth) {
+        this.asyncIoDepth = asyncIoDepth;
+    }
+
+    /**
+     * @return null if pages are not written asynchronously
+     */
+    public AsyncPageIO getAsyncPageIO(){
+        if(asyncIoDepth < 1){
+            return null;
+        }
+
+        AsyncPageIO io = asyncPageIO;
+        if(null == io){
+            synchronized (this){
+                if(null == asyncPageIO){
+                    asyncPageIO = new AsyncPageIO(asyncIoDepth, getDirectPageIO());
+                }
+                io = asyncPageIO;
+            }
+        }
+        return io;
+    }
+
+    public boolean isDirectIo() {
+        return directIo;
+    }
+
+    /**
+     * Write and read page files bypassing the OS page cache by DirectPageIO, pages are padded to the block size.
+     * Falls back to plain writes through the page cache if direct I/O is not supported, without flushing:
+     * posix_fadvise(POSIX_FADV_DONTNEED) cannot be called from Java without native code, so the cached pages are not dropped.
+     * Only used if the persister is an EncodingCachePersiter. Set it before the first page is persisted.
+     * @param directIo
+     */
+    public void setDirectIo(boolean directIo) {
+        this.directIo = directIo;
+    }
+
+    /**
+     * @return null if direct I/O is not enabled
+     */
+    public DirectPageIO getDirectPageIO(){
+        if(!directIo){
+            return null;
+        }
+
+        DirectPageIO io = directPageIO;
+        if(null == io){
+            synchronized (this){
+                if(null == directPageIO){
+                    directPageIO = new DirectPageIO(new File(diskCacheFileRoot));
+                }
+                io = directPageIO;
+            }
+        }
+        return io;
+    }
+
+    public long getCompressedTierBytes() {
+        return compressedTierBytes;
+    }
+
+    /**
+     * Keep persisted pages compressed in heap up to compressedTierBytes before writing them to disk, see CompressedPageTier.
+     * 0 means pages are written to disk directly. Only used if the persister is an EncodingCachePersiter.
+     * Set it before the first page is persisted.
+     * @param compressedTierBytes
+     */
+    public void setCompressedTierBytes(long compressedTierBytes) {
+        this.compressedTierBytes = compressedTierBytes;
+    }
+
+    /**
+     * @return null if pages are not kept compressed in heap
+     */
+    public CompressedPageTier getCompressedPageTier(){
+        if(compressedTierBytes < 1){
+            return null;
+        }
+
+        CompressedPageTier tier = compressedPageTier;
+        if(null == tier){
+            synchronized (this){
+                if(null == compressedPageTier){
+                    compressedPageTier = new CompressedPageTier(compressedTierBytes);
+                }
+                tier = compressedPageTier;
+            }
+        }
+        return tier;
+    }
+
+    public long getTargetPageBytes() {
+        return targetPageBytes;
+    }
+
+    /**
+     * Choose the capacity of each new sub pool of a DiskQueue to make pages of about targetPageBytes, see PageSizer,
+     * up to heapCapacity/3 objects. 0 means every sub pool has pageSize objects.
+     * Set it before the first object is added.
+     * @param targetPageBytes e.g. 1-4 MB
+     */
+    public void setTargetPageBytes(long targetPageBytes) {
+        this.targetPageBytes = targetPageBytes;
+    }
+
+    public long getTargetPageMillis() {
+        return targetPageMillis;
+    }
+
+    /**
+     * Pages are also kept small enough to be written or read in targetPageMillis by the measured throughput, 0 means no limit.
+     * @param targetPageMillis
+     */
+    public void setTargetPageMillis(long targetPageMillis) {
+        this.targetPageMillis = targetPageMillis;
+    }
+
+    /**
+     * @return null if every sub pool has pageSize objects
+     */
+    public PageSizer getPageSizer(){
+        if(targetPageBytes < 1){
+            return null;
+        }
+
+        PageSizer sizer = pageSizer;
+        if(null == sizer){
+            synchronized (this){
+                if(null == pageSizer){
+                    pageSizer = new PageSizer(targetPageBytes, targetPageMillis, pageSize, heapCapacity / 3);
+                }
+                sizer = pageSizer;
+            }
+        }
+        return sizer;
+    }
+
+    public long getMinUsableSpace() {
+        return minUsableSpace;
+    }
+
+    /**
+     * Bytes to keep free in the file system of diskCacheFileRoot, objects are rejected if spilling them would use it.
+     * The usable space is checked by a background timer, not when adding.
+     * @param minUsableSpace
+     */
+    public void setMinUsableSpace(long minUsableSpace) {
+        this.minUsableSpace = minUsableSpace;
+    }
+
+    public int getProducerBatchSize() {
+        return producerBatchSize;
+    }
+
+    /**
+     * Objects buffered by a DiskQueue.Producer before they are added by one addAll().
+     * @param producerBatchSize
+     */
+    public void setProducerBatchSize(int producerBatchSize) {
+        this.producerBatchSize = producerBatchSize;
+    }
+
+    public long getProducerLingerMillis() {
+        return producerLingerMillis;
+    }
+
+    /**
+     * Objects buffered by a DiskQueue.Producer longer than producerLingerMillis are added by a background thread.
+     * Set it before the first producer is created.
+     * @param producerLingerMillis
+     */
+    public void setProducerLingerMillis(long producerLingerMillis) {
+        this.producerLingerMillis = producerLingerMillis;
+    }
+
     public String toString(){
         StringBuilder sb = new StringBuilder();
 
@@ -86,6 +411,18 @@ public class CacheConfig {
         sb.append(", pageSize="+pageSize);
         sb.append(", usingDisk="+usingDisk);
         sb.append(", persistTimeout="+persistTimeoutSeconds);
+        sb.append(", overflowPolicy="+overflowPolicy);
+        sb.append(", lazyDecode="+lazyDecode);
+        sb.append(", ttlMillis="+ttlMillis);
+        sb.append(", recycledPageFiles="+recycledPageFiles);
+        sb.append(", asyncIoDepth="+asyncIoDepth);
+        sb.append(", directIo="+directIo);
+        sb.append(", compressedTierBytes="+compressedTierBytes);
+        sb.append(", targetPageBytes="+targetPageBytes);
+        sb.append(", targetPageMillis="+targetPageMillis);
+        sb.append(", minUsableSpace="+minUsableSpace);
+        sb.append(", producerBatchSize="+producerBatchSize);
+        sb.append(", producerLingerMillis="+producerLingerMillis);
 
         return sb.toString();
     }
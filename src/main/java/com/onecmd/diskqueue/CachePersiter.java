@@ -9,5 +9,18 @@ public interface CachePersiter<T> {
 
     long write(File file, List<T> objectList) throws Exception;
 
+    /**
+     * Write with the time range the objects were added in, persisters writing a PageHeader keep it there.
+     * @param file
+     * @param objectList
+     * @param firstEnqueueTime
+     * @param lastEnqueueTime
+     * @return file size
+     * @throws Exception
+     */
+    default long write(File file, List<T> objectList, long firstEnqueueTime, long lastEnqueueTime) throws Exception {
+        return write(file, objectList);
+    }
+
     List<T> read(File file, Class<T> objectType) throws Exception;
 }
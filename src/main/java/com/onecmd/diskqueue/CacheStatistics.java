@@ -11,13 +11,43 @@ public class CacheStatistics {
     private AtomicInteger cacheSize = new AtomicInteger(0);
     private AtomicInteger heapSize = new AtomicInteger(0);
     private AtomicInteger diskSize = new AtomicInteger(0);
+    private AtomicInteger compressedSize = new AtomicInteger(0);
     private AtomicInteger diskFiles = new AtomicInteger(0);
 
     private AtomicLong persistedFiles = new AtomicLong(0);
     private AtomicLong loadedFiles = new AtomicLong(0);
+    private AtomicLong persistedSize = new AtomicLong(0);
+    private AtomicLong persistedBytes = new AtomicLong(0);
+    private AtomicLong droppedFiles = new AtomicLong(0);
+    private AtomicLong droppedSize = new AtomicLong(0);
+    private AtomicLong expiredFiles = new AtomicLong(0);
+    private AtomicLong expiredSize = new AtomicLong(0);
+    private AtomicLong coalescedFiles = new AtomicLong(0);
+    private AtomicLong coalescedSize = new AtomicLong(0);
+    private AtomicLong redeliveredSize = new AtomicLong(0);
+    private AtomicLong trimmedFiles = new AtomicLong(0);
+    private AtomicLong corruptedFiles = new AtomicLong(0);
+    private AtomicLong corruptedSize = new AtomicLong(0);
 
     private AtomicLong diskFileSize = new AtomicLong(0);
 
+    /**
+     * Capacity of the latest sub pool, changes if chosen by a PageSizer.
+     */
+    private AtomicInteger pageCapacity = new AtomicInteger(0);
+
+    /**
+     * Changes are also added to the parent, e.g. the totals of all queues of a DiskQueueManager.
+     */
+    private CacheStatistics parent = null;
+
+    public CacheStatistics(){
+    }
+
+    public CacheStatistics(CacheStatistics parent){
+        this.parent = parent;
+    }
+
     public int getCacheSize() {
         return cacheSize.get();
     }
@@ -26,6 +56,9 @@ public class CacheStatistics {
         int prev = cacheSize.get();
         this.cacheSize.getAndAdd(delta);
         this.heapSize.getAndAdd(delta);
+        if(null != parent){
+            parent.getAndAddCacheSize(delta);
+        }
         return prev;
     }
 
@@ -41,6 +74,28 @@ public class CacheStatistics {
         int prev = diskSize.get();
         this.diskSize.getAndAdd(delta);
         this.heapSize.getAndAdd(-1 * delta);
+        if(null != parent){
+            parent.getAndAddDiskSize(delta);
+        }
+        return prev;
+    }
+
+    public int getCompressedSize() {
+        return compressedSize.get();
+    }
+
+    /**
+     * Objects not in heap as objects but in pages kept compressed in heap, see CompressedPageTier.
+     * @param delta
+     * @return
+     */
+    public int getAndAddCompressedSize(int delta) {
+        int prev = compressedSize.get();
+        this.compressedSize.getAndAdd(delta);
+        this.heapSize.getAndAdd(-1 * delta);
+        if(null != parent){
+            parent.getAndAddCompressedSize(delta);
+        }
         return prev;
     }
 
@@ -56,9 +111,41 @@ public class CacheStatistics {
         long prev = persistedFiles.get();
         this.persistedFiles.getAndAdd(delta);
         this.diskFiles.getAndAdd(delta);
+        if(null != parent){
+            parent.getAndAddPersistedFiles(delta);
+        }
         return prev;
     }
 
+    public long getPersistedSize() {
+        return persistedSize.get();
+    }
+
+    public long getPersistedBytes() {
+        return persistedBytes.get();
+    }
+
+    /**
+     * Objects and bytes written to page files since created, the encoded size per object is known before any file is on disk.
+     * @param size
+     * @param bytes
+     */
+    public void addPersistedBytes(int size, long bytes) {
+        this.persistedSize.getAndAdd(size);
+        this.persistedBytes.getAndAdd(bytes);
+        if(null != parent){
+            parent.addPersistedBytes(size, bytes);
+        }
+    }
+
+    /**
+     * @return bytes per object written to page files since created, 0 if nothing written yet
+     */
+    public long getPerObjectPersistedSize(){
+        long size = persistedSize.get();
+        return size < 1 ? 0 : persistedBytes.get() / size;
+    }
+
     public long getLoadedFiles() {
         return loadedFiles.get();
     }
@@ -67,9 +154,189 @@ public class CacheStatistics {
         long prev = loadedFiles.get();
         this.loadedFiles.getAndAdd(delta);
         this.diskFiles.getAndAdd((int) (-1 * delta));
+        if(null != parent){
+            parent.getAndAddLoadedFiles(delta);
+        }
+        return prev;
+    }
+
+    public long getDroppedFiles() {
+        return droppedFiles.get();
+    }
+
+    public long getAndAddDroppedFiles(int delta) {
+        long prev = droppedFiles.get();
+        this.droppedFiles.getAndAdd(delta);
+        this.diskFiles.getAndAdd(-1 * delta);
+        if(null != parent){
+            parent.getAndAddDroppedFiles(delta);
+        }
         return prev;
     }
 
+    public long getDroppedSize() {
+        return droppedSize.get();
+    }
+
+    public long getAndAddDroppedSize(int delta) {
+        long prev = droppedSize.get();
+        this.droppedSize.getAndAdd(delta);
+        if(null != parent){
+            parent.getAndAddDroppedSize(delta);
+        }
+        return prev;
+    }
+
+    public long getExpiredFiles() {
+        return expiredFiles.get();
+    }
+
+    /**
+     * Files of fully expired pages, deleted without being read.
+     * @param delta
+     * @return
+     */
+    public long getAndAddExpiredFiles(int delta) {
+        long prev = expiredFiles.get();
+        this.expiredFiles.getAndAdd(delta);
+        this.diskFiles.getAndAdd(-1 * delta);
+        if(null != parent){
+            parent.getAndAddExpiredFiles(delta);
+        }
+        return prev;
+    }
+
+    public long getExpiredSize() {
+        return expiredSize.get();
+    }
+
+    public long getAndAddExpiredSize(int delta) {
+        long prev = expiredSize.get();
+        this.expiredSize.getAndAdd(delta);
+        if(null != parent){
+            parent.getAndAddExpiredSize(delta);
+        }
+        return prev;
+    }
+
+    public long getCoalescedFiles() {
+        return coalescedFiles.get();
+    }
+
+    /**
+     * Files of pages whose objects were all superseded, deleted without being read.
+     * @param delta
+     * @return
+     */
+    public long getAndAddCoalescedFiles(int delta) {
+        long prev = coalescedFiles.get();
+        this.coalescedFiles.getAndAdd(delta);
+        this.diskFiles.getAndAdd(-1 * delta);
+        if(null != parent){
+            parent.getAndAddCoalescedFiles(delta);
+        }
+        return prev;
+    }
+
+    public long getTrimmedFiles() {
+        return trimmedFiles.get();
+    }
+
+    /**
+     * Files of a RetainedDiskLog deleted after every group read past them.
+     * @param delta
+     * @return
+     */
+    public long getAndAddTrimmedFiles(int delta) {
+        long prev = trimmedFiles.get();
+        this.trimmedFiles.getAndAdd(delta);
+        this.diskFiles.getAndAdd(-1 * delta);
+        if(null != parent){
+            parent.getAndAddTrimmedFiles(delta);
+        }
+        return prev;
+    }
+
+    public long getCoalescedSize() {
+        return coalescedSize.get();
+    }
+
+    public long getAndAddCoalescedSize(int delta) {
+        long prev = coalescedSize.get();
+        this.coalescedSize.getAndAdd(delta);
+        if(null != parent){
+            parent.getAndAddCoalescedSize(delta);
+        }
+        return prev;
+    }
+
+    public long getRedeliveredSize() {
+        return redeliveredSize.get();
+    }
+
+    /**
+     * Objects delivered again because their lease expired before acknowledged.
+     * @param delta
+     * @return
+     */
+    public long getAndAddRedeliveredSize(int delta) {
+        long prev = redeliveredSize.get();
+        this.redeliveredSize.getAndAdd(delta);
+        if(null != parent){
+            parent.getAndAddRedeliveredSize(delta);
+        }
+        return prev;
+    }
+
+    public long getCorruptedFiles() {
+        return corruptedFiles.get();
+    }
+
+    /**
+     * Files failed the page header or checksum verification, moved to the quarantine folder.
+     * @param delta
+     * @return
+     */
+    public long getAndAddCorruptedFiles(int delta) {
+        long prev = corruptedFiles.get();
+        this.corruptedFiles.getAndAdd(delta);
+        this.diskFiles.getAndAdd(-1 * delta);
+        if(null != parent){
+            parent.getAndAddCorruptedFiles(delta);
+        }
+        return prev;
+    }
+
+    public long getCorruptedSize() {
+        return corruptedSize.get();
+    }
+
+    /**
+     * Objects lost in corrupted files.
+     * @param delta
+     * @return
+     */
+    public long getAndAddCorruptedSize(int delta) {
+        long prev = corruptedSize.get();
+        this.corruptedSize.getAndAdd(delta);
+        if(null != parent){
+            parent.getAndAddCorruptedSize(delta);
+        }
+        return prev;
+    }
+
+    public int getPageCapacity() {
+        return pageCapacity.get();
+    }
+
+    /**
+     * Not added to the parent, queues choose their page capacity independently.
+     * @param capacity
+     */
+    public void setPageCapacity(int capacity) {
+        this.pageCapacity.set(capacity);
+    }
+
     public long getDiskFileSize() {
         return diskFileSize.get();
     }
@@ -77,6 +344,9 @@ public class CacheStatistics {
     public long getAndAddDiskFileSize(long delta) {
         long prev = diskFileSize.get();
         this.diskFileSize.getAndAdd(delta);
+        if(null != parent){
+            parent.getAndAddDiskFileSize(delta);
+        }
         return prev;
     }
 
@@ -95,11 +365,22 @@ public class CacheStatistics {
         sb.append("size="+cacheSize.get());
         sb.append(", heap="+ heapSize.get());
         sb.append(", disk="+ diskSize.get());
+        sb.append(", compressed="+ compressedSize.get());
         sb.append(", files="+diskFiles.get());
         sb.append(", persisted="+persistedFiles.get());
         sb.append(", diskLoaded="+ loadedFiles.get());
+        sb.append(", dropped="+ droppedSize.get());
+        sb.append(", droppedFiles="+ droppedFiles.get());
+        sb.append(", expired="+ expiredSize.get());
+        sb.append(", expiredFiles="+ expiredFiles.get());
+        sb.append(", coalesced="+ coalescedSize.get());
+        sb.append(", redelivered="+ redeliveredSize.get());
+        sb.append(", corrupted="+ corruptedSize.get());
+        sb.append(", coalescedFiles="+ coalescedFiles.get());
+        sb.append(", trimmedFiles="+ trimmedFiles.get());
         sb.append(", diskUsed="+getFileSizeStr(diskFileSize.get()));
         sb.append(", PerObjectSize="+getFileSizeStr(getPerObjectDiskSize()));
+        sb.append(", pageCapacity="+pageCapacity.get());
 
         return sb.toString();
     }
@@ -5,14 +5,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 
 /**
  */
@@ -20,18 +28,91 @@ public class CacheSubPool<T> {
 
     private static Logger LOGGER = LoggerFactory.getLogger(CacheSubPool.class);
 
+    public static final String QUARANTINE_FOLDER = "quarantine";
+
     private long id = 0;
     private String diskCacheFileRoot;
     private CacheConfig config;
     private CacheStatistics statistics;
     private Class<T> objectType = null;
 
-    private LinkedBlockingDeque<T> bufferQueue = new LinkedBlockingDeque<T>();
+    /**
+     * Objects added until full, pageSize unless chosen by a PageSizer.
+     */
+    private int capacity;
+
+    /**
+     * Objects are appended at tail by one producer holding putLock and drained from head by one consumer holding takeLock.
+     * When persisted, slots [head, head+sizeInDisk) are in the file, slots [head+sizeInDisk, tail) in heap.
+     * The array is released when all objects are persisted.
+     */
+    private volatile Object[] items = null;
+    private volatile int head = 0;
+    private volatile int tail = 0;
+
+    /**
+     * Expire time in milliseconds of each slot, allocated when the first object with TTL is added.
+     * Kept in heap when persisted, so expired objects are skipped without decoding and
+     * a page whose maxExpireAt has passed is deleted without being read.
+     */
+    private volatile long[] expires = null;
+    private volatile long maxExpireAt = Long.MIN_VALUE;
+
+    /**
+     * Slots superseded by a newer object of the same key, discarded when drained, without decoding if the page is decoded lazily,
+     * see CoalescingDiskQueue.
+     */
+    private BitSet tombstones = null;
+    private int superseded = 0;
+
+    /**
+     * Objects expired or lost in a corrupted file and not reported by takeDiscarded() yet, guarded by takeLock.
+     */
+    private int discarded = 0;
+
     private AtomicInteger size = new AtomicInteger(0);
     private AtomicInteger sizeInDisk = new AtomicInteger(0);
 
+    /**
+     * Time of the first add, written to the page header with the persisting time.
+     */
+    private volatile long firstAddTime = 0;
+
     private boolean persisted = false;
 
+    /**
+     * File taken from the recycled page files while persisted, null if page files are not recycled.
+     */
+    private volatile File pageFile = null;
+
+    /**
+     * Encoded page compressed in heap instead of written to a file while persisted, see CompressedPageTier.
+     */
+    private volatile byte[] compressed = null;
+    private int compressedLength = 0;
+
+    /**
+     * Set while the objects are written by AsyncPageIO, they stay in heap until the write completed.
+     */
+    private volatile boolean writing = false;
+
+    /**
+     * Content of the persisted file read ahead by AsyncPageIO, decoded by loadToHeap() instead of reading the file.
+     */
+    private CompletableFuture<byte[]> prefetched = null;
+
+    /**
+     * Loaded from disk but not decoded yet: slots [head, decodedEnd) are decoded,
+     * slots [decodedEnd, decodedEnd+lazyPage.size()) are decoded when drained.
+     */
+    private LazyPage<T> lazyPage = null;
+    private int decodedEnd = 0;
+
+    /**
+     * Payload size per object of the page last loaded and decoded to heap, used by byte-bounded drains.
+     */
+    private long pageObjectBytes = 0;
+
     private Lock putLock = new ReentrantLock();
     private Lock takeLock = new ReentrantLock();
 
@@ -47,7 +128,19 @@ public class CacheSubPool<T> {
     private CachePersiter<T> cachePersiter = new JsonFilePersister<T>();
 
     public CacheSubPool(long id, CacheConfig config, CacheStatistics statistics, Class<T> objectType){
+        this(id, config, statistics, objectType, config.getPageSize());
+    }
+
+    /**
+     * @param id
+     * @param config
+     * @param statistics
+     * @param objectType
+     * @param capacity objects added until full
+     */
+    public CacheSubPool(long id, CacheConfig config, CacheStatistics statistics, Class<T> objectType, int capacity){
         this.id = id;
+        this.capacity = capacity;
         this.diskCacheFileRoot = config.getDiskCacheFileRoot();
         this.config = config;
         this.statistics = statistics;
@@ -61,7 +154,23 @@ public class CacheSubPool<T> {
     }
 
     public String getFilePath(){
-        return diskCacheFileRoot+File.separator+id+".dat";
+        File file = pageFile;
+        return null != file ? file.getPath() : diskCacheFileRoot+File.separator+id+".dat";
+    }
+
+    /**
+     * Delete the persisted file or give it back to the recycled page files.
+     * @param file
+     */
+    private void releaseFile(File file){
+        PageFilePool pool = config.getPageFilePool();
+        if(null != pageFile && null != pool){
+            pool.release(file);
+        }
+        else {
+            FileUtils.deleteQuietly(file);
+        }
+        pageFile = null;
     }
 
     public int getHeapSize(){
@@ -78,7 +187,12 @@ public class CacheSubPool<T> {
 
     public int getAndAddSizeInDisk(int value){
         int prev = sizeInDisk.getAndAdd(value);
-        statistics.getAndAddDiskSize(value);
+        if(null != compressed){
+            statistics.getAndAddCompressedSize(value);
+        }
+        else {
+            statistics.getAndAddDiskSize(value);
+        }
 
         return prev;
     }
@@ -87,36 +201,522 @@ public class CacheSubPool<T> {
         return id;
     }
 
+    public boolean isPersisted(){
+        return persisted;
+    }
+
+    /**
+     * @return true if persisted to the CompressedPageTier instead of a file
+     */
+    public boolean isCompressed(){
+        return null != compressed;
+    }
+
+    /**
+     * Slot of the next object to drain, slots are numbered in adding order.
+     * @return
+     */
+    int getHead(){
+        return head;
+    }
+
+    /**
+     * Slot of the next object to add.
+     * @return
+     */
+    int getTail(){
+        return tail;
+    }
+
+    /**
+     * Mark the object in slot as superseded, it is discarded instead of drained.
+     * If all objects left are superseded, a persisted file is deleted without being read.
+     * @param slot
+     * @return false if the slot is drained or superseded already
+     */
+    public boolean supersede(int slot){
+        try {
+            fullLock();
+
+            if(slot < head || slot >= tail){
+                return false;
+            }
+            if(null == tombstones){
+                tombstones = new BitSet();
+            }
+            if(tombstones.get(slot)){
+                return false;
+            }
+
+            tombstones.set(slot);
+            superseded++;
+            return true;
+        }
+        finally {
+            fullUnLock();
+        }
+    }
+
+    /**
+     * Capacity objects were added, new objects should be added to a new sub pool.
+     * @return
+     */
     public boolean isFull(){
-        return bufferQueue.size() >= config.getPageSize();
+        return tail >= capacity;
+    }
+
+    public int getCapacity(){
+        return capacity;
+    }
+
+    /**
+     * Sample of the object size and I/O latency for the PageSizer, if any.
+     */
+    private void recordPage(int count, long bytes, long startNanos){
+        PageSizer sizer = config.getPageSizer();
+        if(null != sizer){
+            sizer.record(count, bytes, startNanos > 0 ? System.nanoTime() - startNanos : 0);
+        }
+    }
+
+    /**
+     * Size of the serialized objects of a page, without the PageHeader, the padding of direct I/O
+     * or the bytes left in a recycled file.
+     * @param page content of a page file
+     * @param name file name for messages
+     * @return the page length if it has no header
+     * @throws CorruptedPageException
+     */
+    private static long payloadLength(byte[] page, String name) throws CorruptedPageException {
+        PageHeader header = PageHeader.parse(page, name);
+        return null == header ? page.length : header.getPayloadLength();
+    }
+
+    /**
+     * See payloadLength(page, name), only the header is read.
+     * @param file
+     * @return the file size if the file has no header
+     * @throws IOException
+     */
+    private static long payloadLength(File file) throws IOException {
+        PageHeader header = PageHeader.read(file);
+        return null == header ? file.length() : header.getPayloadLength();
+    }
+
+    /**
+     * @return null if the persister can not encode objects without writing a file
+     */
+    private EncodingCachePersiter<T> getEncoder(){
+        return cachePersiter instanceof EncodingCachePersiter ? (EncodingCachePersiter<T>) cachePersiter : null;
+    }
+
+    /**
+     * Full, nothing drained yet and has objects in heap.
+     * @return
+     */
+    public boolean isPersistable(){
+        return isFull() && head == 0 && getHeapSize() > 0 && !writing;
     }
 
     public void add(T obj) throws Exception {
+        add(obj, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param obj
+     * @param expireAt time in milliseconds, Long.MAX_VALUE means never expire
+     * @throws Exception
+     */
+    public void add(T obj, long expireAt) throws Exception {
         LOGGER.trace("Enter subPool[" + id + "].add()");
         try {
             putLock.lock();
 
-            bufferQueue.add(obj);
+            int index = tail;
+            if(0 == index){
+                firstAddTime = System.currentTimeMillis();
+            }
+            ensureCapacity(index + 1);
+            items[index] = obj;
+            if(expireAt != Long.MAX_VALUE && null == expires){
+                long[] array = new long[items.length];
+                Arrays.fill(array, Long.MAX_VALUE);
+                expires = array;
+            }
+            if(null != expires){
+                expires[index] = expireAt;
+            }
+            if(expireAt > maxExpireAt){
+                maxExpireAt = expireAt;
+            }
+            size.getAndIncrement();
+            tail = index + 1;
         }
         finally {
             putLock.unlock();
         }
+    }
 
-        size.getAndIncrement();
+    /**
+     * Must hold putLock.
+     * @param length
+     */
+    private void ensureCapacity(int length){
+        Object[] array = items;
+        if(null == array){
+            items = new Object[Math.max(length, Math.max(1, capacity))];
+        }
+        else if(array.length < length){
+            items = Arrays.copyOf(array, Math.max(length, array.length * 2));
+        }
+
+        long[] expiry = expires;
+        if(null != expiry && expiry.length < items.length){
+            long[] grown = Arrays.copyOf(expiry, items.length);
+            Arrays.fill(grown, expiry.length, grown.length, Long.MAX_VALUE);
+            expires = grown;
+        }
+    }
+
+    /**
+     * Must hold takeLock.
+     * Discard expired and superseded objects, load from disk and decode if necessary.
+     * Success: return how much objects are ready in slots [head, head+return);
+     * Failed: throw exception if none is ready;
+     * @param fetchSize
+     * @param budget null if not bounded by bytes, otherwise stop at the first object which does not fit
+     * @return
+     * @throws Exception
+     */
+    @SuppressWarnings("unchecked")
+    private int prepareDrain(int fetchSize, ByteBudget<T> budget) throws Exception {
+        int last = tail;
+        long[] expiry = expires;
+        long now = null == expiry ? 0 : System.currentTimeMillis();
+        if(size.get() > 0 && ((null != expiry && maxExpireAt <= now) || (superseded > 0 && superseded >= size.get()))
+                && discardAll(now)){
+            return 0;
+        }
+        if(null != budget && budget.isExhausted()){
+            return 0;
+        }
+
+        loadToHeap();
+
+        Object[] array = items;
+        BitSet superseding = tombstones;
+        int end = head;
+        int count = 0;
+        int expired = 0;
+        int coalesced = 0;
+        try {
+            while (count < fetchSize && end < last){
+                boolean isSuperseded = null != superseding && superseding.get(end);
+                boolean isExpired = !isSuperseded && null != expiry && expiry[end] <= now;
+                boolean isLazy = null != lazyPage && end == decodedEnd;
+                if(null != budget && !isSuperseded && !isExpired
+                        && !budget.tryTake(isLazy ? lazyPage.nextByteSize() : budget.estimate((T) array[end], pageObjectBytes, getEncoder()))){
+                    break;
+                }
+                if(isLazy){
+                    if(isSuperseded || isExpired){
+                        lazyPage.skip();
+                    }
+                    else {
+                        try {
+                            array[end] = lazyPage.next();
+                        }
+                        catch (IOException e){
+                            if(count > 0){
+                                LOGGER.warn("Failed to decode object of subPool[" + id + "]: " + e.getMessage(), e);
+                                break;
+                            }
+                            throw e;
+                        }
+                    }
+                    decodedEnd++;
+                    if(lazyPage.size() < 1){
+                        lazyPage = null;
+                    }
+                }
+
+                if(isSuperseded){
+                    array[end] = null;
+                    coalesced++;
+                }
+                else if(isExpired){
+                    array[end] = null;
+                    expired++;
+                }
+                else {
+                    count++;
+                }
+                end++;
+            }
+        }
+        finally {
+            if(expired + coalesced > 0){
+                compact(end, expired, coalesced);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Must hold takeLock.
+     * Move the objects left in slots [head, end) after the discarded ones were set to null to the end of the range.
+     * @param end
+     * @param expired
+     * @param coalesced
+     */
+    private void compact(int end, int expired, int coalesced){
+        Object[] array = items;
+        long[] expiry = expires;
+        int write = end;
+        for(int read = end - 1; read >= head; read--){
+            if(null != array[read]){
+                write--;
+                if(write != read){
+                    array[write] = array[read];
+                    if(null != expiry){
+                        expiry[write] = expiry[read];
+                    }
+                    array[read] = null;
+                }
+            }
+        }
+
+        if(null != tombstones){
+            tombstones.clear(head, end);
+        }
+        head = head + expired + coalesced;
+        superseded -= coalesced;
+        size.getAndAdd(-1 * (expired + coalesced));
+        discarded += expired;
+        statistics.getAndAddExpiredSize(expired);
+        statistics.getAndAddCoalescedSize(coalesced);
+    }
+
+    /**
+     * Must hold takeLock.
+     * All objects expired or superseded: a persisted file is deleted without being read.
+     * The caller should reduce the cache size by the discarded objects.
+     * @param now
+     * @return false if objects were added meanwhile
+     */
+    private boolean discardAll(long now){
+        try {
+            putLock.lock();
+            boolean expired = null != expires && maxExpireAt <= now;
+            if(!expired && (superseded < 1 || superseded < size.get())){
+                return false;
+            }
+
+            int total = size.get();
+            File file = new File(getFilePath());
+            if (persisted && file.exists()) {
+                statistics.getAndAddDiskFileSize(-1 * file.length());
+                releaseFile(file);
+                if(expired) {
+                    statistics.getAndAddExpiredFiles(1);
+                }
+                else {
+                    statistics.getAndAddCoalescedFiles(1);
+                }
+            }
+            getAndAddSizeInDisk(-1 * sizeInDisk.get());
+            if(null != compressed){
+                releaseCompressed();
+            }
+
+            items = null;
+            lazyPage = null;
+            prefetched = null;
+            tombstones = null;
+            superseded = 0;
+            head = tail;
+            size.set(0);
+            persisted = false;
+
+            if(expired) {
+                discarded += total;
+                statistics.getAndAddExpiredSize(total);
+            }
+            else {
+                statistics.getAndAddCoalescedSize(total);
+            }
+            LOGGER.trace("subPool[" + id + "]: discarded: " + total);
+            return true;
+        }
+        finally {
+            putLock.unlock();
+        }
+    }
+
+    /**
+     * Must hold takeLock.
+     * @param count
+     */
+    private void release(int count){
+        Object[] array = items;
+        int from = head;
+        Arrays.fill(array, from, from + count, null);
+        head = from + count;
+        size.getAndAdd(-1 * count);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<T> view(int from, int to){
+        List<Object> list = Arrays.asList(items);
+        return Collections.unmodifiableList((List<T>) list.subList(from, to));
+    }
+
+    /**
+     * Hand at most fetchSize objects to sink one by one.
+     * If sink throws exception, the object is kept and the exception is thrown.
+     * Success: return how much drained;
+     * Load from disk failed: throw exception;
+     * @param fetchSize
+     * @param sink
+     * @return
+     * @throws Exception
+     */
+    @SuppressWarnings("unchecked")
+    public int drain(int fetchSize, Consumer<? super T> sink) throws Exception {
+        LOGGER.trace("Enter subPool["+id+"].drain(fetchSize="+fetchSize+")");
+
+        try {
+            takeLock.lock();
+
+            int count = prepareDrain(fetchSize, null);
+            Object[] array = items;
+            for(int i=0; i<count; i++){
+                sink.accept((T) array[head]);
+                release(1);
+            }
+            return count;
+        }
+        finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * Hand at most fetchSize objects to sink as one read-only list backed by the slots of this sub pool.
+     * The list is only valid during the call.
+     * If sink throws exception, the objects are kept and the exception is thrown.
+     * Success: return how much drained;
+     * Load from disk failed: throw exception;
+     * @param fetchSize
+     * @param sink
+     * @return
+     * @throws Exception
+     */
+    public int drainBatch(int fetchSize, Consumer<? super List<T>> sink) throws Exception {
+        LOGGER.trace("Enter subPool["+id+"].drainBatch(fetchSize="+fetchSize+")");
+
+        try {
+            takeLock.lock();
+
+            int count = prepareDrain(fetchSize, null);
+            if(count < 1){
+                return 0;
+            }
+
+            sink.accept(view(head, head + count));
+            release(count);
+            return count;
+        }
+        finally {
+            takeLock.unlock();
+        }
     }
 
     public int drainTo(Collection<T> list, int fetchSize) throws Exception {
+        return drainTo(list, fetchSize, null);
+    }
+
+    /**
+     * Drain at most fetchSize objects, and no more than budget allows if it is not null.
+     * Success: return how much drained;
+     * Load from disk failed: throw exception;
+     * @param list
+     * @param fetchSize
+     * @param budget
+     * @return
+     * @throws Exception
+     */
+    int drainTo(Collection<T> list, int fetchSize, ByteBudget<T> budget) throws Exception {
         LOGGER.trace("Enter subPool["+id+"].drainTo(prevSize="+list.size()+")");
 
         try {
             takeLock.lock();
 
-            loadToHeap();
+            int count = prepareDrain(fetchSize, budget);
+            if(count < 1){
+                return 0;
+            }
 
-            int total = bufferQueue.drainTo(list, fetchSize);
-            size.getAndAdd(-1 * total);
+            list.addAll(view(head, head + count));
+            release(count);
+            return count;
+        }
+        finally {
+            takeLock.unlock();
+        }
+    }
 
-            return total;
+    /**
+     * Copy of the objects not drained or expired yet, the persisted ones are read from the file without loading this sub pool to heap.
+     * Weakly consistent: objects added meanwhile may be missing.
+     * Failed: throw exception if the file can not be read;
+     * @return
+     * @throws Exception
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> snapshot() throws Exception {
+        LOGGER.trace("Enter subPool["+id+"].snapshot()");
+
+        try {
+            takeLock.lock();
+
+            int end = tail;
+            Object[] array = items;
+            int from = head;
+            ArrayList<T> list = new ArrayList<T>(Math.max(0, end - from));
+
+            if (persisted) {
+                List<T> caches = null != compressed ? decompress()
+                        : cachePersiter.read(new File(getFilePath()), objectType);
+                list.addAll(caches);
+                from += caches.size();
+            }
+            else if (null != lazyPage) {
+                for(int i=from; i<decodedEnd; i++){
+                    list.add((T) array[i]);
+                }
+                list.addAll(lazyPage.peekRemaining());
+                from = decodedEnd + lazyPage.size();
+            }
+
+            for(int i=from; i<end; i++){
+                list.add((T) array[i]);
+            }
+
+            long[] expiry = expires;
+            BitSet superseding = tombstones;
+            if(null != expiry || null != superseding){
+                long now = System.currentTimeMillis();
+                ArrayList<T> live = new ArrayList<T>(list.size());
+                for(int i=0; i<list.size(); i++){
+                    int slot = head + i;
+                    if((null == expiry || expiry[slot] > now) && (null == superseding || !superseding.get(slot))){
+                        live.add(list.get(i));
+                    }
+                }
+                return live;
+            }
+            return list;
         }
         finally {
             takeLock.unlock();
@@ -129,18 +729,59 @@ public class CacheSubPool<T> {
         try {
             fullLock();
 
-            bufferQueue.clear();
-            size.set(bufferQueue.size());
+            items = null;
+            prefetched = null;
+            head = 0;
+            tail = 0;
+            expires = null;
+            maxExpireAt = Long.MIN_VALUE;
+            tombstones = null;
+            superseded = 0;
+            discarded = 0;
+            lazyPage = null;
+            size.set(0);
 
             getAndAddSizeInDisk(-1 * sizeInDisk.get());
+            if(null != compressed){
+                releaseCompressed();
+            }
 
             persisted = false;
 
             File file = new File(getFilePath());
             if (file.exists()) {
                 statistics.getAndAddDiskFileSize(-1 * file.length());
-                FileUtils.deleteQuietly(file);
+                releaseFile(file);
+            }
+        }
+        finally {
+            fullUnLock();
+        }
+    }
+
+    /**
+     * Discard all objects of this sub pool, a persisted file is deleted without being read.
+     * The caller should reduce the cache size by the returned number, it includes the objects of takeDiscarded() not taken yet.
+     * @return how much dropped
+     */
+    public int drop() {
+        LOGGER.trace("Enter subPool[" + id + "].drop()");
+
+        try {
+            fullLock();
+
+            int total = size.get();
+            int pending = discarded;
+            boolean wasPersisted = persisted && null == compressed;
+
+            clear();
+
+            if(wasPersisted) {
+                statistics.getAndAddDroppedFiles(1);
             }
+            statistics.getAndAddDroppedSize(total);
+
+            return total + pending;
         }
         finally {
             fullUnLock();
@@ -148,7 +789,25 @@ public class CacheSubPool<T> {
     }
 
     /**
-     * Throw exception if load failed
+     * Objects expired or lost in a corrupted file since the last call, by drains or by loading this sub pool,
+     * the caller should reduce the cache size by the returned number.
+     * @return
+     */
+    public int takeDiscarded() {
+        try {
+            takeLock.lock();
+
+            int total = discarded;
+            discarded = 0;
+            return total;
+        }
+        finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * Throw exception if load failed, a corrupted file is moved to the quarantine folder and its objects are lost.
      * @throws Exception
      */
     private void loadToHeap() throws Exception {
@@ -157,17 +816,144 @@ public class CacheSubPool<T> {
         if (!persisted) {
             return;
         }
+        if (null != compressed) {
+            promote();
+            return;
+        }
 
         File file = new File(getFilePath());
         if (!file.exists()) {
             throw new Exception("File damaged or not exist.");
+        }
+
+        CompletableFuture<byte[]> read = prefetched;
+        prefetched = null;
+        try {
+            byte[] data = null == read ? null : getPrefetched(read);
+            DirectPageIO direct = config.getDirectPageIO();
+            if(null == data && null != direct && cachePersiter instanceof EncodingCachePersiter){
+                data = direct.readPage(file);
+            }
+            readToHeap(file, data);
+        }
+        catch (CorruptedPageException e){
+            quarantine(file, e);
+        }
+    }
+
+    /**
+     * @param read
+     * @return null if the read failed, the file is then read again by the persister
+     * @throws InterruptedException
+     */
+    private byte[] getPrefetched(CompletableFuture<byte[]> read) throws InterruptedException {
+        try {
+            return read.get();
+        }
+        catch (ExecutionException e){
+            LOGGER.debug("subPool[" + id + "]: failed to read ahead, read again: " + e.getCause().getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Start reading the persisted file by io ahead of draining, nothing is done if io is busy or the file is already read.
+     * Only used if the persister is an EncodingCachePersiter.
+     * @param io
+     */
+    public void prefetch(AsyncPageIO io){
+        if(!persisted || null != compressed || !(cachePersiter instanceof EncodingCachePersiter)){
+            return;
+        }
+
+        try {
+            takeLock.lock();
+            if(persisted && null == compressed && null == prefetched){
+                prefetched = io.tryRead(new File(getFilePath()));
+            }
+        }
+        finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * Must hold takeLock.
+     * Move the corrupted file to the quarantine folder, drop its objects and keep the ones added after it was persisted.
+     * @param file
+     * @param e
+     */
+    private void quarantine(File file, CorruptedPageException e){
+        int lost = sizeInDisk.get();
+        long fileSize = file.length();
+        File folder = new File(diskCacheFileRoot + File.separator + QUARANTINE_FOLDER);
+        LOGGER.error("SubPool[" + id + "]: " + e.getMessage() + ", " + lost + " objects lost, file moved to: " + folder.getPath());
+
+        try {
+            folder.mkdirs();
+            Files.move(file.toPath(), new File(folder, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException moveFailed){
+            LOGGER.warn("Failed to move file to quarantine: " + moveFailed.getMessage() + ", deleted.");
+            FileUtils.deleteQuietly(file);
+        }
+        pageFile = null;
+
+        allocateHeap();
+        if(null != tombstones){
+            superseded -= tombstones.get(head, head + lost).cardinality();
+            tombstones.clear(head, head + lost);
+        }
+        head = head + lost;
+        size.getAndAdd(-1 * lost);
+        getAndAddSizeInDisk(-1 * lost);
+        persisted = false;
+        discarded += lost;
+
+        statistics.getAndAddDiskFileSize(-1 * fileSize);
+        statistics.getAndAddCorruptedFiles(1);
+        statistics.getAndAddCorruptedSize(lost);
+    }
+
+    /**
+     * Must hold takeLock.
+     * @param file
+     * @param data content of file read ahead, null to read the file by the persister
+     * @throws Exception
+     */
+    private void readToHeap(File file, byte[] data) throws Exception {
+        long start = null == data ? System.nanoTime() : 0;
+        if (config.isLazyDecode() && (null != data || cachePersiter instanceof LazyCachePersiter)) {
+            long fileSize = file.length();
+            LazyPage<T> page = null != data ? ((EncodingCachePersiter<T>) cachePersiter).decodeLazy(data, file.getName(), objectType)
+                    : ((LazyCachePersiter<T>) cachePersiter).readLazy(file, objectType);
+            if(null != config.getPageSizer()){
+                recordPage(page.size(), null != data ? payloadLength(data, file.getName()) : payloadLength(file), start);
+            }
+            releaseFile(file);
+
+            LOGGER.trace("subPool[" + id + "]: file exist, loaded from disk without decoding: " + page.size());
+            allocateHeap();
+            lazyPage = page;
+            decodedEnd = head;
+
+            getAndAddSizeInDisk(-1 * page.size());
+            statistics.getAndAddLoadedFiles(1);
+            statistics.getAndAddDiskFileSize(-1 * fileSize);
+
+            persisted = false;
         } else { // persisted==true && file.exists():
             long fileSize = file.length();
-            List<T> diskCaches = retryReadDataToFile(file);
-            FileUtils.deleteQuietly(file);
+            List<T> diskCaches = null != data ? ((EncodingCachePersiter<T>) cachePersiter).decode(data, file.getName(), objectType)
+                    : retryReadDataToFile(file);
+            long pageBytes = null != data ? payloadLength(data, file.getName()) : payloadLength(file);
+            recordPage(diskCaches.size(), pageBytes, start);
+            pageObjectBytes = diskCaches.isEmpty() ? 0 : pageBytes / diskCaches.size();
+            releaseFile(file);
 
             LOGGER.trace("subPool[" + id + "]: file exist, loaded from disk: " + diskCaches.size());
-            addListToQueueHead(bufferQueue, diskCaches);
+            allocateHeap();
+            copyToSlots(diskCaches, head);
 
             getAndAddSizeInDisk(-1 * diskCaches.size());
             statistics.getAndAddLoadedFiles(1);
@@ -177,10 +963,198 @@ public class CacheSubPool<T> {
         }
     }
 
+    /**
+     * Must hold takeLock, allocate the slots released when persisted.
+     */
+    private void allocateHeap(){
+        try {
+            putLock.lock();
+            ensureCapacity(tail);
+        }
+        finally {
+            putLock.unlock();
+        }
+    }
+
+    private void copyToSlots(List<T> caches, int from){
+        Object[] array = items;
+        for(int i=0; i<caches.size(); i++){
+            array[from + i] = caches.get(i);
+        }
+    }
+
+    /**
+     * Must hold fullLock.
+     * Decode the objects left in lazyPage to their slots, e.g. before persisting again.
+     * @throws Exception
+     */
+    private void decodeLazyPage() throws Exception {
+        if(null == lazyPage){
+            return;
+        }
+
+        List<T> caches = lazyPage.decodeRemaining();
+        lazyPage = null;
+        copyToSlots(caches, decodedEnd);
+    }
+
+    /**
+     * Load the persisted objects to heap ahead of draining them.
+     * Failed: throw exception;
+     * @throws Exception
+     */
+    public void load() throws Exception {
+        try {
+            takeLock.lock();
+            loadToHeap();
+        }
+        finally {
+            takeLock.unlock();
+        }
+    }
+
     private List<T> retryReadDataToFile(File file) throws Exception {
         return cachePersiter.read(file, objectType);
     }
 
+    /**
+     * Must hold fullLock.
+     * Keep slots [head, tail) compressed in heap and release them, if the CompressedPageTier has room.
+     * @return how much compressed, 0 if the tier is not used or full
+     * @throws Exception
+     */
+    private int compressToTier() throws Exception {
+        CompressedPageTier tier = config.getCompressedPageTier();
+        if(null == tier || tier.getUsedBytes() >= tier.getMaxBytes() || !(cachePersiter instanceof EncodingCachePersiter)){
+            return 0;
+        }
+
+        List<T> caches = view(head, tail);
+        byte[] page = ((EncodingCachePersiter<T>) cachePersiter).encode(caches, firstAddTime, System.currentTimeMillis());
+        recordPage(caches.size(), payloadLength(page, "subPool-" + id), 0);
+        byte[] data = CompressedPageTier.compress(page);
+        if(!tier.tryReserve(data.length)){
+            return 0;
+        }
+
+        compressed = data;
+        compressedLength = page.length;
+        items = null;
+        getAndAddSizeInDisk(caches.size());
+        LOGGER.trace("subPool[" + id + "]: compressed objects in heap: " + caches.size() + ", bytes: " + page.length + " -> " + data.length);
+        return caches.size();
+    }
+
+    private List<T> decompress() throws Exception {
+        byte[] page = CompressedPageTier.decompress(compressed, compressedLength);
+        return ((EncodingCachePersiter<T>) cachePersiter).decode(page, "subPool-" + id, objectType);
+    }
+
+    /**
+     * Must hold takeLock, the objects are not counted in the tier any more.
+     */
+    private void releaseCompressed(){
+        config.getCompressedPageTier().release(compressed.length);
+        compressed = null;
+        compressedLength = 0;
+    }
+
+    /**
+     * Must hold takeLock.
+     * Decode the compressed page to heap, lazily if lazyDecode is set.
+     * @throws Exception
+     */
+    private void promote() throws Exception {
+        int total = sizeInDisk.get();
+        if (config.isLazyDecode()) {
+            byte[] page = CompressedPageTier.decompress(compressed, compressedLength);
+            LazyPage<T> lazy = ((EncodingCachePersiter<T>) cachePersiter).decodeLazy(page, "subPool-" + id, objectType);
+            allocateHeap();
+            lazyPage = lazy;
+            decodedEnd = head;
+        }
+        else {
+            byte[] page = CompressedPageTier.decompress(compressed, compressedLength);
+            List<T> caches = ((EncodingCachePersiter<T>) cachePersiter).decode(page, "subPool-" + id, objectType);
+            allocateHeap();
+            copyToSlots(caches, head);
+            pageObjectBytes = caches.isEmpty() ? 0 : payloadLength(page, "subPool-" + id) / caches.size();
+        }
+
+        getAndAddSizeInDisk(-1 * total);
+        releaseCompressed();
+        config.getCompressedPageTier().promoted();
+        persisted = false;
+        LOGGER.trace("subPool[" + id + "]: promoted compressed objects to heap: " + total);
+    }
+
+    /**
+     * Write the compressed page to a file and release its memory, e.g. under heap pressure.
+     * Success: return how much written, 0 if not compressed;
+     * Failed: throw exception, the page stays compressed;
+     * @return
+     * @throws Exception
+     */
+    public int demote() throws Exception {
+        LOGGER.trace("Enter subPool["+id+"].demote()");
+
+        try {
+            fullLock();
+
+            if (null == compressed) {
+                return 0;
+            }
+
+            byte[] page = CompressedPageTier.decompress(compressed, compressedLength);
+            PageFilePool pool = config.getPageFilePool();
+            File file = null == pool ? new File(getFilePath()) : pool.acquire();
+            long fileSize;
+            try {
+                DirectPageIO direct = config.getDirectPageIO();
+                fileSize = null != direct ? direct.write(file, page) : writePage(file, page);
+            }
+            catch (IOException e){
+                if(null != pool){
+                    pool.release(file);
+                }
+                else {
+                    FileUtils.deleteQuietly(file);
+                }
+                throw e;
+            }
+            pageFile = null == pool ? null : file;
+
+            int total = sizeInDisk.get();
+            statistics.getAndAddCompressedSize(-1 * total);
+            statistics.getAndAddDiskSize(total);
+            releaseCompressed();
+            config.getCompressedPageTier().demoted();
+
+            statistics.getAndAddDiskFileSize(fileSize);
+            statistics.getAndAddPersistedFiles(1);
+            statistics.addPersistedBytes(total, fileSize);
+            return total;
+        }
+        finally {
+            fullUnLock();
+        }
+    }
+
+    /**
+     * Write an encoded page at the start of file without truncating it.
+     * @return the file size
+     */
+    private static long writePage(File file, byte[] page) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.write(page);
+        }
+        finally {
+            raf.close();
+        }
+        return file.length();
+    }
+
     /**
      * Success: return wrote numbers of objects(if no need persist also return 0)
      * Load from disk failed: throw exceptions
@@ -190,21 +1164,25 @@ public class CacheSubPool<T> {
      * @throws Exception
      */
     public int persist() throws Exception {
-        LOGGER.trace("Enter subPool["+id+"].persist(queueSize: "+bufferQueue.size()+")");
+        LOGGER.trace("Enter subPool["+id+"].persist(heapSize: "+getHeapSize()+")");
 
         try {
             fullLock();
 
-            loadToHeap();
-
-            if (bufferQueue.size() < 1) {
+            if (getHeapSize() < 1 || writing) {
                 return 0;
             }
 
+            loadToHeap();
+            decodeLazyPage();
+
             int total = 0;
             try {
-                total = retryNewIdToWriteDataToFile(bufferQueue);
-                LOGGER.trace("subPool["+id+"]: wrote objects to file: "+total);
+                total = compressToTier();
+                if (total < 1) {
+                    total = retryNewIdToWriteDataToFile();
+                    LOGGER.trace("subPool[" + id + "]: wrote objects to file: " + total);
+                }
                 persisted = true;
             } catch (Exception e) {
                 LOGGER.warn("Failed to persist cache: " + e.getMessage(), e);
@@ -218,23 +1196,138 @@ public class CacheSubPool<T> {
     }
 
     /**
+     * Encode the objects in heap and start writing them by io, the objects are released when the write completed,
+     * unless they were drained or cleared meanwhile, the file is then discarded.
+     * Persist by persist() if the persister is not an EncodingCachePersiter.
+     * Load from disk or encode failed: throw exception;
+     * @param io
+     * @return completed with how much persisted, 0 if the write failed
+     * @throws Exception
+     */
+    public CompletableFuture<Integer> persistAsync(AsyncPageIO io) throws Exception {
+        LOGGER.trace("Enter subPool["+id+"].persistAsync(heapSize: "+getHeapSize()+")");
+        if(!(cachePersiter instanceof EncodingCachePersiter)){
+            return CompletableFuture.completedFuture(persist());
+        }
+
+        final int from;
+        final int to;
+        final PageFilePool pool;
+        final File file;
+        byte[] page;
+        try {
+            fullLock();
+
+            if (getHeapSize() < 1 || writing) {
+                return CompletableFuture.completedFuture(0);
+            }
+
+            loadToHeap();
+            decodeLazyPage();
+
+            int total = compressToTier();
+            if(total > 0){
+                persisted = true;
+                return CompletableFuture.completedFuture(total);
+            }
+
+            page = ((EncodingCachePersiter<T>) cachePersiter).encode(view(head, tail), firstAddTime, System.currentTimeMillis());
+            from = head;
+            to = tail;
+            pool = config.getPageFilePool();
+            file = null == pool ? new File(getFilePath()) : pool.acquire();
+            writing = true;
+        }
+        finally {
+            fullUnLock();
+        }
+
+        CompletableFuture<Long> write;
+        try {
+            write = io.write(file, page);
+        }
+        catch (InterruptedException e){
+            completeWrite(file, pool, from, to, 0, 0, e);
+            throw e;
+        }
+
+        final long pageBytes = payloadLength(page, file.getName());
+        return write.handle(new BiFunction<Long, Throwable, Integer>() {
+            public Integer apply(Long fileSize, Throwable error) {
+                return completeWrite(file, pool, from, to, null == fileSize ? 0 : fileSize, pageBytes, error);
+            }
+        });
+    }
+
+    /**
+     * Release slots [from, to) written to file, or discard the file if the write failed or the slots changed.
+     * @param pageBytes payload length of the page, see payloadLength()
+     * @return how much persisted
+     */
+    private int completeWrite(File file, PageFilePool pool, int from, int to, long fileSize, long pageBytes, Throwable error){
+        try {
+            fullLock();
+            writing = false;
+
+            if(null != error || head != from || tail != to || persisted){
+                if(null != error){
+                    LOGGER.warn("Failed to persist subPool[" + id + "]: " + error.getMessage(), error);
+                }
+                else {
+                    LOGGER.trace("subPool[" + id + "]: drained or cleared while written, file discarded.");
+                }
+
+                if(null != pool){
+                    pool.release(file);
+                }
+                else {
+                    FileUtils.deleteQuietly(file);
+                }
+                return 0;
+            }
+
+            int total = to - from;
+            recordPage(total, pageBytes, 0);
+            items = null;
+            pageFile = null == pool ? null : file;
+            persisted = true;
+
+            getAndAddSizeInDisk(total);
+            statistics.getAndAddDiskFileSize(fileSize);
+            statistics.getAndAddPersistedFiles(1);
+            statistics.addPersistedBytes(total, fileSize);
+            LOGGER.trace("subPool["+id+"]: wrote objects to file asynchronously: "+total);
+            return total;
+        }
+        finally {
+            fullUnLock();
+        }
+    }
+
+    /**
+     * Must hold fullLock.
      * Success: return wrote numbers of objects
      * Failed: throw exceptions
-     * @param queue
      * @return
      * @throws Exception
      */
-    private int retryNewIdToWriteDataToFile(BlockingQueue<T> queue) throws Exception {
+    private int retryNewIdToWriteDataToFile() throws Exception {
         int triedTimes = 3;
         IOException exception = null;
         while ((triedTimes --) >0) {
+            PageFilePool pool = config.getPageFilePool();
+            File file = null == pool ? new File(getFilePath()) : pool.acquire();
             try {
-                File file = new File(getFilePath());
-                int total = retryWriteDataToFile(file, bufferQueue);
+                int total = retryWriteDataToFile(file);
+                pageFile = null == pool ? null : file;
                 return total;
             }
             catch (IOException e){
-                refreshId();
+                // partially written, not counted in the disk file size
+                FileUtils.deleteQuietly(file);
+                if(null == pool){
+                    refreshId();
+                }
                 exception = e;
             }
         }
@@ -249,39 +1342,38 @@ public class CacheSubPool<T> {
     }
 
     /**
+     * Must hold fullLock.
+     * Write slots [head, tail) to file and release them.
      * Success: return wrote numbers of objects
-     * Failed: throw exceptions
+     * Failed: throw exceptions, the objects stay in heap
      * @param file
-     * @param queue
      * @return
      * @throws Exception
      */
-    private int retryWriteDataToFile(File file, LinkedBlockingDeque<T> queue) throws Exception {
-
-            ArrayList<T> caches = new ArrayList<T>();
-            queue.drainTo(caches);
-
-            try {
-                long fileSize = cachePersiter.write(file, caches);
-                getAndAddSizeInDisk(caches.size());
-                statistics.getAndAddDiskFileSize(fileSize);
-                statistics.getAndAddPersistedFiles(1);
-                return caches.size();
-            }
-            catch (Exception e){
-                addListToQueueHead(queue, caches);
-                throw e;
-            }
-    }
+    private int retryWriteDataToFile(File file) throws Exception {
+        List<T> caches = view(head, tail);
 
-    protected void addListToQueueHead(LinkedBlockingDeque<T> queue, List<T> caches){
-        LOGGER.trace("Enter subPool["+id+"].addListToPoolHead(size: "+caches.size()+")");
-        if(caches.size() < 1) {
-            return;
+        long start = System.nanoTime();
+        long fileSize;
+        long pageBytes;
+        DirectPageIO direct = config.getDirectPageIO();
+        if(null != direct && cachePersiter instanceof EncodingCachePersiter){
+            byte[] page = ((EncodingCachePersiter<T>) cachePersiter).encode(caches, firstAddTime, System.currentTimeMillis());
+            fileSize = direct.write(file, page);
+            pageBytes = payloadLength(page, file.getName());
         }
-
-        for (int i=caches.size()-1; i>=0; i--){
-            queue.addFirst(caches.get(i));
+        else {
+            fileSize = cachePersiter.write(file, caches, firstAddTime, System.currentTimeMillis());
+            pageBytes = null == config.getPageSizer() ? fileSize : payloadLength(file);
         }
+        int total = caches.size();
+        recordPage(total, pageBytes, start);
+        items = null;
+
+        getAndAddSizeInDisk(total);
+        statistics.getAndAddDiskFileSize(fileSize);
+        statistics.getAndAddPersistedFiles(1);
+        statistics.addPersistedBytes(total, fileSize);
+        return total;
     }
 }
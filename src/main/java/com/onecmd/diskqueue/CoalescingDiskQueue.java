@@ -0,0 +1,400 @@
+package com.onecmd.diskqueue;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * FIFO queue where each object has a key and a newer object replaces the pending older one of the same key:
+ * the older one is marked superseded in the tombstones of its sub pool and discarded when drained,
+ * the newer one is delivered at its own position.
+ * Pages loaded from disk are decoded lazily (CacheConfig.setLazyDecode), so superseded objects are skipped without decoding.
+ * The key index is an off-heap open addressing map from key to page and slot.
+ */
+public class CoalescingDiskQueue<T> {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(CoalescingDiskQueue.class);
+
+    private static final long NO_LOCATION = -1;
+
+    private String name;
+    private Class<T> objectType;
+    private CacheConfig config;
+    private CacheStatistics statistics;
+
+    private ArrayDeque<Page<T>> pages = new ArrayDeque<>();
+    private HashMap<Long, Page<T>> pagesBySeq = new HashMap<>();
+    private long nextSeq = 0;
+
+    /**
+     * key -> page seq << 32 | slot
+     */
+    private OffHeapLongLongMap index = new OffHeapLongLongMap(1024);
+
+    private Lock lock = new ReentrantLock();
+
+    public CoalescingDiskQueue(String name, Class<T> objectType, int capacity, int heapCapacity, long maxDiskSizeInMB, int filePageSize, boolean usingDisk, String diskCacheFileRoot){
+        this.name = name;
+        this.objectType = objectType;
+        statistics = new CacheStatistics();
+
+        config = CacheConfig.create(name, capacity, heapCapacity, maxDiskSizeInMB, filePageSize, usingDisk, diskCacheFileRoot);
+        config.setLazyDecode(true);
+        config.initDiskStorage();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public CacheConfig getConfig() {
+        return config;
+    }
+
+    public CacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Objects stored, superseded objects not discarded yet included.
+     * @return
+     */
+    public int size(){
+        return statistics.getCacheSize();
+    }
+
+    /**
+     * @return number of keys having a pending object
+     */
+    public int getKeySize(){
+        try {
+            lock.lock();
+            return index.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public int getHeapSize(){
+        return statistics.getHeapSize();
+    }
+
+    public boolean isEmpty(){
+        return getKeySize()<1;
+    }
+
+    public boolean isDiskFull(){
+        return statistics.getDiskFileSize() >= config.getMaxDiskSize();
+    }
+
+    /**
+     * @return bytes of the key index out of the java heap
+     */
+    public long getIndexOffHeapBytes(){
+        try {
+            lock.lock();
+            return index.getOffHeapBytes();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Add obj, the pending object of the same key is superseded.
+     * Success: return true;
+     * Queue full, heap full or disk full: return false, the pending object is kept;
+     * @param key
+     * @param obj
+     * @return
+     */
+    public boolean add(long key, T obj){
+        LOGGER.trace("Enter add(key=" + key + ")");
+        if(null == obj){
+            throw new NullPointerException("Parameter obj should not be NULL.");
+        }
+
+        try {
+            lock.lock();
+
+            if(size() >= config.getCapacity()){
+                LOGGER.warn("Failed to add to queue[name=" + name + "]: queue full: capacity=" + config.getCapacity() + ", size: " + size());
+                return false;
+            }
+
+            if(getHeapSize() >= config.getHeapCapacity()){
+                spill();
+            }
+            if(getHeapSize() >= config.getHeapCapacity()){
+                LOGGER.warn("Failed to add to queue[name=" + name + "]: heap full: heapCapacity=" + config.getHeapCapacity() + ", heapSize=" + getHeapSize()
+                        + ", diskFull=" + isDiskFull());
+                return false;
+            }
+
+            Page<T> page = getWritePage();
+            int slot = page.pool.getTail();
+            page.pool.add(obj);
+            page.setKey(slot, key);
+            statistics.getAndAddCacheSize(1);
+
+            long prev = index.put(key, page.seq << 32 | slot, NO_LOCATION);
+            if(prev != NO_LOCATION){
+                Page<T> prevPage = pagesBySeq.get(prev >>> 32);
+                if(null != prevPage){
+                    prevPage.pool.supersede((int) prev);
+                }
+            }
+            return true;
+        }
+        catch (Exception e){
+            LOGGER.error("Failed to add to queue[name=" + name + "]: " + e.getMessage(), e);
+            return false;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Must hold lock.
+     * @return
+     */
+    private Page<T> getWritePage(){
+        Page<T> last = pages.peekLast();
+        if(null == last || last.pool.isFull() || last.pool.isPersisted()){
+            CacheSubPool<T> pool = new CacheSubPool<T>(config.getNewSubPoolId(), config, statistics, objectType);
+            last = new Page<T>(nextSeq++, pool, config.getPageSize());
+            pages.addLast(last);
+            pagesBySeq.put(last.seq, last);
+        }
+        return last;
+    }
+
+    /**
+     * Must hold lock.
+     * Persist the newest pages first except the head page, until the heap size is a page below heap capacity.
+     */
+    private void spill(){
+        if(!config.isUsingDisk()){
+            return;
+        }
+
+        Page<T> head = pages.peekFirst();
+        Iterator<Page<T>> iter = pages.descendingIterator();
+        while (iter.hasNext() && !isDiskFull()){
+            if(getHeapSize() + config.getPageSize() <= config.getHeapCapacity()){
+                break;
+            }
+
+            Page<T> page = iter.next();
+            if(page == head){
+                break;
+            }
+            if(page.pool.getHeapSize() < 1){
+                continue;
+            }
+
+            try {
+                if(page.pool.persist() < 1){
+                    break;
+                }
+            }
+            catch (Exception e){
+                LOGGER.warn("Failed to persist subPool[" + page.pool.getId() + "]: " + e.getMessage(), e);
+                break;
+            }
+
+            if(page.isKeysPersisted()){
+                continue;
+            }
+            try {
+                statistics.getAndAddDiskFileSize(page.persistKeys(getKeysFile(page), page.pool.getTail()));
+            }
+            catch (IOException e){
+                LOGGER.warn("Failed to persist keys of subPool[" + page.pool.getId() + "], kept in heap: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Superseded objects are discarded, persisted pages having only superseded objects are deleted without being read.
+     * Success: return how much drained;
+     * Failed: throw exception;
+     * @param list
+     * @param fetchSize
+     * @return
+     * @throws Exception
+     */
+    public int drainTo(List<T> list, int fetchSize) throws Exception {
+        if(null == list){
+            throw new NullPointerException("Parameter list should not be NULL.");
+        }
+
+        int total = 0;
+        try {
+            lock.lock();
+
+            Page<T> page;
+            while (total < fetchSize && null != (page = pages.peekFirst())){
+                if(page.isKeysPersisted()){
+                    statistics.getAndAddDiskFileSize(-1 * page.loadKeys(getKeysFile(page)));
+                }
+
+                int from = page.pool.getHead();
+                try {
+                    total += page.pool.drainTo(list, fetchSize - total);
+                }
+                finally {
+                    int to = page.pool.getHead();
+                    for(int slot=from; slot<to; slot++){
+                        index.remove(page.getKey(slot), page.seq << 32 | slot);
+                    }
+                    statistics.getAndAddCacheSize(-1 * (to - from));
+                }
+
+                if(page.pool.size() > 0){
+                    break;
+                }
+                if(page == pages.peekLast() && !page.pool.isFull()){
+                    break;
+                }
+                pages.pollFirst();
+                pagesBySeq.remove(page.seq);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+
+        LOGGER.trace("Exit drainTo(fetchSize=" + fetchSize + ", drained=" + total + ")");
+        return total;
+    }
+
+    /**
+     * @return the head object, null if the queue is empty
+     * @throws Exception
+     */
+    public T poll() throws Exception {
+        ArrayList<T> list = new ArrayList<>(1);
+        drainTo(list, 1);
+        return list.isEmpty() ? null : list.get(0);
+    }
+
+    public void clear(){
+        LOGGER.trace("Enter clear()");
+        try {
+            lock.lock();
+
+            for(Page<T> page : pages){
+                page.pool.clear();
+                if(page.isKeysPersisted()){
+                    File file = getKeysFile(page);
+                    statistics.getAndAddDiskFileSize(-1 * file.length());
+                    FileUtils.deleteQuietly(file);
+                }
+            }
+            pages.clear();
+            pagesBySeq.clear();
+            index.clear();
+
+            statistics.getAndAddCacheSize(-1 * statistics.getCacheSize());
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param page
+     * @return file of the keys of a persisted page
+     */
+    private File getKeysFile(Page<T> page){
+        return new File(config.getDiskCacheFileRoot() + File.separator + page.seq + ".keys");
+    }
+
+    public String getSummary(){
+        return config.toString() + ", keys=" + getKeySize() + ", " + statistics.toString();
+    }
+
+    /**
+     * A sub pool and the keys of its slots, the keys are written to a file next to the page when it is persisted
+     * and read back when the page is drained.
+     */
+    private static class Page<T> {
+        private long seq;
+        private CacheSubPool<T> pool;
+
+        /**
+         * null when persisted
+         */
+        private long[] keys;
+
+        Page(long seq, CacheSubPool<T> pool, int pageSize){
+            this.seq = seq;
+            this.pool = pool;
+            this.keys = new long[Math.max(1, pageSize)];
+        }
+
+        void setKey(int slot, long key){
+            if(slot >= keys.length){
+                keys = Arrays.copyOf(keys, Math.max(slot + 1, keys.length * 2));
+            }
+            keys[slot] = key;
+        }
+
+        long getKey(int slot){
+            return keys[slot];
+        }
+
+        boolean isKeysPersisted(){
+            return null == keys;
+        }
+
+        /**
+         * Write the keys of slots [0, tail) to file and release them from heap.
+         * Success: return bytes written;
+         * Failed: throw exception, the keys are kept in heap;
+         * @param file
+         * @param tail
+         * @return
+         * @throws IOException
+         */
+        long persistKeys(File file, int tail) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(tail * 8);
+            buffer.asLongBuffer().put(keys, 0, tail);
+            Files.write(file.toPath(), buffer.array());
+            keys = null;
+            return buffer.capacity();
+        }
+
+        /**
+         * Read the keys back and delete the file.
+         * Success: return bytes read;
+         * Failed: throw exception;
+         * @param file
+         * @return
+         * @throws IOException
+         */
+        long loadKeys(File file) throws IOException {
+            byte[] data = Files.readAllBytes(file.toPath());
+            long[] loaded = new long[Math.max(1, data.length / 8)];
+            ByteBuffer.wrap(data).asLongBuffer().get(loaded, 0, data.length / 8);
+            keys = loaded;
+            FileUtils.deleteQuietly(file);
+            return data.length;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.onecmd.diskqueue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Memory budget of the pages kept compressed in heap instead of written to disk, shared by the sub pools of a queue.
+ * A persisted page goes to this tier while the budget allows it, otherwise to disk;
+ * it is promoted to heap objects when drained and demoted to disk under heap pressure, see DiskQueue.spillColdPages().
+ * Pages are encoded by the persister and compressed by Deflater, JSON pages usually shrink 5-10 times.
+ */
+public class CompressedPageTier {
+
+    private long maxBytes;
+    private AtomicLong usedBytes = new AtomicLong(0);
+    private AtomicLong compressedPages = new AtomicLong(0);
+    private AtomicLong promotedPages = new AtomicLong(0);
+    private AtomicLong demotedPages = new AtomicLong(0);
+
+    public CompressedPageTier(long maxBytes){
+        this.maxBytes = maxBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    public long getCompressedPages() {
+        return compressedPages.get();
+    }
+
+    public long getPromotedPages() {
+        return promotedPages.get();
+    }
+
+    public long getDemotedPages() {
+        return demotedPages.get();
+    }
+
+    /**
+     * @param bytes
+     * @return false if the budget is exceeded
+     */
+    boolean tryReserve(long bytes){
+        while (true){
+            long used = usedBytes.get();
+            if(used + bytes > maxBytes){
+                return false;
+            }
+            if(usedBytes.compareAndSet(used, used + bytes)){
+                compressedPages.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param bytes reserved by tryReserve()
+     */
+    void release(long bytes){
+        usedBytes.getAndAdd(-1 * bytes);
+    }
+
+    void promoted(){
+        promotedPages.incrementAndGet();
+    }
+
+    void demoted(){
+        demotedPages.incrementAndGet();
+    }
+
+    public static byte[] compress(byte[] data){
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()){
+                int length = deflater.deflate(buffer);
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param compressed
+     * @param length length before compressed
+     * @return
+     * @throws IOException
+     */
+    public static byte[] decompress(byte[] compressed, int length) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] data = new byte[length];
+            int offset = 0;
+            while (offset < length && !inflater.finished()){
+                int read = inflater.inflate(data, offset, length - offset);
+                if(read == 0 && (inflater.needsInput() || inflater.needsDictionary())){
+                    break;
+                }
+                offset += read;
+            }
+            if(offset != length){
+                throw new CorruptedPageException("Compressed page damaged: length=" + offset + ", expected=" + length);
+            }
+            return data;
+        }
+        catch (DataFormatException e){
+            throw new CorruptedPageException("Compressed page damaged: " + e.getMessage(), e);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    public String toString(){
+        return "maxBytes=" + maxBytes + ", usedBytes=" + usedBytes.get() + ", pages=" + compressedPages.get()
+                + ", promoted=" + promotedPages.get() + ", demoted=" + demotedPages.get();
+    }
+}
@@ -0,0 +1,20 @@
+package com.onecmd.diskqueue;
+
+import java.io.IOException;
+
+/**
+ * A page file whose header or checksum does not match its content, reading it again does not help.
+ * CacheSubPool moves such a file to the quarantine folder and counts its objects as lost.
+ */
+public class CorruptedPageException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CorruptedPageException(String message) {
+        super(message);
+    }
+
+    public CorruptedPageException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
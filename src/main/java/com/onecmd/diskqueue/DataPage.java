@@ -0,0 +1,61 @@
+package com.onecmd.diskqueue;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A page of AbstractDataPageQueue: values stored in an array instead of objects,
+ * written to disk without serializer.
+ */
+public abstract class DataPage {
+
+    private long id;
+    private boolean persisted = false;
+
+    protected DataPage(long id){
+        this.id = id;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public boolean isPersisted() {
+        return persisted;
+    }
+
+    protected void setPersisted(boolean persisted) {
+        this.persisted = persisted;
+    }
+
+    /**
+     * @return number of values not drained, in heap or in disk
+     */
+    public abstract int size();
+
+    /**
+     * @return how much values can still be added
+     */
+    public abstract int getFreeSize();
+
+    public boolean isFull(){
+        return getFreeSize() < 1;
+    }
+
+    /**
+     * @return bytes needed by writeTo()
+     */
+    public abstract long getByteSize();
+
+    /**
+     * Write the values not drained and release their memory, size() is not changed.
+     * @param buffer little-endian
+     */
+    protected abstract void writeTo(ByteBuffer buffer);
+
+    /**
+     * Restore the values written by writeTo().
+     * @param buffer little-endian
+     * @param count
+     */
+    protected abstract void readFrom(ByteBuffer buffer, int count);
+}
@@ -0,0 +1,333 @@
+package com.onecmd.diskqueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue delivering objects not before their delivery time, e.g. retries.
+ * Objects are put in time buckets of bucketMillis, a bucket is due when its end time is reached,
+ * objects of a due bucket are delivered in FIFO order.
+ * When heap is full, the buckets farthest in the future are persisted first.
+ * A timer loads the persisted pages of buckets due within prefetchMillis while the heap has room,
+ * pages not loaded by then are loaded when drained.
+ */
+public class DelayedDiskQueue<T> {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(DelayedDiskQueue.class);
+
+    private static final long MAX_PREFETCH_INTERVAL_MILLIS = 1000;
+
+    private String name;
+    private Class<T> objectType;
+    private CacheConfig config;
+    private CacheStatistics statistics;
+
+    private long bucketMillis;
+    private volatile long prefetchMillis;
+
+    /**
+     * Bucket end time -> objects delivered at that time.
+     */
+    private TreeMap<Long, SubPoolChain<T>> buckets = new TreeMap<>();
+
+    private Lock lock = new ReentrantLock();
+
+    /**
+     * Runs prefetch() every bucketMillis, at most every MAX_PREFETCH_INTERVAL_MILLIS, null if not using disk.
+     */
+    private ScheduledExecutorService prefetchThread = null;
+
+    /**
+     * @param name
+     * @param objectType
+     * @param capacity
+     * @param heapCapacity
+     * @param maxDiskSizeInMB
+     * @param filePageSize
+     * @param usingDisk
+     * @param bucketMillis width of a time bucket, delivery is up to bucketMillis late
+     * @param diskCacheFileRoot
+     */
+    public DelayedDiskQueue(String name, Class<T> objectType, int capacity, int heapCapacity, long maxDiskSizeInMB, int filePageSize, boolean usingDisk, long bucketMillis, String diskCacheFileRoot){
+        if(bucketMillis < 1){
+            throw new IllegalArgumentException("Parameter bucketMillis should be greater than 0: " + bucketMillis);
+        }
+
+        this.name = name;
+        this.objectType = objectType;
+        this.bucketMillis = bucketMillis;
+        this.prefetchMillis = bucketMillis;
+        statistics = new CacheStatistics();
+
+        config = CacheConfig.create(name, capacity, heapCapacity, maxDiskSizeInMB, filePageSize, usingDisk, diskCacheFileRoot);
+        config.initDiskStorage();
+
+        if(config.isUsingDisk()){
+            long interval = Math.min(bucketMillis, MAX_PREFETCH_INTERVAL_MILLIS);
+            prefetchThread = Executors.newSingleThreadScheduledExecutor(new DiskQueueManager.DaemonThreadFactory("DelayedDiskQueue-prefetch-" + name));
+            prefetchThread.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        lock.lock();
+                        prefetch(System.currentTimeMillis());
+                    }
+                    finally {
+                        lock.unlock();
+                    }
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public CacheConfig getConfig() {
+        return config;
+    }
+
+    public CacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    public long getBucketMillis() {
+        return bucketMillis;
+    }
+
+    public long getPrefetchMillis() {
+        return prefetchMillis;
+    }
+
+    /**
+     * Persisted pages of buckets due within prefetchMillis are loaded by a timer before they are due,
+     * while the heap size stays a page below heap capacity.
+     * Default is bucketMillis.
+     * @param prefetchMillis
+     */
+    public void setPrefetchMillis(long prefetchMillis) {
+        this.prefetchMillis = prefetchMillis;
+    }
+
+    public int size(){
+        return statistics.getCacheSize();
+    }
+
+    public int getHeapSize(){
+        return statistics.getHeapSize();
+    }
+
+    public boolean isEmpty(){
+        return size()<1;
+    }
+
+    public boolean isDiskFull(){
+        return statistics.getDiskFileSize() >= config.getMaxDiskSize();
+    }
+
+    /**
+     * Deliver obj after delay.
+     * @param obj
+     * @param delay
+     * @param unit
+     * @return
+     */
+    public boolean add(T obj, long delay, TimeUnit unit){
+        return add(obj, System.currentTimeMillis() + unit.toMillis(delay));
+    }
+
+    /**
+     * Deliver obj not before deliverAt.
+     * Success: return true;
+     * Queue full, heap full or disk full: return false;
+     * @param obj
+     * @param deliverAt time in milliseconds
+     * @return
+     */
+    public boolean add(T obj, long deliverAt){
+        LOGGER.trace("Enter add(deliverAt=" + deliverAt + ")");
+        if(null == obj){
+            throw new NullPointerException("Parameter obj should not be NULL.");
+        }
+
+        try {
+            lock.lock();
+
+            if(size() >= config.getCapacity()){
+                LOGGER.warn("Failed to add to queue[name=" + name + "]: queue full: capacity=" + config.getCapacity() + ", size: " + size());
+                return false;
+            }
+
+            if(getHeapSize() >= config.getHeapCapacity()){
+                spill();
+            }
+            if(getHeapSize() >= config.getHeapCapacity()){
+                LOGGER.warn("Failed to add to queue[name=" + name + "]: heap full: heapCapacity=" + config.getHeapCapacity() + ", heapSize=" + getHeapSize()
+                        + ", diskFull=" + isDiskFull());
+                return false;
+            }
+
+            long bucket = getBucket(deliverAt);
+            SubPoolChain<T> chain = buckets.get(bucket);
+            if(null == chain){
+                chain = new SubPoolChain<T>(config, statistics, objectType);
+                buckets.put(bucket, chain);
+            }
+            chain.add(obj);
+            return true;
+        }
+        catch (Exception e){
+            LOGGER.error("Failed to add to queue[name=" + name + "]: " + e.getMessage(), e);
+            return false;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * End time of the bucket of deliverAt, objects are not delivered earlier.
+     * @param deliverAt
+     * @return
+     */
+    private long getBucket(long deliverAt){
+        long index = deliverAt / bucketMillis;
+        if(deliverAt % bucketMillis > 0){
+            index++;
+        }
+        return index * bucketMillis;
+    }
+
+    /**
+     * Must hold lock.
+     * Persist the buckets farthest in the future first, until the heap size is a page below heap capacity.
+     */
+    private void spill(){
+        if(!config.isUsingDisk()){
+            return;
+        }
+
+        Iterator<Map.Entry<Long, SubPoolChain<T>>> iter = buckets.descendingMap().entrySet().iterator();
+        while (iter.hasNext() && !isDiskFull()){
+            int excess = getHeapSize() + config.getPageSize() - config.getHeapCapacity();
+            if(excess <= 0){
+                break;
+            }
+
+            iter.next().getValue().spill(excess);
+        }
+    }
+
+    /**
+     * Must hold lock.
+     * Load the persisted pages of buckets due within prefetchMillis, the earliest first,
+     * while the heap size stays a page below heap capacity.
+     * @param now
+     */
+    private void prefetch(long now){
+        long loadBefore = now + prefetchMillis;
+        for(Map.Entry<Long, SubPoolChain<T>> entry : buckets.entrySet()){
+            int room = config.getHeapCapacity() - config.getPageSize() - getHeapSize();
+            if(entry.getKey() > loadBefore || room < 1){
+                break;
+            }
+            entry.getValue().prefetch(room);
+        }
+    }
+
+    /**
+     * Drain objects of due buckets.
+     * Success: return how much drained;
+     * Failed: throw exception;
+     * @param list
+     * @param fetchSize
+     * @return
+     * @throws Exception
+     */
+    public int drainTo(List<T> list, int fetchSize) throws Exception {
+        if(null == list){
+            throw new NullPointerException("Parameter list should not be NULL.");
+        }
+
+        int total = 0;
+        try {
+            lock.lock();
+
+            long now = System.currentTimeMillis();
+            Iterator<Map.Entry<Long, SubPoolChain<T>>> iter = buckets.entrySet().iterator();
+            while (total < fetchSize && iter.hasNext()){
+                Map.Entry<Long, SubPoolChain<T>> entry = iter.next();
+                if(entry.getKey() > now){
+                    break;
+                }
+
+                total += entry.getValue().drainTo(list, fetchSize - total);
+                if(entry.getValue().isEmpty()){
+                    iter.remove();
+                }
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+
+        LOGGER.trace("Exit drainTo(fetchSize=" + fetchSize + ", drained=" + total + ")");
+        return total;
+    }
+
+    /**
+     * @return a due object, null if none is due
+     * @throws Exception
+     */
+    public T poll() throws Exception {
+        ArrayList<T> list = new ArrayList<>(1);
+        drainTo(list, 1);
+        return list.isEmpty() ? null : list.get(0);
+    }
+
+    /**
+     * @return milliseconds until the next bucket is due, 0 if due now, -1 if the queue is empty
+     */
+    public long getDelayMillis(){
+        try {
+            lock.lock();
+
+            if(buckets.isEmpty()){
+                return -1;
+            }
+            return Math.max(0, buckets.firstKey() - System.currentTimeMillis());
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear(){
+        LOGGER.trace("Enter clear()");
+        try {
+            lock.lock();
+
+            for(SubPoolChain<T> chain : buckets.values()){
+                chain.clear();
+            }
+            buckets.clear();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public String getSummary(){
+        return config.toString() + ", bucketMillis=" + bucketMillis + ", buckets=" + buckets.size() + ", " + statistics.toString();
+    }
+}
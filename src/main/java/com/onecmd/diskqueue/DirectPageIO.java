@@ -0,0 +1,259 @@
+package com.onecmd.diskqueue;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Page files written and read bypassing the OS page cache, a page is written once and read once,
+ * caching it only evicts data the application needs.
+ * Uses ExtendedOpenOption.DIRECT (Linux, JDK 10+) with buffers aligned to the block size of the file store,
+ * a page is padded with zeros to the block size, readers stop at the payload length of the PageHeader.
+ * If DIRECT is not supported by the JDK or the file system, e.g. tmpfs or JDK 8, files are written normally through the page cache:
+ * posix_fadvise(POSIX_FADV_DONTNEED) cannot be called from Java without native code, and flushing every page would only add an fsync to the persist path.
+ */
+public class DirectPageIO {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(DirectPageIO.class);
+
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+    private static final int MAX_FREE_BUFFERS = 4;
+    private static final String PROBE_FILE = "direct-io.probe";
+
+    private static final OpenOption DIRECT = loadDirect();
+    private static final Method ALIGNED_SLICE = loadMethod(ByteBuffer.class, "alignedSlice", int.class);
+    private static final Method BLOCK_SIZE = loadMethod(FileStore.class, "getBlockSize");
+
+    private boolean direct;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private ArrayBlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(MAX_FREE_BUFFERS);
+
+    /**
+     * @param folder where the page files are, DIRECT is probed by writing a file in it
+     */
+    public DirectPageIO(File folder){
+        if(null == DIRECT || null == ALIGNED_SLICE || null == BLOCK_SIZE){
+            LOGGER.info("Direct I/O not supported by this JDK, page files are written through the page cache.");
+            return;
+        }
+
+        try {
+            folder.mkdirs();
+            FileStore store = Files.getFileStore(folder.toPath());
+            long size = (Long) BLOCK_SIZE.invoke(store);
+            if(size > 0 && size <= 1024 * 1024 && Long.bitCount(size) == 1){
+                blockSize = (int) size;
+            }
+            direct = probe(new File(folder, PROBE_FILE));
+        }
+        catch (Exception e){
+            LOGGER.info("Direct I/O not supported in " + folder.getPath() + ", page files are written through the page cache: " + e);
+        }
+    }
+
+    private static OpenOption loadDirect(){
+        try {
+            Class<?> type = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+            for(Object option : type.getEnumConstants()){
+                if("DIRECT".equals(((Enum<?>) option).name())){
+                    return (OpenOption) option;
+                }
+            }
+        }
+        catch (Exception e){
+            LOGGER.debug("ExtendedOpenOption not found: " + e.getMessage());
+        }
+        return null;
+    }
+
+    private static Method loadMethod(Class<?> type, String name, Class<?>... parameterTypes){
+        try {
+            return type.getMethod(name, parameterTypes);
+        }
+        catch (Exception e){
+            LOGGER.debug(type.getSimpleName() + "." + name + "() not found: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private boolean probe(File file) throws IOException {
+        try {
+            FileChannel channel = FileChannel.open(file.toPath(), options(true, StandardOpenOption.CREATE, StandardOpenOption.WRITE));
+            try {
+                ByteBuffer buffer = allocate(blockSize, true);
+                while (buffer.hasRemaining()){
+                    channel.write(buffer, buffer.position());
+                }
+            }
+            finally {
+                channel.close();
+            }
+            return true;
+        }
+        finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    /**
+     * @return false if files are written normally through the page cache
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @param length
+     * @return length rounded up to the block size if DIRECT is used, otherwise length
+     */
+    public int align(int length){
+        if(!direct){
+            return length;
+        }
+        return (int) (((long) length + blockSize - 1) / blockSize * blockSize);
+    }
+
+    /**
+     * @param capacity
+     * @return a direct buffer, its address aligned to the block size if DIRECT is used
+     */
+    public ByteBuffer allocate(int capacity){
+        return allocate(capacity, direct);
+    }
+
+    private ByteBuffer allocate(int capacity, boolean aligned){
+        if(!aligned){
+            return ByteBuffer.allocateDirect(capacity);
+        }
+
+        try {
+            ByteBuffer buffer = (ByteBuffer) ALIGNED_SLICE.invoke(ByteBuffer.allocateDirect(capacity + blockSize), blockSize);
+            buffer.limit(capacity);
+            return buffer;
+        }
+        catch (Exception e){
+            throw new IllegalStateException("Failed to align buffer: " + e.getMessage(), e);
+        }
+    }
+
+    public Set<OpenOption> getWriteOptions(){
+        return options(direct, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    public Set<OpenOption> getReadOptions(){
+        return options(direct, StandardOpenOption.READ);
+    }
+
+    private static Set<OpenOption> options(boolean useDirect, OpenOption... standard){
+        HashSet<OpenOption> options = new HashSet<>();
+        Collections.addAll(options, standard);
+        if(useDirect){
+            options.add(DIRECT);
+        }
+        return options;
+    }
+
+    private ByteBuffer takeBuffer(int size){
+        ByteBuffer buffer = buffers.poll();
+        if(null == buffer || buffer.capacity() < size){
+            buffer = allocate(Math.max(size, 64 * 1024));
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Write page at the start of file, an existing file is not truncated.
+     * @param file
+     * @param page
+     * @return the file size
+     * @throws IOException
+     */
+    public long write(File file, byte[] page) throws IOException {
+        int length = align(page.length);
+        ByteBuffer buffer = takeBuffer(length);
+        try {
+            buffer.put(page);
+            while (buffer.position() < length){
+                buffer.put((byte) 0);
+            }
+            buffer.flip();
+
+            FileChannel channel = FileChannel.open(file.toPath(), getWriteOptions());
+            try {
+                while (buffer.hasRemaining()){
+                    channel.write(buffer, buffer.position());
+                }
+            }
+            finally {
+                channel.close();
+            }
+        }
+        finally {
+            buffers.offer(buffer);
+        }
+        return file.length();
+    }
+
+    /**
+     * Read the whole file, including the padding after the payload if written by DIRECT.
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public byte[] readPage(File file) throws IOException {
+        if(!direct){
+            return PageHeader.readPage(file);
+        }
+
+        long fileLength = file.length();
+        if(fileLength > Integer.MAX_VALUE - blockSize){
+            throw new IOException("File too large: " + file.getName() + ", size=" + fileLength);
+        }
+
+        ByteBuffer buffer = takeBuffer(align((int) fileLength));
+        try {
+            buffer.limit(align((int) fileLength));
+            FileChannel channel = FileChannel.open(file.toPath(), getReadOptions());
+            try {
+                while (buffer.position() < fileLength){
+                    if(channel.read(buffer, buffer.position()) < 0){
+                        break;
+                    }
+                }
+            }
+            finally {
+                channel.close();
+            }
+
+            buffer.flip();
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            return data;
+        }
+        finally {
+            buffers.offer(buffer);
+        }
+    }
+
+    public String toString(){
+        return "direct=" + direct + ", blockSize=" + blockSize;
+    }
+}
@@ -0,0 +1,205 @@
+package com.onecmd.diskqueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * FIFO queue of already serialized objects, e.g. protobuf bytes.
+ * Byte arrays are stored as they are, in disk each one is prefixed by its length.
+ */
+public class DiskByteArrayQueue extends AbstractDataPageQueue<DiskByteArrayQueue.BytesPage> {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(DiskByteArrayQueue.class);
+
+    public DiskByteArrayQueue(String name, int capacity, int heapCapacity, long maxDiskSizeInMB, int filePageSize, boolean usingDisk, String diskCacheFileRoot){
+        super(name, capacity, heapCapacity, maxDiskSizeInMB, filePageSize, usingDisk, diskCacheFileRoot);
+    }
+
+    @Override
+    protected BytesPage createPage(long id, int capacity) {
+        return new BytesPage(id, capacity);
+    }
+
+    /**
+     * The array is stored without copy, it should not be changed after added.
+     * @param value
+     * @return
+     */
+    public boolean add(byte[] value){
+        if(null == value){
+            throw new NullPointerException("Parameter value should not be NULL.");
+        }
+        return addAll(Collections.singletonList(value)) == 1;
+    }
+
+    /**
+     * Add values in order until the queue is full, the arrays are stored without copy.
+     * @param values
+     * @return how much added
+     */
+    public int addAll(List<byte[]> values){
+        LOGGER.trace("Enter addAll(size=" + values.size() + ")");
+        for(byte[] value : values){
+            if(null == value){
+                throw new NullPointerException("Parameter values should not contain NULL.");
+            }
+            if(value.length > MAX_PAGE_BYTES - 4){
+                throw new IllegalArgumentException("Value too large: " + value.length + " bytes, max=" + (MAX_PAGE_BYTES - 4));
+            }
+        }
+
+        int total = 0;
+        try {
+            lock.lock();
+
+            while (total < values.size()){
+                int room = prepareWrite();
+                if(room < 1){
+                    break;
+                }
+
+                BytesPage page = getWritePage();
+                int count = page.fit(values, total, Math.min(Math.min(room, page.getFreeSize()), values.size() - total));
+                if(count < 1){
+                    page.close();
+                    continue;
+                }
+                page.add(values, total, count);
+                added(count);
+                total += count;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        return total;
+    }
+
+    /**
+     * Success: return how much drained;
+     * Failed: throw exception;
+     * @param list
+     * @param fetchSize
+     * @return
+     * @throws IOException
+     */
+    public int drainTo(List<byte[]> list, int fetchSize) throws IOException {
+        if(null == list){
+            throw new NullPointerException("Parameter list should not be NULL.");
+        }
+
+        int total = 0;
+        try {
+            lock.lock();
+
+            BytesPage page;
+            while (total < fetchSize && null != (page = getReadPage(total))){
+                total += page.drainTo(list, fetchSize - total);
+            }
+            removed(total);
+        }
+        finally {
+            lock.unlock();
+        }
+        return total;
+    }
+
+    /**
+     * @return the head value, null if the queue is empty
+     * @throws IOException
+     */
+    public byte[] poll() throws IOException {
+        ArrayList<byte[]> list = new ArrayList<>(1);
+        drainTo(list, 1);
+        return list.isEmpty() ? null : list.get(0);
+    }
+
+    static class BytesPage extends DataPage {
+        private int capacity;
+        private byte[][] values;
+        private int head = 0;
+        private int tail = 0;
+        private long byteSize = 0;
+
+        BytesPage(long id, int capacity){
+            super(id);
+            this.capacity = capacity;
+            this.values = new byte[capacity][];
+        }
+
+        public int size(){
+            return tail - head;
+        }
+
+        public int getFreeSize(){
+            return capacity - tail;
+        }
+
+        public long getByteSize(){
+            return byteSize;
+        }
+
+        /**
+         * @return how much of src[offset, offset + length) can be added without exceeding MAX_PAGE_BYTES
+         */
+        int fit(List<byte[]> src, int offset, int length){
+            long bytes = byteSize;
+            int count = 0;
+            while (count < length && (bytes += 4 + src.get(offset + count).length) <= MAX_PAGE_BYTES){
+                count++;
+            }
+            return count;
+        }
+
+        /**
+         * Take no more values, the next values go to a new page.
+         */
+        void close(){
+            capacity = tail;
+        }
+
+        void add(List<byte[]> src, int offset, int length){
+            for(int i=0; i<length; i++){
+                byte[] value = src.get(offset + i);
+                values[tail++] = value;
+                byteSize += 4 + value.length;
+            }
+        }
+
+        int drainTo(List<byte[]> dst, int fetchSize){
+            int count = Math.min(fetchSize, size());
+            for(int i=0; i<count; i++){
+                byte[] value = values[head];
+                values[head++] = null;
+                byteSize -= 4 + value.length;
+                dst.add(value);
+            }
+            return count;
+        }
+
+        protected void writeTo(ByteBuffer buffer){
+            for(int i=head; i<tail; i++){
+                buffer.putInt(values[i].length);
+                buffer.put(values[i]);
+            }
+            values = null;
+        }
+
+        protected void readFrom(ByteBuffer buffer, int count){
+            values = new byte[count][];
+            for(int i=0; i<count; i++){
+                byte[] value = new byte[buffer.getInt()];
+                buffer.get(value);
+                values[i] = value;
+            }
+            capacity = count;
+            head = 0;
+            tail = count;
+        }
+    }
+}
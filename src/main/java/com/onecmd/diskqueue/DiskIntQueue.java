@@ -0,0 +1,80 @@
+package com.onecmd.diskqueue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+/**
+ * FIFO queue of int values without boxing, pages are int[] in heap and 4 bytes per value in disk.
+ */
+public class DiskIntQueue extends AbstractPrimitiveQueue<int[]> {
+
+    public DiskIntQueue(String name, int capacity, int heapCapacity, long maxDiskSizeInMB, int filePageSize, boolean usingDisk, String diskCacheFileRoot){
+        super(name, capacity, heapCapacity, maxDiskSizeInMB, filePageSize, usingDisk, diskCacheFileRoot);
+    }
+
+    @Override
+    protected IntPage createPage(long id, int capacity) {
+        return new IntPage(id, capacity);
+    }
+
+    public boolean add(int value){
+        return addAll(new int[]{value}, 0, 1) == 1;
+    }
+
+    /**
+     * Add values in order until the queue is full.
+     * @param values
+     * @param offset
+     * @param length
+     * @return how much added
+     */
+    public int addAll(int[] values, int offset, int length){
+        return addValues(values, offset, length);
+    }
+
+    /**
+     * Success: return how much drained;
+     * Failed: throw exception;
+     * @param buffer
+     * @param offset
+     * @param fetchSize
+     * @return
+     * @throws IOException
+     */
+    public int drainTo(int[] buffer, int offset, int fetchSize) throws IOException {
+        return drainValues(buffer, offset, fetchSize);
+    }
+
+    /**
+     * Throw NoSuchElementException if the queue is empty.
+     * @return the head value
+     * @throws IOException
+     */
+    public int remove() throws IOException {
+        int[] buffer = new int[1];
+        if(drainTo(buffer, 0, 1) < 1){
+            throw new NoSuchElementException("Queue is empty: " + name);
+        }
+        return buffer[0];
+    }
+
+    static class IntPage extends PrimitivePage<int[]> {
+
+        IntPage(long id, int capacity){
+            super(id, capacity, 4);
+        }
+
+        protected int[] newArray(int length){
+            return new int[length];
+        }
+
+        protected void put(ByteBuffer buffer, int[] values, int offset, int length){
+            buffer.asIntBuffer().put(values, offset, length);
+        }
+
+        protected void get(ByteBuffer buffer, int[] values, int length){
+            buffer.asIntBuffer().get(values, 0, length);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.onecmd.diskqueue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+/**
+ * FIFO queue of long values without boxing, pages are long[] in heap and 8 bytes per value in disk.
+ */
+public class DiskLongQueue extends AbstractPrimitiveQueue<long[]> {
+
+    public DiskLongQueue(String name, int capacity, int heapCapacity, long maxDiskSizeInMB, int filePageSize, boolean usingDisk, String diskCacheFileRoot){
+        super(name, capacity, heapCapacity, maxDiskSizeInMB, filePageSize, usingDisk, diskCacheFileRoot);
+    }
+
+    @Override
+    protected LongPage createPage(long id, int capacity) {
+        return new LongPage(id, capacity);
+    }
+
+    public boolean add(long value){
+        return addAll(new long[]{value}, 0, 1) == 1;
+    }
+
+    /**
+     * Add values in order until the queue is full.
+     * @param values
+     * @param offset
+     * @param length
+     * @return how much added
+     */
+    public int addAll(long[] values, int offset, int length){
+        return addValues(values, offset, length);
+    }
+
+    /**
+     * Success: return how much drained;
+     * Failed: throw exception;
+     * @param buffer
+     * @param offset
+     * @param fetchSize
+     * @return
+     * @throws IOException
+     */
+    public int drainTo(long[] buffer, int offset, int fetchSize) throws IOException {
+        return drainValues(buffer, offset, fetchSize);
+    }
+
+    /**
+     * Throw NoSuchElementException if the queue is empty.
+     * @return the head value
+     * @throws IOException
+     */
+    public long remove() throws IOException {
+        long[] buffer = new long[1];
+        if(drainTo(buffer, 0, 1) < 1){
+            throw new NoSuchElementException("Queue is empty: " + name);
+        }
+        return buffer[0];
+    }
+
+    static class LongPage extends PrimitivePage<long[]> {
+
+        LongPage(long id, int capacity){
+            super(id, capacity, 8);
+        }
+
+        protected long[] newArray(int length){
+            return new long[length];
+        }
+
+        protected void put(ByteBuffer buffer, long[] values, int offset, int length){
+            buffer.asLongBuffer().put(values, offset, length);
+        }
+
+        protected void get(ByteBuffer buffer, long[] values, int length){
+            buffer.asLongBuffer().get(values, 0, length);
+        }
+    }
+}
@@ -1,16 +1,26 @@
 package com.onecmd.diskqueue;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  */
@@ -27,11 +37,53 @@ public class DiskQueue<T> {
     private CacheStatistics statistics;
     private CacheConfig config;
 
-    private ExecutorService persistThread = Executors.newSingleThreadExecutor();
+    private DiskQueueManager manager = null;
+
+    /**
+     * Set by HeapPressureMonitor, keep at most two pages in heap while the JVM heap is under pressure.
+     */
+    private volatile boolean heapPressure = false;
+    private ExecutorService persistThread;
+
+    /**
+     * Set while a sub pool is loaded ahead on the threads of the manager, one at a time per queue.
+     */
+    private AtomicBoolean loadingAhead = new AtomicBoolean(false);
 
     private Lock takeLock = new ReentrantLock();
     private Lock putLock = new ReentrantLock();
 
+    /**
+     * Producers blocked in put()/offer(obj, timeout, unit) park here, waiters are woken in FIFO order.
+     */
+    private Condition notFull = putLock.newCondition();
+    private AtomicInteger waitingProducers = new AtomicInteger(0);
+
+    /**
+     * Consumers blocked in drainTo(pool, minBatch, maxBatch, maxWait, unit) park here,
+     * producers wake them up once size() reaches the smallest minBatch waited for.
+     */
+    private Condition notEmpty = takeLock.newCondition();
+    private AtomicInteger waitingConsumers = new AtomicInteger(0);
+    private volatile int minBatchWaited = Integer.MAX_VALUE;
+
+    /**
+     * Usable bytes of the file system of diskCacheFileRoot, refreshed by checkUsableSpace().
+     */
+    private volatile long usableSpace = Long.MAX_VALUE;
+
+    /**
+     * Created by the first producer(), objects buffered longer than producerLingerMillis are added by lingerThread.
+     */
+    private volatile ThreadLocal<Producer<T>> producers = null;
+    private ConcurrentLinkedQueue<Producer<T>> allProducers = new ConcurrentLinkedQueue<>();
+    private ScheduledExecutorService lingerThread = null;
+
+    /**
+     * Size in bytes of an object in heap for drainTo(pool, maxItems, maxBytes), null to use the serialized size.
+     */
+    private volatile ToLongFunction<? super T> sizeEstimator = null;
+
     private void fullLock(){
         takeLock.lock();
         putLock.lock();
@@ -46,6 +98,15 @@ public class DiskQueue<T> {
         return config;
     }
 
+    /**
+     * Size of the objects in heap counted by drainTo(pool, maxItems, maxBytes),
+     * objects of pages loaded without decoding are counted by their serialized size.
+     * @param sizeEstimator null to use the average payload size of the page, or to encode objects never persisted
+     */
+    public void setSizeEstimator(ToLongFunction<? super T> sizeEstimator) {
+        this.sizeEstimator = sizeEstimator;
+    }
+
     public CacheStatistics getStatistics() {
         return statistics;
     }
@@ -55,25 +116,25 @@ public class DiskQueue<T> {
     }
 
     public DiskQueue(String name, Class<T> objectType, int capacity, int heapCapacity, long maxDiskSizeInMB, int filePageSize, boolean usingDisk, int persistTimeoutSeconds, String diskCacheFileRoot)  {
-        this.name = name;
-        statistics = new CacheStatistics();
-
-        config = new CacheConfig();
-
-        config.setCapacity(capacity < 100 ? 100 : capacity);
-
-        int heap = heapCapacity> capacity ? capacity : heapCapacity;
-        config.setHeapCapacity(heap < 1 ? 0 : heap);
-
-        long maxDiskSize = maxDiskSizeInMB < 1 ? config.getMaxDiskSize() : maxDiskSizeInMB*1024*1024;
-        config.setMaxDiskSize(maxDiskSize);
-
-        int pageSize = filePageSize > heapCapacity/3 ? heapCapacity/3 : filePageSize;
-        config.setPageSize(pageSize);
+        this(null, name, objectType, capacity, heapCapacity, maxDiskSizeInMB, filePageSize, usingDisk, persistTimeoutSeconds, diskCacheFileRoot);
+    }
 
-        config.setUsingDisk(usingDisk);
+    /**
+     * A queue of a DiskQueueManager shares the manager's persist threads, statistics reporter and heap/disk budget.
+     */
+    public DiskQueue(DiskQueueManager manager, String name, Class<T> objectType, int capacity, int heapCapacity, long maxDiskSizeInMB, int filePageSize, boolean usingDisk, int persistTimeoutSeconds, String diskCacheFileRoot)  {
+        this.name = name;
+        this.manager = manager;
+        if(null == manager) {
+            statistics = new CacheStatistics();
+            persistThread = Executors.newSingleThreadExecutor();
+        }
+        else {
+            statistics = new CacheStatistics(manager.getStatistics());
+            persistThread = manager.getPersistExecutor();
+        }
 
-        config.setDiskCacheFileRoot(diskCacheFileRoot + File.separator + name);
+        config = CacheConfig.create(name, capacity, heapCapacity, maxDiskSizeInMB, filePageSize, usingDisk, diskCacheFileRoot);
         this.objectType = objectType;
 
         config.setPersistTimeoutSeconds(persistTimeoutSeconds);
@@ -86,29 +147,27 @@ public class DiskQueue<T> {
     }
 
     private CacheSubPool<T> createCacheSubPool(){
-        CacheSubPool<T> subPool = new CacheSubPool<T>(getNewSubPoolId(), config, statistics, objectType);
+        PageSizer sizer = config.getPageSizer();
+        int capacity = null == sizer ? config.getPageSize() : sizer.nextCapacity();
+        statistics.setPageCapacity(capacity);
+
+        CacheSubPool<T> subPool = new CacheSubPool<T>(getNewSubPoolId(), config, statistics, objectType, capacity);
         return subPool;
     }
 
     public void initDiskStorage() {
-        if(config.isUsingDisk()){
-            File file = new File(config.getDiskCacheFileRoot());
-            LOGGER.info("Disk data file path: " + file.getAbsolutePath());
-
-            FileUtils.deleteQuietly(file);
-
-            file.mkdirs();
-            config.setDiskCacheFileRoot(file.getAbsolutePath());
-
+        config.initDiskStorage();
+        if(config.isUsingDisk() && null == manager){
             startMonitoringThread();
         }
     }
 
     public void startMonitoringThread(){
-        new Thread(){
+        Thread thread = new Thread("DiskQueue-monitor-" + name){
             public void run(){
                 long lastPrintTime = 0;
                 while (true){
+                    checkUsableSpace();
                     if(System.currentTimeMillis() - lastPrintTime >10000) {
                         LOGGER.info("Configuration: " + config.toString());
                         LOGGER.info("Statistics: " + statistics.toString());
@@ -122,7 +181,13 @@ public class DiskQueue<T> {
                     }
                 }
             }
-        }.start();
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public String getName() {
+        return name;
     }
 
     public int size(){
@@ -137,12 +202,47 @@ public class DiskQueue<T> {
         return add(obj);
     }
 
+    /**
+     * When the queue is full or disk is full, what happens depends on CacheConfig.getOverflowPolicy():
+     * REJECT: return false;
+     * BLOCK: wait until there is room, return false if interrupted;
+     * DROP_OLDEST: drop pages from the head of the queue to make room;
+     * The obj expires after CacheConfig.getTtlMillis() if it is set.
+     * @param obj
+     * @return
+     */
     public boolean add(T obj){
-        LOGGER.trace("Enter add()");
+        return add(obj, config.getTtlMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Same as add(obj), the obj is discarded instead of drained after ttl.
+     * @param obj
+     * @param ttl 0 means never expire
+     * @param unit
+     * @return
+     */
+    public boolean add(T obj, long ttl, TimeUnit unit){
+        LOGGER.trace("Enter add(ttl=" + ttl + " " + unit + ")");
         if(null == obj){
             throw new NullPointerException("Parameter obj should not be NULL.");
         }
 
+        OverflowPolicy policy = config.getOverflowPolicy();
+        if(policy == OverflowPolicy.BLOCK){
+            try {
+                return waitAndEnqueue(obj, getExpireAt(unit.toMillis(ttl)), -1);
+            } catch (InterruptedException e) {
+                LOGGER.warn("Failed to add ["+getObjectStr(obj)+"] to cache[name="+name+"]: interrupted.");
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        else if(policy == OverflowPolicy.DROP_OLDEST && !hasRoom()){
+            dropOldest();
+        }
+
+        boolean added;
         try {
             putLock.lock();
 
@@ -150,160 +250,1166 @@ public class DiskQueue<T> {
                 LOGGER.warn("Failed to add ["+getObjectStr(obj)+"] to cache[name="+name+"]: queue full: capacity=" + config.getCapacity() + ", size: " + size());
                 return false;
             }
-            else if(isDiskFull()){
-                LOGGER.warn("Failed to add ["+getObjectStr(obj)+"] to cache[name="+name+"]: cache disk full: MaxDiskSize=" + config.getMaxDiskSize() + ", fileSize: " + statistics.getDiskFileSize());
+            else if(!hasDiskRoom()){
+                LOGGER.warn("Failed to add ["+getObjectStr(obj)+"] to cache[name="+name+"]: cache disk full: MaxDiskSize=" + config.getMaxDiskSize() + ", fileSize: " + statistics.getDiskFileSize()
+                        + ", usableSpace: " + usableSpace);
                 return false;
             }
 
-            statistics.getAndAddCacheSize(1);
-            checkAndPersist();
+            added = enqueue(obj, getExpireAt(unit.toMillis(ttl)));
+        }
+        finally {
+            putLock.unlock();
+        }
+        signalNotEmpty();
+        return added;
+    }
 
-            if(getHeapSize() > config.getHeapCapacity()){
-                throw new Exception("Failed to persist heap data to file: HeapCapacity=" + config.getHeapCapacity() + ", heapSize=" + getHeapSize() + ".");
+    /**
+     * Add objs in order with one putLock acquisition, stop at the first object which can not be added.
+     * When the queue is full or disk is full, what happens depends on CacheConfig.getOverflowPolicy(), see add(obj).
+     * @param objs
+     * @return how much added
+     */
+    public int addAll(Collection<? extends T> objs){
+        return addAll(objs, true);
+    }
+
+    /**
+     * @param objs
+     * @param wait false if the caller should not wait for room even if the policy is BLOCK,
+     *             it keeps the objects not added and retries, e.g. the linger flush, so a full queue is only traced
+     * @return how much added
+     */
+    private int addAll(Collection<? extends T> objs, boolean wait){
+        LOGGER.trace("Enter addAll(size=" + objs.size() + ")");
+        for(T obj : objs){
+            if(null == obj){
+                throw new NullPointerException("Parameter objs should not contain NULL.");
             }
-            else {
-                CacheSubPool<T> entry = getInsertCacheEntry();
-                entry.add(obj);
+        }
+
+        OverflowPolicy policy = config.getOverflowPolicy();
+        int total = 0;
+        if(policy == OverflowPolicy.DROP_OLDEST){
+            for(T obj : objs){
+                if(!add(obj)){
+                    break;
+                }
+                total++;
             }
+            return total;
+        }
 
-            return true;
-        } catch (Exception e) {
-            LOGGER.error("Failed to add [" + getObjectStr(obj) + "] to cache[name="+name+"]: " + e.getMessage(), e);
-            statistics.getAndAddCacheSize(-1);
-            return false;
+        long expireAt = getExpireAt(config.getTtlMillis());
+        try {
+            putLock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            LOGGER.warn("Failed to add objects to cache[name="+name+"]: interrupted.");
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+        try {
+            for(T obj : objs){
+                if(!hasRoom()){
+                    if(policy != OverflowPolicy.BLOCK || !wait){
+                        String message = "Failed to add " + (objs.size() - total) + " objects to cache[name="+name+"]: capacity=" + config.getCapacity() + ", size: " + size()
+                                + ", MaxDiskSize=" + config.getMaxDiskSize() + ", fileSize: " + statistics.getDiskFileSize();
+                        if(wait){
+                            LOGGER.warn(message);
+                        }
+                        else {
+                            LOGGER.trace(message);
+                        }
+                        return total;
+                    }
+                    awaitRoom(-1);
+                }
+
+                if(!enqueue(obj, expireAt)){
+                    break;
+                }
+                total++;
+            }
+        }
+        catch (InterruptedException e){
+            LOGGER.warn("Failed to add objects to cache[name="+name+"]: interrupted.");
+            Thread.currentThread().interrupt();
         }
         finally {
+            signalNextProducer();
             putLock.unlock();
         }
+        if(total > 0){
+            signalNotEmpty();
+        }
+        return total;
     }
 
-    private String getObjectStr(T obj) {
-        try {
-            return new ObjectMapper().writeValueAsString(obj);
-        } catch (Exception e) {
-            LOGGER.error("Failed to parse object to String: " + obj, e);
-            return "WRONG_FORMAT";
+    /**
+     * Handle of the calling thread, it buffers the objects of the thread and adds them by one addAll()
+     * when producerBatchSize objects are buffered, after producerLingerMillis, or by flush().
+     * Buffered objects are not counted in size() and not drained until added.
+     * @return
+     */
+    public Producer<T> producer(){
+        ThreadLocal<Producer<T>> local = producers;
+        if(null == local){
+            synchronized (this){
+                if(null == producers){
+                    lingerThread = Executors.newSingleThreadScheduledExecutor(new DiskQueueManager.DaemonThreadFactory("DiskQueue-linger-" + name));
+                    long linger = Math.max(1, config.getProducerLingerMillis());
+                    lingerThread.scheduleWithFixedDelay(new Runnable() {
+                        public void run() {
+                            flushLingering();
+                        }
+                    }, linger, linger, TimeUnit.MILLISECONDS);
+
+                    producers = new ThreadLocal<Producer<T>>(){
+                        protected Producer<T> initialValue() {
+                            Producer<T> producer = new Producer<T>(DiskQueue.this, Thread.currentThread());
+                            allProducers.add(producer);
+                            return producer;
+                        }
+                    };
+                }
+                local = producers;
+            }
         }
+        return local.get();
     }
 
-    private boolean isLessThen2Capacity(){
-        return getHeapSize()+2 >= config.getHeapCapacity();
+    /**
+     * Add the objects buffered by all producers.
+     * @return how much added
+     */
+    public int flushProducers(){
+        int total = 0;
+        for(Producer<T> producer : allProducers){
+            total += producer.flush(false);
+        }
+        return total;
     }
 
-    private void checkAndPersist() throws Exception {
-        if(getHeapSize() < config.getHeapCapacity() ){
-            return;
+    private void flushLingering(){
+        try {
+            long lingerNanos = TimeUnit.MILLISECONDS.toNanos(config.getProducerLingerMillis());
+            Iterator<Producer<T>> iter = allProducers.iterator();
+            while (iter.hasNext()) {
+                Producer<T> producer = iter.next();
+                producer.flushLingering(lingerNanos);
+                if (!producer.owner.isAlive() && producer.size() < 1) {
+                    iter.remove();
+                }
+            }
         }
+        catch (Exception e){
+            LOGGER.warn("Failed to flush producers of cache[name=" + name + "]: " + e.getMessage(), e);
+        }
+    }
 
-        Iterator<CacheSubPool<T>> iter = inQueue.descendingIterator();
-        if(!iter.hasNext()){
-            return;
+    /**
+     * Objects buffered by one thread, see DiskQueue.producer().
+     * Only the owner thread adds objects, the linger thread of the queue only flushes if the owner does not hold the batch.
+     * Objects rejected by the queue stay buffered and are added again by the next flush,
+     * add() returns false when the batch is full and can not be flushed.
+     */
+    public static class Producer<T> {
+        private DiskQueue<T> queue;
+        private Thread owner;
+        private ArrayList<T> batch = new ArrayList<>();
+        private long firstBufferedAt = 0;
+        private Lock lock = new ReentrantLock();
+
+        Producer(DiskQueue<T> queue, Thread owner){
+            this.queue = queue;
+            this.owner = owner;
         }
-        try {
-            CacheSubPool<T> head = iter.next();
 
-            while (iter.hasNext() && isLessThen2Capacity()) {
-                if (isDiskFull()) {
-                    throw new Exception("Failed to persist heap data to file: disk full.");
+        /**
+         * Success: return true, obj is buffered or added;
+         * Failed: return false if the batch is full and the queue has no room;
+         * @param obj
+         * @return
+         */
+        public boolean add(T obj){
+            if(null == obj){
+                throw new NullPointerException("Parameter obj should not be NULL.");
+            }
+
+            int batchSize = Math.max(1, queue.config.getProducerBatchSize());
+            try {
+                lock.lock();
+
+                if(batch.size() >= batchSize){
+                    flushBatch(true);
+                    if(batch.size() >= batchSize){
+                        return false;
+                    }
                 }
 
-                CacheSubPool<T> pool = iter.next();
-                if (pool != null && pool.isFull()) {
-                    timeOutPersist(pool);
+                batch.add(obj);
+                if(batch.size() == 1){
+                    firstBufferedAt = System.nanoTime();
                 }
+                if(batch.size() >= batchSize){
+                    flushBatch(true);
+                }
+                return true;
+            }
+            finally {
+                lock.unlock();
             }
         }
-        catch (NoSuchElementException e){
-            LOGGER.error("Failed to persist cache data: " + e.getMessage(), e);
+
+        /**
+         * Add the buffered objects, wait for room if the policy is BLOCK.
+         * @return how much added
+         */
+        public int flush(){
+            return flush(true);
         }
-    }
 
-    private int timeOutPersist(final CacheSubPool<T> pool){
-        Future<Integer> future = persistThread.submit(
-                new Callable<Integer>() {
-                    public Integer call() throws Exception {
-                        return pool.persist();
-                    }});
+        private int flush(boolean wait){
+            try {
+                lock.lock();
+                return flushBatch(wait);
+            }
+            finally {
+                lock.unlock();
+            }
+        }
 
-        int total = 0;
-        try {
-            total = future.get(config.getPersistTimeoutSeconds(), TimeUnit.SECONDS);
-        } catch (Exception e){
-            LOGGER.warn("Failed to persist: " + e.getMessage(), e);
-            future.cancel(true);
+        private void flushLingering(long lingerNanos){
+            if(!lock.tryLock()){
+                return;
+            }
+            try {
+                if(!batch.isEmpty() && System.nanoTime() - firstBufferedAt >= lingerNanos){
+                    flushBatch(false);
+                }
+            }
+            finally {
+                lock.unlock();
+            }
         }
-        return total;
-    }
 
-    private CacheSubPool<T> getInsertCacheEntry(){
-        CacheSubPool<T> subPool = null;
+        /**
+         * Must hold lock.
+         */
+        private int flushBatch(boolean wait){
+            if(batch.isEmpty()){
+                return 0;
+            }
 
-        synchronized (inQueue) {
+            int added = queue.addAll(batch, wait);
+            batch.subList(0, added).clear();
+            firstBufferedAt = batch.isEmpty() ? 0 : System.nanoTime();
+            return added;
+        }
+
+        /**
+         * @return objects buffered and not added yet
+         */
+        public int size(){
             try {
-                CacheSubPool<T> last = inQueue.getLast();
-                if (last.isFull()) {
-                    inQueue.addLast(createCacheSubPool());
-                }
-            } catch (NoSuchElementException e) {
-                inQueue.addLast(createCacheSubPool());
+                lock.lock();
+                return batch.size();
+            }
+            finally {
+                lock.unlock();
             }
-            subPool = inQueue.getLast();
         }
+    }
 
-        return subPool;
+    private long getExpireAt(long ttlMillis){
+        return ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : Long.MAX_VALUE;
     }
 
     /**
-     * Success: return how much drained;
-     * Failed: throw exception;
-     * @param pool
-     * @param fetchSize
+     * Add obj, wait until the queue has capacity and disk space if necessary.
+     * Throw IllegalStateException if the obj can not be stored after space is available.
+     * @param obj
+     * @throws InterruptedException
+     */
+    public void put(T obj) throws InterruptedException {
+        LOGGER.trace("Enter put()");
+        if(null == obj){
+            throw new NullPointerException("Parameter obj should not be NULL.");
+        }
+
+        if(!waitAndEnqueue(obj, getExpireAt(config.getTtlMillis()), -1)){
+            throw new IllegalStateException("Failed to add ["+getObjectStr(obj)+"] to cache[name="+name+"].");
+        }
+    }
+
+    /**
+     * Add obj, wait up to timeout until the queue has capacity and disk space if necessary.
+     * Success: return true;
+     * Timeout or failed: return false;
+     * @param obj
+     * @param timeout
+     * @param unit
      * @return
+     * @throws InterruptedException
      */
-    public int drainTo(List<T> pool, int fetchSize) throws Exception {
-         if(null == pool){
-            throw new NullPointerException("Parameter pool should not be NULL.");
+    public boolean offer(T obj, long timeout, TimeUnit unit) throws InterruptedException {
+        LOGGER.trace("Enter offer(timeout=" + timeout + " " + unit + ")");
+        if(null == obj){
+            throw new NullPointerException("Parameter obj should not be NULL.");
         }
-        LOGGER.trace("Exit drainTo(poolSize=" + pool.size() + ", fetchSize=" + fetchSize + ")");
 
-        int total = 0;
+        return waitAndEnqueue(obj, getExpireAt(config.getTtlMillis()), Math.max(0, unit.toNanos(timeout)));
+    }
+
+    /**
+     * nanos < 0 means wait until there is room.
+     * Success: return true;
+     * Timeout or failed: return false;
+     * @param obj
+     * @param expireAt
+     * @param nanos
+     * @return
+     * @throws InterruptedException
+     */
+    private boolean waitAndEnqueue(T obj, long expireAt, long nanos) throws InterruptedException {
+        boolean added;
+        putLock.lockInterruptibly();
         try {
-            takeLock.lock();
+            if(!awaitRoom(nanos)){
+                LOGGER.warn("Failed to add ["+getObjectStr(obj)+"] to cache[name="+name+"]: timeout, capacity=" + config.getCapacity() + ", size: " + size()
+                        + ", MaxDiskSize=" + config.getMaxDiskSize() + ", fileSize: " + statistics.getDiskFileSize());
+                return false;
+            }
 
-            Iterator<CacheSubPool<T>> iter = inQueue.iterator();
+            added = enqueue(obj, expireAt);
+            signalNextProducer();
+        }
+        finally {
+            putLock.unlock();
+        }
+        signalNotEmpty();
+        return added;
+    }
 
-            while (iter.hasNext() && total < fetchSize){
-                CacheSubPool<T> subPool = iter.next();
-                total += subPool.drainTo(pool, fetchSize);
-                if(subPool.size()<=0 && iter.hasNext()){
-                    iter.remove();
+    /**
+     * Must hold putLock.
+     * Wait until hasRoom(), the waiter is counted before hasRoom() is checked again,
+     * so signalNotFull() called by a drain freeing room meanwhile does not skip it.
+     * nanos < 0 means wait until there is room.
+     * @param nanos
+     * @return false if timeout
+     * @throws InterruptedException
+     */
+    private boolean awaitRoom(long nanos) throws InterruptedException {
+        if(hasRoom()){
+            return true;
+        }
+
+        waitingProducers.incrementAndGet();
+        try {
+            while (!hasRoom()){
+                if(nanos == 0){
+                    return false;
+                }
+                if(nanos < 0){
+                    notFull.await();
+                }
+                else {
+                    nanos = Math.max(0, notFull.awaitNanos(nanos));
                 }
             }
+            return true;
         }
         finally {
-            takeLock.unlock();
+            waitingProducers.decrementAndGet();
         }
+    }
 
-        statistics.getAndAddCacheSize(-1 * total);
-
-        LOGGER.trace("Exit drainTo(fetchSize=" + fetchSize + ", drained=" + total + ")");
-        return total;
+    /**
+     * Must hold putLock.
+     * Pass the wakeup on to the next waiting producer while there is still room,
+     * so space freed by disk loading (not bound to a number of items) is used without waking every producer.
+     */
+    private void signalNextProducer(){
+        if(waitingProducers.get() > 0 && hasRoom()){
+            notFull.signal();
+        }
     }
 
-    public void clear() {
-        LOGGER.trace("Enter clear()");
+    /**
+     * Wake up at most one waiting producer per freed item, waiters are woken in arrival order.
+     * Room is freed before waitingProducers is read and a producer is counted before it checks hasRoom(),
+     * so either the producer sees the room or it is signalled here.
+     * @param freed
+     */
+    private void signalNotFull(int freed){
+        if(freed < 1 || waitingProducers.get() < 1){
+            return;
+        }
+
+        putLock.lock();
         try {
-            fullLock();
-            for (CacheSubPool<T> pool : inQueue) {
-                pool.clear();
+            int wakeups = Math.min(freed, waitingProducers.get());
+            for(int i=0; i<wakeups; i++){
+                notFull.signal();
             }
-            inQueue.clear();
         }
         finally {
-            fullUnLock();
+            putLock.unlock();
+        }
+    }
+
+    /**
+     * Wake up the consumers waiting in drainTo(pool, minBatch, maxBatch, maxWait, unit) if size() reached a minBatch waited for.
+     * Must not hold putLock, fullLock() takes takeLock before putLock.
+     */
+    private void signalNotEmpty(){
+        if(waitingConsumers.get() < 1 || size() < minBatchWaited){
+            return;
         }
 
-        statistics.getAndAddCacheSize(-1 * statistics.getCacheSize());
+        takeLock.lock();
+        try {
+            notEmpty.signalAll();
+        }
+        finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * Must hold putLock.
+     * @return
+     */
+    private boolean hasRoom(){
+        return size() < config.getCapacity() && hasDiskRoom();
+    }
+
+    /**
+     * Must hold putLock.
+     * Disk bytes are reserved for the objects in heap which may be spilled, by the disk size per object seen so far,
+     * so an object is rejected before spilling it overshoots maxDiskSize or the usable space.
+     * @return false if the quota or the usable space left can not hold the objects in heap and one more
+     */
+    private boolean hasDiskRoom(){
+        if(isDiskFull()){
+            return false;
+        }
+        if(!config.isUsingDisk()){
+            return true;
+        }
+
+        long free = Math.min(config.getMaxDiskSize() - statistics.getDiskFileSize(), usableSpace - config.getMinUsableSpace());
+        if(free <= 0){
+            return false;
+        }
+
+        long perObject = statistics.getPerObjectDiskSize();
+        if(perObject < 1){
+            perObject = statistics.getPerObjectPersistedSize();
+        }
+        if(perObject < 1 || (getHeapSize() + 1L) * perObject <= free){
+            return true;
+        }
+        return (getSpillableHeapSize() + 1L) * perObject <= free;
+    }
+
+    /**
+     * Objects in heap of the sub pools not drained from yet, only those can be persisted.
+     * @return
+     */
+    private int getSpillableHeapSize(){
+        int total = 0;
+        for(CacheSubPool<T> pool : inQueue){
+            if(pool.getHead() == 0){
+                total += pool.getHeapSize();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Check the usable space of the file system of diskCacheFileRoot, called by a background timer
+     * so adding objects does not query the file system.
+     */
+    void checkUsableSpace(){
+        if(!config.isUsingDisk()){
+            return;
+        }
+
+        long prev = usableSpace;
+        long usable = new File(config.getDiskCacheFileRoot()).getUsableSpace();
+        usableSpace = usable > 0 ? usable : Long.MAX_VALUE;
+        if(usableSpace > prev){
+            signalNotFull(1);
+        }
+    }
+
+    public long getUsableSpace() {
+        return usableSpace;
+    }
+
+    /**
+     * Must hold putLock, capacity and disk space already checked.
+     * Success: return true;
+     * Failed: return false;
+     * @param obj
+     * @param expireAt
+     * @return
+     */
+    private boolean enqueue(T obj, long expireAt){
+        try {
+            statistics.getAndAddCacheSize(1);
+            checkAndPersist();
+
+            int heapCapacity = getHeapCapacity();
+            if(getHeapSize() > heapCapacity){
+                throw new Exception("Failed to persist heap data to file: HeapCapacity=" + heapCapacity + ", heapSize=" + getHeapSize() + ".");
+            }
+            else {
+                CacheSubPool<T> entry = getInsertCacheEntry();
+                entry.add(obj, expireAt);
+            }
+
+            if(null != manager){
+                manager.checkHeapBudget();
+            }
+
+            return true;
+        } catch (Exception e) {
+            LOGGER.error("Failed to add [" + getObjectStr(obj) + "] to cache[name="+name+"]: " + e.getMessage(), e);
+            statistics.getAndAddCacheSize(-1);
+            return false;
+        }
+    }
+
+    /**
+     * Drop whole pages from the head of the queue until there is room.
+     * Persisted pages are deleted without being read, the statistics are adjusted from the sizes kept by the sub pools.
+     * @return how much dropped
+     */
+    private int dropOldest(){
+        int dropped = 0;
+        try {
+            fullLock();
+
+            while (!hasRoom()){
+                CacheSubPool<T> pool = getDropCandidate();
+                if(null == pool){
+                    break;
+                }
+
+                int total = pool.drop();
+                if(pool != inQueue.peekLast()){
+                    inQueue.remove(pool);
+                }
+                statistics.getAndAddCacheSize(-1 * total);
+                dropped += total;
+            }
+        }
+        finally {
+            fullUnLock();
+        }
+
+        if(dropped > 0) {
+            LOGGER.warn("Dropped oldest " + dropped + " objects from cache[name=" + name + "]: capacity=" + config.getCapacity() + ", size: " + size()
+                    + ", MaxDiskSize=" + config.getMaxDiskSize() + ", fileSize: " + statistics.getDiskFileSize());
+        }
+        return dropped;
+    }
+
+    /**
+     * Must hold fullLock.
+     * @return the first not empty sub pool from the head, null if the queue is empty
+     */
+    private CacheSubPool<T> getDropCandidate(){
+        for(CacheSubPool<T> pool : inQueue){
+            if(pool.size() > 0){
+                return pool;
+            }
+        }
+        return null;
+    }
+
+    private String getObjectStr(T obj) {
+        try {
+            return new ObjectMapper().writeValueAsString(obj);
+        } catch (Exception e) {
+            LOGGER.error("Failed to parse object to String: " + obj, e);
+            return "WRONG_FORMAT";
+        }
+    }
+
+    public boolean isHeapPressure() {
+        return heapPressure;
+    }
+
+    public void setHeapPressure(boolean heapPressure) {
+        this.heapPressure = heapPressure;
+    }
+
+    /**
+     * The configured heap capacity, or for a queue of a DiskQueueManager, the room of the manager's heap budget
+     * not used by the other queues if larger: a managed queue grows past its own heapCapacity while the global budget has room.
+     * @return
+     */
+    private int getHeapCapacity(){
+        int heapCapacity = config.getHeapCapacity();
+        if(null == manager){
+            return heapCapacity;
+        }
+
+        int others = manager.getStatistics().getHeapSize() - getHeapSize();
+        return Math.max(heapCapacity, manager.getHeapCapacity() - others);
+    }
+
+    /**
+     * The heap capacity used to decide spilling, smaller than the configured one under heap pressure.
+     * @return
+     */
+    private int getSpillHeapCapacity(){
+        int heapCapacity = getHeapCapacity();
+        if(heapPressure && config.isUsingDisk()){
+            return Math.min(heapCapacity, 2 * config.getPageSize());
+        }
+        return heapCapacity;
+    }
+
+    /**
+     * @param writing objects in heap being written asynchronously, released soon
+     * @return
+     */
+    private boolean isLessThen2Capacity(int writing){
+        return getHeapSize() - writing + 2 >= getSpillHeapCapacity();
+    }
+
+    private void checkAndPersist() throws Exception {
+        if(getHeapSize() < getSpillHeapCapacity() ){
+            return;
+        }
+
+        Iterator<CacheSubPool<T>> iter = inQueue.descendingIterator();
+        if(!iter.hasNext()){
+            return;
+        }
+
+        AsyncPageIO io = config.getAsyncPageIO();
+        ArrayList<CompletableFuture<Integer>> writes = new ArrayList<>();
+        int writing = 0;
+        try {
+            CacheSubPool<T> head = iter.next();
+
+            while (iter.hasNext() && isLessThen2Capacity(writing)) {
+                if (isDiskFull()) {
+                    throw new Exception("Failed to persist heap data to file: disk full.");
+                }
+
+                CacheSubPool<T> pool = iter.next();
+                if (pool != null && pool.isPersistable()) {
+                    if(null == io) {
+                        timeOutPersist(pool);
+                    }
+                    else {
+                        int heapSize = pool.getHeapSize();
+                        writes.add(startPersist(pool, io));
+                        writing += heapSize;
+                    }
+                }
+            }
+        }
+        catch (NoSuchElementException e){
+            LOGGER.error("Failed to persist cache data: " + e.getMessage(), e);
+        }
+        finally {
+            awaitWrites(writes);
+        }
+    }
+
+    private CompletableFuture<Integer> startPersist(CacheSubPool<T> pool, AsyncPageIO io) throws InterruptedException {
+        try {
+            return pool.persistAsync(io);
+        }
+        catch (InterruptedException e){
+            throw e;
+        }
+        catch (Exception e){
+            LOGGER.warn("Failed to persist: " + e.getMessage(), e);
+            return CompletableFuture.completedFuture(0);
+        }
+    }
+
+    /**
+     * Wait for the writes started by persistAsync() at most persistTimeoutSeconds, writes not completed in time go on in background.
+     * @param writes
+     * @return how much persisted in time
+     */
+    private int awaitWrites(List<CompletableFuture<Integer>> writes){
+        int total = 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.getPersistTimeoutSeconds());
+        for(CompletableFuture<Integer> write : writes){
+            try {
+                total += write.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+            catch (TimeoutException e){
+                LOGGER.warn("Failed to persist in " + config.getPersistTimeoutSeconds() + " seconds, go on in background.");
+                break;
+            }
+            catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                break;
+            }
+            catch (ExecutionException e){
+                LOGGER.warn("Failed to persist: " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+        return total;
+    }
+
+    private int timeOutPersist(final CacheSubPool<T> pool){
+        Future<Integer> future = persistThread.submit(
+                new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        return pool.persist();
+                    }});
+
+        int total = 0;
+        try {
+            total = future.get(config.getPersistTimeoutSeconds(), TimeUnit.SECONDS);
+        } catch (Exception e){
+            LOGGER.warn("Failed to persist: " + e.getMessage(), e);
+            future.cancel(true);
+        }
+        return total;
+    }
+
+    /**
+     * Objects in heap which are not expected to be drained or added soon:
+     * the full sub pools between the head and the tail of the queue.
+     * @return
+     */
+    public int getColdHeapSize(){
+        int total = 0;
+        CacheSubPool<T> head = inQueue.peekFirst();
+        CacheSubPool<T> tail = inQueue.peekLast();
+        for(CacheSubPool<T> pool : inQueue){
+            if(pool != head && pool != tail && pool.isPersistable()){
+                total += pool.getHeapSize();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Persist cold sub pools, the sub pools nearest to the tail first, until at least maxObjects are persisted.
+     * Then pages kept compressed in heap are demoted to disk, also the ones nearest to the tail first.
+     * Return 0 directly if the queue is busy adding objects, or disk is not used or full.
+     * @param maxObjects
+     * @return how much persisted
+     */
+    public int spillColdPages(int maxObjects){
+        if(!config.isUsingDisk() || maxObjects < 1 || !putLock.tryLock()){
+            return 0;
+        }
+
+        int total = 0;
+        AsyncPageIO io = config.getAsyncPageIO();
+        ArrayList<CompletableFuture<Integer>> writes = new ArrayList<>();
+        int writing = 0;
+        try {
+            CacheSubPool<T> head = inQueue.peekFirst();
+            Iterator<CacheSubPool<T>> iter = inQueue.descendingIterator();
+            if(iter.hasNext()){
+                iter.next();
+            }
+
+            while (iter.hasNext() && total + writing < maxObjects && !isDiskFull()) {
+                CacheSubPool<T> pool = iter.next();
+                if (pool != head && pool.isPersistable()) {
+                    if(null == io) {
+                        total += timeOutPersist(pool);
+                    }
+                    else {
+                        int heapSize = pool.getHeapSize();
+                        writes.add(startPersist(pool, io));
+                        writing += heapSize;
+                    }
+                }
+            }
+
+            if (null != config.getCompressedPageTier()) {
+                iter = inQueue.descendingIterator();
+                while (iter.hasNext() && total + writing < maxObjects && !isDiskFull()) {
+                    CacheSubPool<T> pool = iter.next();
+                    if (pool.isCompressed()) {
+                        total += pool.demote();
+                    }
+                }
+            }
+        }
+        catch (Exception e){
+            LOGGER.warn("Failed to spill cold pages of cache[name=" + name + "]: " + e.getMessage(), e);
+        }
+        finally {
+            total += awaitWrites(writes);
+            putLock.unlock();
+        }
+
+        LOGGER.trace("Spilled cold pages of cache[name=" + name + "]: " + total);
+        return total;
+    }
+
+    private CacheSubPool<T> getInsertCacheEntry(){
+        CacheSubPool<T> subPool = null;
+
+        synchronized (inQueue) {
+            try {
+                CacheSubPool<T> last = inQueue.getLast();
+                if (last.isFull()) {
+                    inQueue.addLast(createCacheSubPool());
+                }
+            } catch (NoSuchElementException e) {
+                inQueue.addLast(createCacheSubPool());
+            }
+            subPool = inQueue.getLast();
+        }
+
+        return subPool;
+    }
+
+    /**
+     * Success: return how much drained;
+     * Failed: throw exception;
+     * @param pool
+     * @param fetchSize
+     * @return
+     */
+    public int drainTo(final List<T> pool, int fetchSize) throws Exception {
+         if(null == pool){
+            throw new NullPointerException("Parameter pool should not be NULL.");
+        }
+        LOGGER.trace("Enter drainTo(poolSize=" + pool.size() + ", fetchSize=" + fetchSize + ")");
+
+        int total = drainSubPools(fetchSize, new SubPoolDrainer() {
+            void drain(CacheSubPool<T> subPool, int size) throws Exception {
+                drained += subPool.drainTo(pool, size);
+            }
+        });
+
+        LOGGER.trace("Exit drainTo(fetchSize=" + fetchSize + ", drained=" + total + ")");
+        return total;
+    }
+
+    /**
+     * Wait up to maxWait until at least minBatch objects are in the queue, then drain at most maxBatch of them.
+     * Waiting consumers are woken up by add(), not by polling.
+     * Expired objects are counted until drained, so less than minBatch may be drained even before the deadline.
+     * Success: return how much drained, less than minBatch if the deadline passed;
+     * Failed: throw exception;
+     * @param pool
+     * @param minBatch
+     * @param maxBatch
+     * @param maxWait
+     * @param unit
+     * @return
+     * @throws Exception InterruptedException if interrupted while waiting
+     */
+    public int drainTo(final List<T> pool, int minBatch, int maxBatch, long maxWait, TimeUnit unit) throws Exception {
+        if(null == pool){
+            throw new NullPointerException("Parameter pool should not be NULL.");
+        }
+        LOGGER.trace("Enter drainTo(minBatch=" + minBatch + ", maxBatch=" + maxBatch + ", maxWait=" + maxWait + " " + unit + ")");
+
+        minBatch = Math.min(minBatch, maxBatch);
+        long nanos = unit.toNanos(maxWait);
+        takeLock.lockInterruptibly();
+        try {
+            if(size() < minBatch && nanos > 0){
+                waitingConsumers.incrementAndGet();
+                try {
+                    while (true){
+                        if(minBatch < minBatchWaited){
+                            minBatchWaited = minBatch;
+                        }
+                        if(size() >= minBatch || nanos <= 0){
+                            break;
+                        }
+                        nanos = notEmpty.awaitNanos(nanos);
+                    }
+                }
+                finally {
+                    if(waitingConsumers.decrementAndGet() == 0){
+                        minBatchWaited = Integer.MAX_VALUE;
+                    }
+                }
+            }
+
+            return drainTo(pool, maxBatch);
+        }
+        finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * Drain at most maxItems objects and stop before the first object which would exceed maxBytes,
+     * at least one object is drained if the queue is not empty, even if it is larger than maxBytes.
+     * Objects of pages loaded with lazyDecode are counted by their serialized size and not decoded beyond the budget,
+     * other objects by setSizeEstimator() if set, otherwise by the average payload size of the page they were loaded from,
+     * objects never persisted are encoded to measure them.
+     * Success: return how much drained;
+     * Failed: throw exception, IllegalStateException if the persister can not encode and no estimator is set;
+     * @param pool
+     * @param maxItems
+     * @param maxBytes
+     * @return
+     */
+    public int drainTo(final List<T> pool, int maxItems, long maxBytes) throws Exception {
+        if(null == pool){
+            throw new NullPointerException("Parameter pool should not be NULL.");
+        }
+        LOGGER.trace("Enter drainTo(poolSize=" + pool.size() + ", maxItems=" + maxItems + ", maxBytes=" + maxBytes + ")");
+
+        final ByteBudget<T> budget = new ByteBudget<T>(maxBytes, sizeEstimator);
+        int total = drainSubPools(maxItems, new SubPoolDrainer() {
+            void drain(CacheSubPool<T> subPool, int size) throws Exception {
+                drained += subPool.drainTo(pool, size, budget);
+            }
+
+            boolean isDone() {
+                return budget.isExhausted();
+            }
+        });
+
+        LOGGER.trace("Exit drainTo(maxItems=" + maxItems + ", drained=" + total + ", bytesLeft=" + budget.getRemaining() + ")");
+        return total;
+    }
+
+    /**
+     * Hand at most maxSize objects to sink one by one, without copying them to a list.
+     * If sink throws exception, the object is kept in the queue and the exception is thrown.
+     * Success: return how much drained;
+     * Failed: throw exception;
+     * @param maxSize
+     * @param sink
+     * @return
+     */
+    public int drain(int maxSize, final Consumer<? super T> sink) throws Exception {
+        if(null == sink){
+            throw new NullPointerException("Parameter sink should not be NULL.");
+        }
+        LOGGER.trace("Enter drain(maxSize=" + maxSize + ")");
+
+        return drainSubPools(maxSize, new SubPoolDrainer() {
+            void drain(CacheSubPool<T> subPool, int size) throws Exception {
+                subPool.drain(size, new Consumer<T>() {
+                    public void accept(T obj) {
+                        sink.accept(obj);
+                        drained++;
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Hand at most maxSize objects to sink in read-only lists backed by the storage of the sub pools, one list per sub pool.
+     * A list is only valid during the call of sink, copy the objects to keep them.
+     * If sink throws exception, the objects of that list are kept in the queue and the exception is thrown.
+     * Success: return how much drained;
+     * Failed: throw exception;
+     * @param maxSize
+     * @param sink
+     * @return
+     */
+    public int drainBatches(int maxSize, final Consumer<? super List<T>> sink) throws Exception {
+        if(null == sink){
+            throw new NullPointerException("Parameter sink should not be NULL.");
+        }
+        LOGGER.trace("Enter drainBatches(maxSize=" + maxSize + ")");
+
+        return drainSubPools(maxSize, new SubPoolDrainer() {
+            void drain(CacheSubPool<T> subPool, int size) throws Exception {
+                subPool.drainBatch(size, new Consumer<List<T>>() {
+                    public void accept(List<T> batch) {
+                        sink.accept(batch);
+                        drained += batch.size();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Drains one sub pool and counts the objects handed out, also when it throws exception.
+     */
+    private abstract class SubPoolDrainer {
+        int drained = 0;
+
+        abstract void drain(CacheSubPool<T> subPool, int size) throws Exception;
+
+        /**
+         * @return true to stop before the next sub pool, e.g. its byte budget is used up
+         */
+        boolean isDone() {
+            return false;
+        }
+    }
+
+    private int drainSubPools(int fetchSize, SubPoolDrainer drainer) throws Exception {
+        int discarded = 0;
+        try {
+            takeLock.lock();
+
+            Iterator<CacheSubPool<T>> iter = inQueue.iterator();
+
+            while (iter.hasNext() && drainer.drained < fetchSize && !drainer.isDone()){
+                CacheSubPool<T> subPool = iter.next();
+                try {
+                    drainer.drain(subPool, fetchSize - drainer.drained);
+                }
+                finally {
+                    discarded += subPool.takeDiscarded();
+                }
+                if(subPool.size()<=0 && iter.hasNext()){
+                    iter.remove();
+                }
+            }
+            prefetch();
+        }
+        finally {
+            takeLock.unlock();
+
+            statistics.getAndAddCacheSize(-1 * (drainer.drained + discarded));
+            signalNotFull(drainer.drained + discarded);
+        }
+
+        return drainer.drained;
+    }
+
+    /**
+     * Must hold takeLock.
+     * Read ahead the persisted sub pools nearest to the head, up to the queue depth of AsyncPageIO.
+     * Without AsyncPageIO, a queue of a DiskQueueManager loads the next persisted sub pool on the manager's threads.
+     */
+    private void prefetch(){
+        AsyncPageIO io = config.getAsyncPageIO();
+        if(null == io){
+            loadAhead();
+            return;
+        }
+
+        int scanned = 0;
+        int started = 0;
+        for(CacheSubPool<T> pool : inQueue){
+            if(started >= io.getQueueDepth() || ++scanned > 2 * io.getQueueDepth()){
+                break;
+            }
+            if(pool.isPersisted()){
+                pool.prefetch(io);
+                started++;
+            }
+        }
+    }
+
+    /**
+     * Must hold takeLock.
+     * Load the first persisted sub pool of the two nearest to the head on the persist/load threads of the manager,
+     * so it is read while the consumer handles its batch. Nothing is loaded if the page does not fit the heap of the queue or the manager.
+     */
+    private void loadAhead(){
+        if(null == manager || manager.isHeapFull() || getHeapSize() + 2 * config.getPageSize() > getSpillHeapCapacity()){
+            return;
+        }
+
+        CacheSubPool<T> next = null;
+        int scanned = 0;
+        for(CacheSubPool<T> pool : inQueue){
+            if(++scanned > 2){
+                break;
+            }
+            if(pool.isPersisted()){
+                next = pool;
+                break;
+            }
+        }
+        if(null == next || !loadingAhead.compareAndSet(false, true)){
+            return;
+        }
+
+        final CacheSubPool<T> pool = next;
+        try {
+            persistThread.execute(new Runnable() {
+                public void run() {
+                    try {
+                        pool.load();
+                    }
+                    catch (Exception e){
+                        LOGGER.debug("Failed to load subPool[" + pool.getId() + "] ahead, loaded again when drained: " + e.getMessage());
+                    }
+                    finally {
+                        loadingAhead.set(false);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e){
+            loadingAhead.set(false);
+        }
+    }
+
+    /**
+     * Objects in FIFO order without draining them, persisted sub pools are read from disk one by one without loading them to heap.
+     * Weakly consistent: reflects the sub pools when created, objects added or drained meanwhile may be missing or included.
+     * Read failed: throw IllegalStateException;
+     * @return
+     */
+    public Spliterator<T> spliterator() {
+        List<CacheSubPool<T>> pools = new ArrayList<>(inQueue);
+        return new SubPoolSpliterator<T>(pools, 0, pools.size());
+    }
+
+    /**
+     * See spliterator(), remove() is not supported.
+     * @return
+     */
+    public Iterator<T> iterator() {
+        return Spliterators.iterator(spliterator());
+    }
+
+    /**
+     * See spliterator(), a parallel stream reads the sub pools on many threads.
+     * @param parallel
+     * @return
+     */
+    public Stream<T> stream(boolean parallel) {
+        return StreamSupport.stream(spliterator(), parallel);
+    }
+
+    public Stream<T> stream() {
+        return stream(false);
+    }
+
+    public void clear() {
+        LOGGER.trace("Enter clear()");
+        try {
+            fullLock();
+            for (CacheSubPool<T> pool : inQueue) {
+                pool.clear();
+            }
+            inQueue.clear();
+
+            PageFilePool pageFilePool = config.getPageFilePool();
+            if(null != pageFilePool){
+                pageFilePool.clear();
+            }
+
+            statistics.getAndAddCacheSize(-1 * statistics.getCacheSize());
+            notFull.signalAll();
+        }
+        finally {
+            fullUnLock();
+        }
     }
 
     public boolean isEmpty(){
@@ -311,7 +1417,8 @@ public class DiskQueue<T> {
     }
 
     public boolean isDiskFull(){
-        return statistics.getDiskFileSize() >= config.getMaxDiskSize();
+        return statistics.getDiskFileSize() >= config.getMaxDiskSize()
+                || (null != manager && manager.isDiskFull());
     }
 
     public String getSummary(){
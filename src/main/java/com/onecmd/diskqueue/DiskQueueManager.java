@@ -0,0 +1,246 @@
+package com.onecmd.diskqueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Owns the resources shared by many DiskQueues in one JVM:
+ * the persist threads, one statistics reporter and a global heap/disk budget.
+ * A queue keeps objects in heap past its own heap capacity while the global heap capacity has room.
+ * When the objects in heap of all queues exceed the global heap capacity,
+ * the queues with the most cold data are spilled to disk first.
+ */
+public class DiskQueueManager {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(DiskQueueManager.class);
+
+    private static final int REPORT_INTERVAL_SECONDS = 10;
+    private static final int USABLE_SPACE_CHECK_SECONDS = 1;
+
+    private String diskCacheFileRoot;
+    private int heapCapacity;
+    private long maxDiskSize;
+
+    private ConcurrentHashMap<String, DiskQueue<?>> queues = new ConcurrentHashMap<>();
+    private CacheStatistics statistics = new CacheStatistics();
+
+    private ExecutorService persistExecutor;
+    private ScheduledExecutorService reportExecutor;
+
+    private AtomicBoolean spilling = new AtomicBoolean(false);
+
+    private HeapPressureMonitor heapPressureMonitor = null;
+
+    public DiskQueueManager(int persistThreads, int heapCapacity, long maxDiskSizeInMB, String diskCacheFileRoot){
+        this.heapCapacity = heapCapacity < 1 ? 0 : heapCapacity;
+        this.maxDiskSize = maxDiskSizeInMB < 1 ? new CacheConfig().getMaxDiskSize() : maxDiskSizeInMB*1024*1024;
+        this.diskCacheFileRoot = diskCacheFileRoot;
+
+        persistExecutor = Executors.newFixedThreadPool(persistThreads < 1 ? 1 : persistThreads, new DaemonThreadFactory("DiskQueue-persist"));
+        reportExecutor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("DiskQueue-report"));
+        reportExecutor.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                report();
+            }
+        }, REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        reportExecutor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                for(DiskQueue<?> queue : queues.values()){
+                    queue.checkUsableSpace();
+                }
+            }
+        }, 0, USABLE_SPACE_CHECK_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Create a queue sharing the resources of this manager, the disk files are stored in diskCacheFileRoot/name.
+     * Throw IllegalArgumentException if a queue with the same name exists.
+     */
+    public <T> DiskQueue<T> createQueue(String name, Class<T> objectType, int capacity, int heapCapacity, long maxDiskSizeInMB, int filePageSize, boolean usingDisk, int persistTimeoutSeconds){
+        if(queues.containsKey(name)){
+            throw new IllegalArgumentException("Queue exists: " + name);
+        }
+
+        DiskQueue<T> queue = new DiskQueue<T>(this, name, objectType, capacity, heapCapacity, maxDiskSizeInMB, filePageSize, usingDisk, persistTimeoutSeconds, diskCacheFileRoot);
+        if(null != queues.putIfAbsent(name, queue)){
+            queue.clear();
+            throw new IllegalArgumentException("Queue exists: " + name);
+        }
+
+        HeapPressureMonitor monitor = heapPressureMonitor;
+        if(null != monitor){
+            monitor.register(queue);
+        }
+        return queue;
+    }
+
+    public DiskQueue<?> getQueue(String name){
+        return queues.get(name);
+    }
+
+    public Collection<DiskQueue<?>> getQueues(){
+        return Collections.unmodifiableCollection(queues.values());
+    }
+
+    /**
+     * Clear the queue and remove it from this manager.
+     */
+    public void removeQueue(String name){
+        DiskQueue<?> queue = queues.remove(name);
+        if(null != queue){
+            HeapPressureMonitor monitor = heapPressureMonitor;
+            if(null != monitor){
+                monitor.unregister(queue);
+            }
+            queue.clear();
+        }
+    }
+
+    /**
+     * Spill cold pages of all queues when the old generation occupancy crosses highThreshold,
+     * see HeapPressureMonitor.
+     * Return false if the JVM does not support usage threshold notifications.
+     */
+    public synchronized boolean enableHeapPressureSpilling(double highThreshold, double lowThreshold){
+        disableHeapPressureSpilling();
+
+        HeapPressureMonitor monitor = new HeapPressureMonitor(highThreshold, lowThreshold);
+        if(!monitor.start()){
+            monitor.stop();
+            return false;
+        }
+
+        for(DiskQueue<?> queue : queues.values()){
+            monitor.register(queue);
+        }
+        heapPressureMonitor = monitor;
+        return true;
+    }
+
+    public synchronized void disableHeapPressureSpilling(){
+        HeapPressureMonitor monitor = heapPressureMonitor;
+        heapPressureMonitor = null;
+        if(null != monitor){
+            monitor.stop();
+            for(DiskQueue<?> queue : queues.values()){
+                monitor.unregister(queue);
+            }
+        }
+    }
+
+    public CacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    public int getHeapCapacity() {
+        return heapCapacity;
+    }
+
+    public long getMaxDiskSize() {
+        return maxDiskSize;
+    }
+
+    ExecutorService getPersistExecutor() {
+        return persistExecutor;
+    }
+
+    public boolean isDiskFull(){
+        return statistics.getDiskFileSize() >= maxDiskSize;
+    }
+
+    public boolean isHeapFull(){
+        return statistics.getHeapSize() > heapCapacity;
+    }
+
+    /**
+     * Spill cold pages when the objects in heap of all queues exceed the global heap capacity.
+     * Only one thread spills at a time, others return directly.
+     */
+    void checkHeapBudget(){
+        if(!isHeapFull() || !spilling.compareAndSet(false, true)){
+            return;
+        }
+
+        try {
+            for (DiskQueue<?> queue : getSpillCandidates()) {
+                int exceed = statistics.getHeapSize() - heapCapacity;
+                if (exceed <= 0) {
+                    break;
+                }
+                queue.spillColdPages(exceed);
+            }
+        }
+        finally {
+            spilling.set(false);
+        }
+    }
+
+    /**
+     * Queues having cold data, the queue with the most cold data first.
+     */
+    private List<DiskQueue<?>> getSpillCandidates(){
+        final Map<DiskQueue<?>, Integer> coldSizes = new HashMap<>();
+        for(DiskQueue<?> queue : queues.values()){
+            int cold = queue.getColdHeapSize();
+            if(cold > 0){
+                coldSizes.put(queue, cold);
+            }
+        }
+
+        List<DiskQueue<?>> candidates = new ArrayList<>(coldSizes.keySet());
+        Collections.sort(candidates, new Comparator<DiskQueue<?>>() {
+            public int compare(DiskQueue<?> q1, DiskQueue<?> q2) {
+                return coldSizes.get(q2).compareTo(coldSizes.get(q1));
+            }
+        });
+        return candidates;
+    }
+
+    private void report(){
+        LOGGER.info("Manager: " + getSummary());
+        for(DiskQueue<?> queue : queues.values()){
+            LOGGER.info("Queue[name=" + queue.getName() + "]: " + queue.getSummary());
+        }
+    }
+
+    /**
+     * Clear and remove all queues, stop the shared threads.
+     */
+    public void shutdown(){
+        disableHeapPressureSpilling();
+        for(String name : new ArrayList<>(queues.keySet())){
+            removeQueue(name);
+        }
+        reportExecutor.shutdownNow();
+        persistExecutor.shutdown();
+    }
+
+    public String getSummary(){
+        return "heapCapacity=" + heapCapacity + ", maxDiskSize=" + maxDiskSize + ", queues=" + queues.size() + ", " + statistics.toString();
+    }
+
+    static class DaemonThreadFactory implements ThreadFactory {
+        private String prefix;
+        private AtomicInteger count = new AtomicInteger(0);
+
+        DaemonThreadFactory(String prefix){
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.onecmd.diskqueue;
+
+import java.util.List;
+
+/**
+ * A persister which encodes a page to bytes and decodes it back without touching files,
+ * so the file I/O can be done by AsyncPageIO.
+ */
+public interface EncodingCachePersiter<T> extends CachePersiter<T> {
+
+    /**
+     * @param objectList
+     * @param firstEnqueueTime
+     * @param lastEnqueueTime
+     * @return the content of a page file
+     * @throws Exception
+     */
+    byte[] encode(List<T> objectList, long firstEnqueueTime, long lastEnqueueTime) throws Exception;
+
+    /**
+     * Failed: throw CorruptedPageException if the page does not match its header;
+     * @param page content of a page file, bytes after the payload are ignored
+     * @param name file name for messages
+     * @param objectType
+     * @return
+     * @throws Exception
+     */
+    List<T> decode(byte[] page, String name, Class<T> objectType) throws Exception;
+
+    /**
+     * See decode(), objects are decoded one by one when drained.
+     * @param page
+     * @param name
+     * @param objectType
+     * @return
+     * @throws Exception
+     */
+    LazyPage<T> decodeLazy(byte[] page, String name, Class<T> objectType) throws Exception;
+
+    /**
+     * @param obj
+     * @return bytes obj takes in the payload of a page, as counted by LazyPage
+     * @throws Exception
+     */
+    long encodedSize(T obj) throws Exception;
+}
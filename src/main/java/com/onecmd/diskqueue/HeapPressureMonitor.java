@@ -0,0 +1,222 @@
+package com.onecmd.diskqueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Watch the old generation heap pool through JVM memory notifications.
+ * When its occupancy crosses highThreshold, the registered queues keep at most two pages in heap
+ * and their cold pages are spilled to disk in the background.
+ * When the occupancy after a GC drops below lowThreshold, the queues use their full heap capacity again.
+ */
+public class HeapPressureMonitor implements NotificationListener {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(HeapPressureMonitor.class);
+
+    /**
+     * com.sun.management.GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION
+     */
+    private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+    private double highThreshold;
+    private double lowThreshold;
+
+    private MemoryPoolMXBean tenuredPool = null;
+    private List<NotificationEmitter> emitters = new ArrayList<>();
+
+    private volatile boolean underPressure = false;
+    private CopyOnWriteArrayList<DiskQueue<?>> queues = new CopyOnWriteArrayList<>();
+
+    private ExecutorService spillThread = Executors.newSingleThreadExecutor(new DiskQueueManager.DaemonThreadFactory("DiskQueue-heap-pressure"));
+    private AtomicBoolean spillScheduled = new AtomicBoolean(false);
+
+    /**
+     * @param highThreshold fraction of the old generation max size, e.g. 0.8
+     * @param lowThreshold fraction of the old generation max size after GC to leave pressure mode, e.g. 0.6
+     */
+    public HeapPressureMonitor(double highThreshold, double lowThreshold){
+        if(highThreshold <= 0 || highThreshold >= 1 || lowThreshold <= 0 || lowThreshold > highThreshold){
+            throw new IllegalArgumentException("Thresholds should be 0 < lowThreshold <= highThreshold < 1: high=" + highThreshold + ", low=" + lowThreshold);
+        }
+        this.highThreshold = highThreshold;
+        this.lowThreshold = lowThreshold;
+    }
+
+    /**
+     * Subscribe to the usage threshold and post-GC notifications.
+     * Return false if no heap pool supports usage thresholds, queues are then never marked under pressure.
+     * A stopped monitor can not be started again.
+     */
+    public synchronized boolean start(){
+        if(spillThread.isShutdown()){
+            throw new IllegalStateException("Heap pressure monitor stopped.");
+        }
+        if(null != tenuredPool){
+            return true;
+        }
+
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+            if(pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()
+                    && pool.isCollectionUsageThresholdSupported() && pool.getUsage().getMax() > 0){
+                tenuredPool = pool;
+                break;
+            }
+        }
+        if(null == tenuredPool){
+            LOGGER.warn("Heap pressure spilling disabled: no heap memory pool supports usage threshold.");
+            return false;
+        }
+
+        long max = tenuredPool.getUsage().getMax();
+        tenuredPool.setUsageThreshold((long) (max * highThreshold));
+        tenuredPool.setCollectionUsageThreshold((long) (max * highThreshold));
+
+        addListener(ManagementFactory.getMemoryMXBean());
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+            addListener(gc);
+        }
+
+        LOGGER.info("Heap pressure spilling started: pool=" + tenuredPool.getName() + ", max=" + max + ", high=" + highThreshold + ", low=" + lowThreshold);
+        return true;
+    }
+
+    private void addListener(Object bean){
+        if(bean instanceof NotificationEmitter){
+            NotificationEmitter emitter = (NotificationEmitter) bean;
+            emitter.addNotificationListener(this, null, null);
+            emitters.add(emitter);
+        }
+    }
+
+    /**
+     * Unsubscribe, leave pressure mode and stop the spilling thread.
+     */
+    public synchronized void stop(){
+        for(NotificationEmitter emitter : emitters){
+            try {
+                emitter.removeNotificationListener(this);
+            } catch (ListenerNotFoundException e) {
+                LOGGER.trace("Listener not found: " + e.getMessage());
+            }
+        }
+        emitters.clear();
+
+        if(null != tenuredPool){
+            tenuredPool.setUsageThreshold(0);
+            tenuredPool.setCollectionUsageThreshold(0);
+            tenuredPool = null;
+        }
+
+        setUnderPressure(false);
+        spillThread.shutdownNow();
+    }
+
+    public void register(DiskQueue<?> queue){
+        queues.addIfAbsent(queue);
+        queue.setHeapPressure(underPressure);
+    }
+
+    public void unregister(DiskQueue<?> queue){
+        if(queues.remove(queue)){
+            queue.setHeapPressure(false);
+        }
+    }
+
+    public boolean isUnderPressure(){
+        return underPressure;
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        String type = notification.getType();
+        if(MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(type)
+                || MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(type)){
+            MemoryPoolMXBean pool = tenuredPool;
+            MemoryNotificationInfo info = MemoryNotificationInfo.from((CompositeData) notification.getUserData());
+            if(null != pool && pool.getName().equals(info.getPoolName())) {
+                setUnderPressure(true);
+            }
+        }
+        else if(GC_NOTIFICATION.equals(type)){
+            MemoryPoolMXBean pool = tenuredPool;
+            MemoryUsage usage = null == pool ? null : pool.getCollectionUsage();
+            if(null != usage){
+                checkUsage(usage.getUsed(), usage.getMax());
+            }
+        }
+    }
+
+    /**
+     * Decide the pressure from the old generation usage after a GC.
+     */
+    void checkUsage(long used, long max){
+        if(max <= 0){
+            return;
+        }
+
+        double occupancy = (double) used / max;
+        if(occupancy >= highThreshold){
+            setUnderPressure(true);
+        }
+        else if(occupancy < lowThreshold){
+            setUnderPressure(false);
+        }
+    }
+
+    private void setUnderPressure(boolean pressure){
+        boolean prev = underPressure;
+        underPressure = pressure;
+
+        for(DiskQueue<?> queue : queues){
+            queue.setHeapPressure(pressure);
+        }
+
+        if(pressure){
+            if(!prev){
+                LOGGER.warn("Heap pressure: spill cold pages of " + queues.size() + " queues.");
+            }
+            scheduleSpill();
+        }
+        else if(prev){
+            LOGGER.info("Heap pressure eased: queues use full heap capacity.");
+        }
+    }
+
+    private void scheduleSpill(){
+        if(!spillScheduled.compareAndSet(false, true)){
+            return;
+        }
+
+        try {
+            spillThread.execute(new Runnable() {
+                public void run() {
+                    spillScheduled.set(false);
+                    for (DiskQueue<?> queue : queues) {
+                        queue.spillColdPages(Integer.MAX_VALUE);
+                    }
+                }
+            });
+        }
+        catch (Exception e){
+            spillScheduled.set(false);
+            LOGGER.warn("Failed to schedule spilling: " + e.getMessage());
+        }
+    }
+}
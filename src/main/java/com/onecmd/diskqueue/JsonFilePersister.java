@@ -1,5 +1,8 @@
 package com.onecmd.diskqueue;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -8,13 +11,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
+ * Write objects as a JSON array after a PageHeader, the checksum is verified when read.
+ * A file failing the verification throws CorruptedPageException and is not read again.
  */
-public class JsonFilePersister<T> implements CachePersiter{
+public class JsonFilePersister<T> implements LazyCachePersiter<T>, EncodingCachePersiter<T>{
 
     private static Logger LOGGER = LoggerFactory.getLogger(JsonFilePersister.class);
 
@@ -26,23 +34,127 @@ public class JsonFilePersister<T> implements CachePersiter{
     }
 
     @Override
-    public long write(File file, List objectList) throws Exception{
-        return retryWriteDataToFile(file, objectList);
+    public long write(File file, List<T> objectList) throws Exception{
+        long now = System.currentTimeMillis();
+        return retryWriteDataToFile(file, objectList, now, now);
     }
 
     @Override
-    public List<T> read(File file, Class objectType) throws Exception{
+    public long write(File file, List<T> objectList, long firstEnqueueTime, long lastEnqueueTime) throws Exception{
+        return retryWriteDataToFile(file, objectList, firstEnqueueTime, lastEnqueueTime);
+    }
+
+    @Override
+    public List<T> read(File file, Class<T> objectType) throws Exception{
         JavaType javaType = jsonMapper.getTypeFactory().constructParametricType(ArrayList.class, objectType);
         return retryReadDataToFile(file, javaType);
     }
 
-    private long retryWriteDataToFile(File file, List<T> buffer) throws Exception {
+    @Override
+    public LazyPage<T> readLazy(File file, Class<T> objectType) throws Exception{
+        int failedTimes = FAILED_RETRY_TIMES;
+        IOException exception= null;
+        while ((failedTimes--) > 0)  {
+            try {
+                return readLazyPage(file, objectType);
+            }
+            catch (CorruptedPageException e){
+                throw e;
+            }
+            catch (IOException e){
+                exception = e;
+                LOGGER.trace("Try to readLazyPage failed(failedTimes="+failedTimes+"): " + e.getMessage(), e);
+            }
+        }
+
+        throw exception;
+    }
+
+    private LazyPage<T> readLazyPage(File file, Class<T> objectType) throws IOException {
+        return decodeLazy(PageHeader.readPage(file), file.getName(), objectType);
+    }
+
+    @Override
+    public byte[] encode(List<T> objectList, long firstEnqueueTime, long lastEnqueueTime) throws IOException {
+        byte[] payload = jsonMapper.writeValueAsBytes(objectList);
+        byte[] page = new byte[PageHeader.SIZE + payload.length];
+        PageHeader.create(objectList.size(), payload, 0, payload.length, firstEnqueueTime, lastEnqueueTime)
+                .writeTo(ByteBuffer.wrap(page, 0, PageHeader.SIZE));
+        System.arraycopy(payload, 0, page, PageHeader.SIZE, payload.length);
+        return page;
+    }
+
+    /**
+     * Size of the JSON element plus its separator in the array.
+     */
+    @Override
+    public long encodedSize(T obj) throws IOException {
+        return jsonMapper.writeValueAsBytes(obj).length + 1;
+    }
+
+    @Override
+    public List<T> decode(byte[] page, String name, Class<T> objectType) throws IOException {
+        JavaType javaType = jsonMapper.getTypeFactory().constructParametricType(ArrayList.class, objectType);
+        return decode(page, name, javaType);
+    }
+
+    /**
+     * Index the start of each element of the JSON array without decoding them.
+     */
+    @Override
+    public LazyPage<T> decodeLazy(byte[] data, String name, Class<T> objectType) throws IOException {
+        PageHeader header = PageHeader.parse(data, name);
+        int from = 0;
+        int length = data.length;
+        if(null != header){
+            header.verify(data, PageHeader.SIZE, name);
+            from = PageHeader.SIZE;
+            length = header.getPayloadLength();
+        }
+
+        int[] offsets = new int[null == header ? 64 : header.getCount() + 1];
+        int count = 0;
+
+        JsonParser parser = jsonMapper.getFactory().createParser(data, from, length);
+        try {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("File is not a JSON array: " + name);
+            }
+
+            JsonToken token;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (null == token) {
+                    throw new IOException("Unexpected end of file: " + name);
+                }
+                if (count + 1 >= offsets.length) {
+                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                }
+                offsets[count++] = from + (int) parser.getTokenLocation().getByteOffset();
+                parser.skipChildren();
+            }
+            offsets[count] = from + (int) parser.getTokenLocation().getByteOffset();
+        }
+        catch (JsonProcessingException e){
+            throw new CorruptedPageException("Page damaged: " + name + ", " + e.getOriginalMessage(), e);
+        }
+        finally {
+            parser.close();
+        }
+
+        if(null != header && count != header.getCount()){
+            throw new CorruptedPageException("Page damaged: " + name + ", size=" + count + ", expected=" + header.getCount());
+        }
+
+        return new LazyPage<T>(data, offsets, count, jsonMapper.readerFor(objectType));
+    }
+
+    private long retryWriteDataToFile(File file, List<T> buffer, long firstEnqueueTime, long lastEnqueueTime) throws Exception {
         int failedTimes = FAILED_RETRY_TIMES;
         IOException exception= null;
 
         while ((failedTimes--) > 0) {
             try {
-                long size = writeDataToFile(file, buffer);
+                long size = writeDataToFile(file, buffer, firstEnqueueTime, lastEnqueueTime);
                 return size;
             } catch (IOException e) {
                 exception = e;
@@ -54,15 +166,19 @@ public class JsonFilePersister<T> implements CachePersiter{
         throw exception;
     }
 
-    private long writeDataToFile(File file, List<T> buffer) throws Exception {
-        FileUtils.deleteQuietly(file);
-        if(!file.exists()){
-            file.createNewFile();
+    /**
+     * An existing file, e.g. a recycled page file, is overwritten in place without truncating it.
+     */
+    private long writeDataToFile(File file, List<T> buffer, long firstEnqueueTime, long lastEnqueueTime) throws Exception {
+        byte[] page = encode(buffer, firstEnqueueTime, lastEnqueueTime);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.write(page);
         }
-        else {
-            throw new IOException("File exist: "+file.getName() +", failed to delete it.");
+        finally {
+            raf.close();
         }
-        jsonMapper.writeValue(file, buffer);
         return file.length();
     }
 
@@ -71,8 +187,10 @@ public class JsonFilePersister<T> implements CachePersiter{
         IOException exception= null;
         while ((failedTimes--) > 0)  {
             try {
-                ArrayList<T> diskCaches = jsonMapper.readValue(file, jacksonJavaType);
-                return diskCaches;
+                return readDataFromFile(file, jacksonJavaType);
+            }
+            catch (CorruptedPageException e){
+                throw e;
             }
             catch (IOException e){
                 exception = e;
@@ -83,4 +201,32 @@ public class JsonFilePersister<T> implements CachePersiter{
         throw exception;
     }
 
+    private ArrayList<T> readDataFromFile(File file, JavaType jacksonJavaType) throws IOException {
+        return decode(PageHeader.readPage(file), file.getName(), jacksonJavaType);
+    }
+
+    private ArrayList<T> decode(byte[] data, String name, JavaType jacksonJavaType) throws IOException {
+        PageHeader header = PageHeader.parse(data, name);
+        int from = 0;
+        int length = data.length;
+        if(null != header){
+            header.verify(data, PageHeader.SIZE, name);
+            from = PageHeader.SIZE;
+            length = header.getPayloadLength();
+        }
+
+        ArrayList<T> diskCaches;
+        try {
+            diskCaches = jsonMapper.readValue(data, from, length, jacksonJavaType);
+        }
+        catch (JsonProcessingException e){
+            throw new CorruptedPageException("Page damaged: " + name + ", " + e.getOriginalMessage(), e);
+        }
+
+        if(null == diskCaches || (null != header && diskCaches.size() != header.getCount())){
+            throw new CorruptedPageException("Page damaged: " + name + ", size=" + (null == diskCaches ? 0 : diskCaches.size())
+                    + ", expected=" + (null == header ? "-" : header.getCount()));
+        }
+        return diskCaches;
+    }
 }
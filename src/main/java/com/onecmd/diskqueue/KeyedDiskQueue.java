@@ -0,0 +1,457 @@
+package com.onecmd.diskqueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue keeping FIFO order per key only: objects are hashed by key to lanes, each lane is a chain of sub pools.
+ * A consumer drains a lane through a lease, a lane is leased to one consumer at a time,
+ * so many consumers drain different lanes concurrently and the objects of one key are still processed in order.
+ * Leases are balanced: a consumer gets at most lanes/consumers leases,
+ * and renew() gives up the leases above that share when other consumers join.
+ */
+public class KeyedDiskQueue<T> {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(KeyedDiskQueue.class);
+
+    private String name;
+    private CacheConfig config;
+    private CacheStatistics statistics;
+
+    private List<Lane<T>> lanes;
+
+    /**
+     * Slots reserved by add() on lanes not added yet, adds on different lanes run concurrently.
+     */
+    private AtomicInteger reserved = new AtomicInteger(0);
+
+    /**
+     * Heap slots reserved by add() on lanes not added yet, so the lanes together never exceed heap capacity.
+     */
+    private AtomicInteger heapReserved = new AtomicInteger(0);
+
+    /**
+     * consumer id -> alive until, updated by acquire() and renew()
+     */
+    private ConcurrentHashMap<String, Long> consumers = new ConcurrentHashMap<>();
+    private Lock leaseLock = new ReentrantLock();
+
+    /**
+     * @param name
+     * @param objectType
+     * @param laneCount number of lanes, the maximum number of consumers draining concurrently
+     * @param capacity
+     * @param heapCapacity shared by all lanes
+     * @param maxDiskSizeInMB
+     * @param filePageSize
+     * @param usingDisk
+     * @param diskCacheFileRoot
+     */
+    public KeyedDiskQueue(String name, Class<T> objectType, int laneCount, int capacity, int heapCapacity, long maxDiskSizeInMB, int filePageSize, boolean usingDisk, String diskCacheFileRoot){
+        if(laneCount < 1){
+            throw new IllegalArgumentException("Parameter laneCount should be greater than 0: " + laneCount);
+        }
+
+        this.name = name;
+        statistics = new CacheStatistics();
+
+        config = CacheConfig.create(name, capacity, heapCapacity, maxDiskSizeInMB, filePageSize, usingDisk, diskCacheFileRoot);
+        config.initDiskStorage();
+
+        lanes = new ArrayList<>(laneCount);
+        for(int i=0; i<laneCount; i++){
+            lanes.add(new Lane<T>(i, new SubPoolChain<T>(config, statistics, objectType)));
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public CacheConfig getConfig() {
+        return config;
+    }
+
+    public CacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    public int getLaneCount(){
+        return lanes.size();
+    }
+
+    public int size(){
+        return statistics.getCacheSize();
+    }
+
+    /**
+     * @param lane
+     * @return number of objects of the lane
+     */
+    public int size(int lane){
+        Lane<T> l = lanes.get(lane);
+        try {
+            l.lock.lock();
+            return l.chain.size();
+        }
+        finally {
+            l.lock.unlock();
+        }
+    }
+
+    public int getHeapSize(){
+        return statistics.getHeapSize();
+    }
+
+    public boolean isEmpty(){
+        return size()<1;
+    }
+
+    public boolean isDiskFull(){
+        return statistics.getDiskFileSize() >= config.getMaxDiskSize();
+    }
+
+    /**
+     * @param key
+     * @return lane of the key
+     */
+    public int getLane(Object key){
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return Math.floorMod(h, lanes.size());
+    }
+
+    /**
+     * Success: return true;
+     * Queue full, heap full or disk full: return false;
+     * @param key objects of equal keys are drained in adding order
+     * @param obj
+     * @return
+     */
+    public boolean add(Object key, T obj){
+        LOGGER.trace("Enter add()");
+        if(null == key || null == obj){
+            throw new NullPointerException("Parameters key and obj should not be NULL.");
+        }
+
+        if(size() + reserved.incrementAndGet() > config.getCapacity()){
+            reserved.decrementAndGet();
+            LOGGER.warn("Failed to add to queue[name=" + name + "]: queue full: capacity=" + config.getCapacity() + ", size: " + size());
+            return false;
+        }
+
+        Lane<T> lane = lanes.get(getLane(key));
+        heapReserved.incrementAndGet();
+        try {
+            lane.lock.lock();
+
+            if(getHeapSize() + heapReserved.get() > config.getHeapCapacity()){
+                spill(lane);
+            }
+            if(getHeapSize() + heapReserved.get() > config.getHeapCapacity()){
+                LOGGER.warn("Failed to add to queue[name=" + name + "]: heap full: heapCapacity=" + config.getHeapCapacity() + ", heapSize=" + getHeapSize()
+                        + ", diskFull=" + isDiskFull());
+                return false;
+            }
+
+            lane.chain.add(obj);
+            return true;
+        }
+        catch (Exception e){
+            LOGGER.error("Failed to add to queue[name=" + name + "]: " + e.getMessage(), e);
+            return false;
+        }
+        finally {
+            lane.lock.unlock();
+            heapReserved.decrementAndGet();
+            reserved.decrementAndGet();
+        }
+    }
+
+    /**
+     * Must hold the lock of lane.
+     * Persist the lane, then the other lanes not being used, until the heap size and reserved slots are a page below heap capacity.
+     * @param lane
+     */
+    private void spill(Lane<T> lane){
+        if(!config.isUsingDisk()){
+            return;
+        }
+
+        for(int i=0; i<lanes.size() && !isDiskFull(); i++){
+            int excess = getHeapSize() + heapReserved.get() + config.getPageSize() - config.getHeapCapacity();
+            if(excess <= 0){
+                break;
+            }
+
+            Lane<T> other = lanes.get((lane.id + i) % lanes.size());
+            if(other.lock.tryLock()){
+                try {
+                    other.chain.spill(excess);
+                }
+                finally {
+                    other.lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Must hold leaseLock.
+     * Forget consumers not alive, return the fair number of leases per consumer.
+     * @param now
+     * @return
+     */
+    private int getFairShare(long now){
+        Iterator<Map.Entry<String, Long>> iter = consumers.entrySet().iterator();
+        while (iter.hasNext()){
+            if(iter.next().getValue() < now){
+                iter.remove();
+            }
+        }
+
+        int alive = Math.max(1, consumers.size());
+        return (lanes.size() + alive - 1) / alive;
+    }
+
+    /**
+     * Must hold leaseLock.
+     * @param consumerId
+     * @param now
+     * @return
+     */
+    private int getLeaseCount(String consumerId, long now){
+        int total = 0;
+        for(Lane<T> lane : lanes){
+            Lease lease = lane.lease;
+            if(null != lease && lease.isValid(now) && lease.consumerId.equals(consumerId)){
+                total++;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Lease a lane not leased by others, the lane having most objects first.
+     * Return null if all lanes are leased or the consumer already has its fair share of lanes.
+     * @param consumerId
+     * @param leaseMillis the lease expires if not renewed in time, then other consumers can take the lane
+     * @return
+     */
+    public Lease acquire(String consumerId, long leaseMillis){
+        if(null == consumerId){
+            throw new NullPointerException("Parameter consumerId should not be NULL.");
+        }
+
+        try {
+            leaseLock.lock();
+
+            long now = System.currentTimeMillis();
+            consumers.put(consumerId, now + leaseMillis);
+            if(getLeaseCount(consumerId, now) >= getFairShare(now)){
+                return null;
+            }
+
+            Lane<T> candidate = null;
+            int candidateSize = -1;
+            for(Lane<T> lane : lanes){
+                Lease lease = lane.lease;
+                if(null != lease && lease.isValid(now)){
+                    continue;
+                }
+
+                int laneSize = size(lane.id);
+                if(laneSize > candidateSize){
+                    candidate = lane;
+                    candidateSize = laneSize;
+                }
+            }
+            if(null == candidate){
+                return null;
+            }
+
+            Lease lease = new Lease(candidate, consumerId, leaseMillis, now);
+            candidate.lease = lease;
+            LOGGER.trace("Lane[" + candidate.id + "] of queue[name=" + name + "] leased to " + consumerId);
+            return lease;
+        }
+        finally {
+            leaseLock.unlock();
+        }
+    }
+
+    /**
+     * Release all leases of the consumer, its lanes can be leased by others at once.
+     * @param consumerId
+     */
+    public void leave(String consumerId){
+        try {
+            leaseLock.lock();
+
+            consumers.remove(consumerId);
+            for(Lane<T> lane : lanes){
+                Lease lease = lane.lease;
+                if(null != lease && lease.consumerId.equals(consumerId)){
+                    lane.lease = null;
+                }
+            }
+        }
+        finally {
+            leaseLock.unlock();
+        }
+    }
+
+    public void clear(){
+        LOGGER.trace("Enter clear()");
+        for(Lane<T> lane : lanes){
+            try {
+                lane.lock.lock();
+                lane.chain.clear();
+            }
+            finally {
+                lane.lock.unlock();
+            }
+        }
+    }
+
+    public String getSummary(){
+        return config.toString() + ", lanes=" + lanes.size() + ", consumers=" + consumers.size() + ", " + statistics.toString();
+    }
+
+    /**
+     * The right of one consumer to drain one lane until it expires.
+     * Objects drained after the lease expired or was released may be drained by another consumer concurrently,
+     * renew it before processing takes longer than the lease.
+     */
+    public class Lease {
+        private Lane<T> lane;
+        private String consumerId;
+        private long leaseMillis;
+        private volatile long expireAt;
+
+        private Lease(Lane<T> lane, String consumerId, long leaseMillis, long now){
+            this.lane = lane;
+            this.consumerId = consumerId;
+            this.leaseMillis = leaseMillis;
+            this.expireAt = now + leaseMillis;
+        }
+
+        public int getLane(){
+            return lane.id;
+        }
+
+        public String getConsumerId(){
+            return consumerId;
+        }
+
+        public long getExpireAt(){
+            return expireAt;
+        }
+
+        private boolean isValid(long now){
+            return lane.lease == this && expireAt > now;
+        }
+
+        public boolean isValid(){
+            return isValid(System.currentTimeMillis());
+        }
+
+        /**
+         * Extend the lease by leaseMillis.
+         * Return false if it expired or was released, also when the consumer has more leases than its fair share,
+         * then this lease is released for rebalancing, and the consumer should stop draining the lane.
+         * @return
+         */
+        public boolean renew(){
+            try {
+                leaseLock.lock();
+
+                long now = System.currentTimeMillis();
+                if(!isValid(now)){
+                    return false;
+                }
+
+                consumers.put(consumerId, now + leaseMillis);
+                if(getLeaseCount(consumerId, now) > getFairShare(now)){
+                    lane.lease = null;
+                    LOGGER.trace("Lane[" + lane.id + "] of queue[name=" + name + "] released by " + consumerId + " for rebalancing");
+                    return false;
+                }
+
+                expireAt = now + leaseMillis;
+                return true;
+            }
+            finally {
+                leaseLock.unlock();
+            }
+        }
+
+        public void release(){
+            try {
+                leaseLock.lock();
+                if(lane.lease == this){
+                    lane.lease = null;
+                }
+            }
+            finally {
+                leaseLock.unlock();
+            }
+        }
+
+        /**
+         * @return number of objects of the lane
+         */
+        public int size(){
+            return KeyedDiskQueue.this.size(lane.id);
+        }
+
+        /**
+         * Success: return how much drained;
+         * Lease expired or released: throw IllegalStateException;
+         * Failed: throw exception;
+         * @param list
+         * @param fetchSize
+         * @return
+         * @throws Exception
+         */
+        public int drainTo(List<T> list, int fetchSize) throws Exception {
+            if(null == list){
+                throw new NullPointerException("Parameter list should not be NULL.");
+            }
+
+            try {
+                lane.lock.lock();
+
+                if(!isValid()){
+                    throw new IllegalStateException("Lease of lane[" + lane.id + "] expired or released: consumer=" + consumerId);
+                }
+                return lane.chain.drainTo(list, fetchSize);
+            }
+            finally {
+                lane.lock.unlock();
+            }
+        }
+    }
+
+    private static class Lane<T> {
+        private int id;
+        private SubPoolChain<T> chain;
+        private Lock lock = new ReentrantLock();
+        private volatile KeyedDiskQueue<T>.Lease lease = null;
+
+        Lane(int id, SubPoolChain<T> chain){
+            this.id = id;
+            this.chain = chain;
+        }
+    }
+}
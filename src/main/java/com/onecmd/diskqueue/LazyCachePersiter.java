@@ -0,0 +1,11 @@
+package com.onecmd.diskqueue;
+
+import java.io.File;
+
+/**
+ * A persister which can load a file without decoding its objects, they are decoded one by one when drained.
+ */
+public interface LazyCachePersiter<T> extends CachePersiter<T> {
+
+    LazyPage<T> readLazy(File file, Class<T> objectType) throws Exception;
+}
@@ -0,0 +1,158 @@
+package com.onecmd.diskqueue;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A page loaded from disk and kept in its serialized form plus the offset of each object,
+ * objects are decoded only when they are drained.
+ */
+public class LazyPage<T> {
+
+    private byte[] data;
+    private int[] offsets;
+    private int count;
+    private int next = 0;
+    private ObjectReader reader;
+
+    /**
+     * @param data serialized objects
+     * @param offsets offsets[i] is the start of object i in data, offsets[count] is the end of the last object
+     * @param count number of objects
+     * @param reader decode one object
+     */
+    public LazyPage(byte[] data, int[] offsets, int count, ObjectReader reader){
+        this.data = data;
+        this.offsets = offsets;
+        this.count = count;
+        this.reader = reader;
+    }
+
+    /**
+     * @return number of objects not drained
+     */
+    public int size(){
+        return count - next;
+    }
+
+    public int getByteSize(){
+        return null == data ? 0 : data.length;
+    }
+
+    /**
+     * @return serialized size of the next object, without decoding it
+     */
+    public int nextByteSize(){
+        if(next >= count){
+            throw new IllegalStateException("No more objects in page.");
+        }
+        return offsets[next + 1] - offsets[next];
+    }
+
+    /**
+     * Decode the next object, the page is not changed if decoding failed.
+     * @return
+     * @throws IOException
+     */
+    public T next() throws IOException {
+        if(next >= count){
+            throw new IllegalStateException("No more objects in page.");
+        }
+
+        T obj = decode(next);
+        next++;
+        if(next >= count){
+            release();
+        }
+        return obj;
+    }
+
+    /**
+     * Drop the next object without decoding it, e.g. it is expired.
+     */
+    public void skip(){
+        if(next >= count){
+            throw new IllegalStateException("No more objects in page.");
+        }
+
+        next++;
+        if(next >= count){
+            release();
+        }
+    }
+
+    /**
+     * Decode all objects not drained, the page is empty after success and not changed if decoding failed.
+     * @return
+     * @throws IOException
+     */
+    public List<T> decodeRemaining() throws IOException {
+        ArrayList<T> list = new ArrayList<T>(size());
+        for(int i=next; i<count; i++){
+            list.add(decode(i));
+        }
+        next = count;
+        release();
+        return list;
+    }
+
+    /**
+     * Decode all objects not drained, the page is not changed.
+     * @return
+     * @throws IOException
+     */
+    public List<T> peekRemaining() throws IOException {
+        ArrayList<T> list = new ArrayList<T>(size());
+        for(int i=next; i<count; i++){
+            list.add(decode(i));
+        }
+        return list;
+    }
+
+    private T decode(int index) throws IOException {
+        int start = offsets[index];
+        int end = offsets[index + 1];
+        while (end > start && isSeparator(data[end - 1])){
+            end--;
+        }
+
+        return reader.readValue(data, start, end - start);
+    }
+
+    private void release(){
+        data = null;
+        offsets = null;
+    }
+
+    /**
+     * Success: return how much drained;
+     * Decode failed: return how much drained before the failed object, throw exception if none drained;
+     * @param list
+     * @param fetchSize
+     * @return
+     * @throws IOException
+     */
+    public int drainTo(Collection<? super T> list, int fetchSize) throws IOException {
+        int total = 0;
+        while (total < fetchSize && size() > 0){
+            try {
+                list.add(next());
+            }
+            catch (IOException e){
+                if(total > 0){
+                    return total;
+                }
+                throw e;
+            }
+            total++;
+        }
+        return total;
+    }
+
+    private boolean isSeparator(byte b){
+        return b == ',' || b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+}
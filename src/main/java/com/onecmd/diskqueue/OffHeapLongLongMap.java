@@ -0,0 +1,219 @@
+package com.onecmd.diskqueue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Open addressing hash map from long to long with linear probing,
+ * the table is a direct ByteBuffer out of the java heap, so millions of keys add no objects for the GC.
+ * Not thread safe.
+ */
+class OffHeapLongLongMap {
+
+    private static final int ENTRY_SIZE = 16;
+    /**
+     * A ByteBuffer holds at most Integer.MAX_VALUE bytes, the largest table is 1 GB.
+     */
+    static final int MAX_CAPACITY = Integer.highestOneBit(Integer.MAX_VALUE / ENTRY_SIZE);
+    private static final double LOAD_FACTOR = 0.6;
+
+    /**
+     * Key 0 marks an empty entry in the table, its value is kept in fields.
+     */
+    private static final long EMPTY = 0;
+
+    private ByteBuffer table;
+    private int capacity;
+    private int mask;
+    private int size = 0;
+    private int threshold;
+
+    private boolean hasZeroKey = false;
+    private long zeroValue = 0;
+
+    /**
+     * @param initialCapacity rounded up to a power of 2
+     */
+    OffHeapLongLongMap(int initialCapacity){
+        int capacity = 16;
+        while (capacity < initialCapacity && capacity < MAX_CAPACITY){
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity){
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.threshold = (int) (capacity * LOAD_FACTOR);
+        this.table = ByteBuffer.allocateDirect(capacity * ENTRY_SIZE).order(ByteOrder.nativeOrder());
+    }
+
+    int size(){
+        return size + (hasZeroKey ? 1 : 0);
+    }
+
+    /**
+     * @return bytes of the table out of the java heap
+     */
+    long getOffHeapBytes(){
+        return (long) capacity * ENTRY_SIZE;
+    }
+
+    private int indexOf(long key){
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private long keyAt(int index){
+        return table.getLong(index * ENTRY_SIZE);
+    }
+
+    private long valueAt(int index){
+        return table.getLong(index * ENTRY_SIZE + 8);
+    }
+
+    private void setEntry(int index, long key, long value){
+        table.putLong(index * ENTRY_SIZE, key);
+        table.putLong(index * ENTRY_SIZE + 8, value);
+    }
+
+    /**
+     * @param key
+     * @param missing returned if the key is not in the map
+     * @return
+     */
+    long get(long key, long missing){
+        if(key == EMPTY){
+            return hasZeroKey ? zeroValue : missing;
+        }
+
+        int index = indexOf(key);
+        while (true){
+            long k = keyAt(index);
+            if(k == key){
+                return valueAt(index);
+            }
+            if(k == EMPTY){
+                return missing;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @param missing returned if the key was not in the map
+     * @return the previous value
+     */
+    long put(long key, long value, long missing){
+        if(key == EMPTY){
+            long prev = hasZeroKey ? zeroValue : missing;
+            hasZeroKey = true;
+            zeroValue = value;
+            return prev;
+        }
+
+        int index = indexOf(key);
+        while (true){
+            long k = keyAt(index);
+            if(k == key){
+                long prev = valueAt(index);
+                setEntry(index, key, value);
+                return prev;
+            }
+            if(k == EMPTY){
+                setEntry(index, key, value);
+                if(++size > threshold){
+                    resize();
+                }
+                return missing;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * Remove the key only if it is mapped to value.
+     * @param key
+     * @param value
+     * @return true if removed
+     */
+    boolean remove(long key, long value){
+        if(key == EMPTY){
+            if(hasZeroKey && zeroValue == value){
+                hasZeroKey = false;
+                return true;
+            }
+            return false;
+        }
+
+        int index = indexOf(key);
+        while (true){
+            long k = keyAt(index);
+            if(k == key){
+                if(valueAt(index) != value){
+                    return false;
+                }
+                removeAt(index);
+                return true;
+            }
+            if(k == EMPTY){
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * Shift the following entries of the probe sequence back, so no tombstone is needed.
+     * @param index
+     */
+    private void removeAt(int index){
+        int hole = index;
+        int next = (hole + 1) & mask;
+        while (true){
+            long k = keyAt(next);
+            if(k == EMPTY){
+                break;
+            }
+
+            int ideal = indexOf(k);
+            boolean movable = hole <= next ? (ideal <= hole || ideal > next) : (ideal <= hole && ideal > next);
+            if(movable){
+                setEntry(hole, k, valueAt(next));
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        setEntry(hole, EMPTY, 0);
+        size--;
+    }
+
+    private void resize(){
+        if(capacity >= MAX_CAPACITY){
+            throw new IllegalStateException("Off heap map full: capacity=" + capacity);
+        }
+
+        ByteBuffer old = table;
+        int oldCapacity = capacity;
+        allocate(capacity << 1);
+        size = 0;
+        for(int i=0; i<oldCapacity; i++){
+            long k = old.getLong(i * ENTRY_SIZE);
+            if(k != EMPTY){
+                put(k, old.getLong(i * ENTRY_SIZE + 8), 0);
+            }
+        }
+    }
+
+    /**
+     * Release the table, the map shrinks to the minimum capacity.
+     */
+    void clear(){
+        allocate(16);
+        size = 0;
+        hasZeroKey = false;
+    }
+}
@@ -0,0 +1,22 @@
+package com.onecmd.diskqueue;
+
+/**
+ * What DiskQueue.add() does when capacity or max disk size is reached.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Reject the new object, add() returns false.
+     */
+    REJECT,
+
+    /**
+     * Wait until drainTo() frees capacity or disk space.
+     */
+    BLOCK,
+
+    /**
+     * Discard whole pages from the head of the queue, persisted pages are deleted without being read.
+     */
+    DROP_OLDEST
+}
@@ -0,0 +1,96 @@
+package com.onecmd.diskqueue;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.File;
+import java.util.ArrayDeque;
+
+/**
+ * Page files kept after their objects are loaded and overwritten by the next persisted page,
+ * so spilling and loading neither create nor delete files in steady state.
+ * A recycled file is never truncated: it grows to the largest page written to it, readers stop at the payload length of the PageHeader.
+ * Free files are not counted in the disk file size of the queue.
+ */
+public class PageFilePool {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(PageFilePool.class);
+
+    public static final String FILE_SUFFIX = ".page";
+
+    private File folder;
+    private int maxFreeFiles;
+
+    /**
+     * The most recently released file is reused first, it is likely still in the page cache.
+     */
+    private ArrayDeque<File> freeFiles = new ArrayDeque<>();
+    private long nextId = 0;
+    private long createdFiles = 0;
+    private long reusedFiles = 0;
+
+    /**
+     * @param folder
+     * @param maxFreeFiles files released above it are deleted
+     */
+    public PageFilePool(File folder, int maxFreeFiles){
+        this.folder = folder;
+        this.maxFreeFiles = maxFreeFiles < 1 ? 1 : maxFreeFiles;
+    }
+
+    /**
+     * @return a free file, or a new file name if none is free
+     */
+    public synchronized File acquire(){
+        File file = freeFiles.pollLast();
+        if(null != file){
+            reusedFiles++;
+            return file;
+        }
+
+        createdFiles++;
+        return new File(folder, "recycled-" + (++nextId) + FILE_SUFFIX);
+    }
+
+    /**
+     * Give back a file whose objects are loaded, it is deleted if there are enough free files.
+     * @param file
+     */
+    public void release(File file){
+        synchronized (this){
+            if(freeFiles.size() < maxFreeFiles){
+                freeFiles.addLast(file);
+                return;
+            }
+        }
+
+        LOGGER.trace("Free page files exceed " + maxFreeFiles + ", delete: " + file.getName());
+        FileUtils.deleteQuietly(file);
+    }
+
+    /**
+     * Delete the free files.
+     */
+    public synchronized void clear(){
+        for(File file : freeFiles){
+            FileUtils.deleteQuietly(file);
+        }
+        freeFiles.clear();
+    }
+
+    public synchronized int getFreeFiles(){
+        return freeFiles.size();
+    }
+
+    public synchronized long getCreatedFiles(){
+        return createdFiles;
+    }
+
+    public synchronized long getReusedFiles(){
+        return reusedFiles;
+    }
+
+    public synchronized String toString(){
+        return "free=" + freeFiles.size() + ", created=" + createdFiles + ", reused=" + reusedFiles;
+    }
+}
@@ -0,0 +1,281 @@
+package com.onecmd.diskqueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Fixed size header written before the serialized objects of a page file, big-endian:
+ * magic, version, checksum type, reserved, object count, payload length, first and last enqueue time, checksum of the payload.
+ * A page is validated and counted by its header without decoding the objects.
+ * Files written without header start with the payload, e.g. '[' of a JSON array, and are read as they are.
+ */
+public class PageHeader {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(PageHeader.class);
+
+    public static final int MAGIC = 0x44515047;
+    public static final byte VERSION = 1;
+    public static final int SIZE = 36;
+
+    public static final byte CHECKSUM_CRC32 = 1;
+    public static final byte CHECKSUM_CRC32C = 2;
+
+    /**
+     * java.util.zip.CRC32C exists since Java 9, CRC32 is used on older JVMs.
+     */
+    private static final Constructor<?> CRC32C = loadCrc32c();
+
+    private byte checksumType;
+    private int count;
+    private int payloadLength;
+    private long firstEnqueueTime;
+    private long lastEnqueueTime;
+    private int checksum;
+
+    private PageHeader(){
+    }
+
+    private static Constructor<?> loadCrc32c(){
+        try {
+            return Class.forName("java.util.zip.CRC32C").getConstructor();
+        }
+        catch (Exception e){
+            LOGGER.debug("CRC32C not supported, page checksum uses CRC32: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @param type CHECKSUM_CRC32 or CHECKSUM_CRC32C
+     * @return null if the type is not supported by this JVM
+     */
+    static Checksum newChecksum(byte type){
+        if(CHECKSUM_CRC32 == type){
+            return new CRC32();
+        }
+        if(CHECKSUM_CRC32C == type && null != CRC32C){
+            try {
+                return (Checksum) CRC32C.newInstance();
+            }
+            catch (Exception e){
+                LOGGER.debug("Failed to create CRC32C: " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Header of a payload, checksum by CRC32C if supported, otherwise CRC32.
+     * @param count
+     * @param payload
+     * @param offset
+     * @param length
+     * @param firstEnqueueTime
+     * @param lastEnqueueTime
+     * @return
+     */
+    public static PageHeader create(int count, byte[] payload, int offset, int length, long firstEnqueueTime, long lastEnqueueTime){
+        PageHeader header = new PageHeader();
+        header.checksumType = null == CRC32C ? CHECKSUM_CRC32 : CHECKSUM_CRC32C;
+        header.count = count;
+        header.payloadLength = length;
+        header.firstEnqueueTime = firstEnqueueTime;
+        header.lastEnqueueTime = lastEnqueueTime;
+
+        Checksum crc = newChecksum(header.checksumType);
+        crc.update(payload, offset, length);
+        header.checksum = (int) crc.getValue();
+        return header;
+    }
+
+    /**
+     * Success: return the header, null if data does not start with a header;
+     * Failed: throw CorruptedPageException if the magic, version or length is wrong;
+     * @param data
+     * @param name file name for messages
+     * @return
+     * @throws CorruptedPageException
+     */
+    public static PageHeader parse(byte[] data, String name) throws CorruptedPageException {
+        if(data.length > 0 && data[0] == '['){
+            return null;
+        }
+        if(data.length < SIZE){
+            throw new CorruptedPageException("Page header truncated: " + name + ", length=" + data.length);
+        }
+
+        PageHeader header = readFrom(ByteBuffer.wrap(data, 0, SIZE), name);
+        if(header.payloadLength > data.length - SIZE){
+            throw new CorruptedPageException("Page payload truncated: " + name + ", length=" + (data.length - SIZE) + ", expected=" + header.payloadLength);
+        }
+        return header;
+    }
+
+    /**
+     * Read the header only, e.g. to count the objects of a page file without reading the payload.
+     * Success: return the header, null if the file does not start with a header;
+     * Failed: throw exception;
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static PageHeader read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] data = new byte[SIZE];
+            int first = in.read();
+            if('[' == first){
+                return null;
+            }
+            if(first < 0){
+                throw new CorruptedPageException("Page header truncated: " + file.getName() + ", length=0");
+            }
+
+            data[0] = (byte) first;
+            try {
+                in.readFully(data, 1, SIZE - 1);
+            }
+            catch (EOFException e){
+                throw new CorruptedPageException("Page header truncated: " + file.getName(), e);
+            }
+
+            PageHeader header = readFrom(ByteBuffer.wrap(data), file.getName());
+            if(header.payloadLength > file.length() - SIZE){
+                throw new CorruptedPageException("Page payload truncated: " + file.getName() + ", length=" + (file.length() - SIZE) + ", expected=" + header.payloadLength);
+            }
+            return header;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read the header and the payload, bytes after the payload, e.g. left in a recycled file by a larger page, are not read.
+     * A file without header is read as it is.
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static byte[] readPage(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long fileLength = raf.length();
+            if(fileLength < SIZE || '[' == raf.read()){
+                byte[] data = new byte[(int) fileLength];
+                raf.seek(0);
+                raf.readFully(data);
+                return data;
+            }
+
+            byte[] data = new byte[SIZE];
+            raf.seek(0);
+            raf.readFully(data);
+            PageHeader header = readFrom(ByteBuffer.wrap(data), file.getName());
+            if(header.payloadLength > fileLength - SIZE){
+                throw new CorruptedPageException("Page payload truncated: " + file.getName() + ", length=" + (fileLength - SIZE) + ", expected=" + header.payloadLength);
+            }
+
+            data = Arrays.copyOf(data, SIZE + header.payloadLength);
+            raf.readFully(data, SIZE, header.payloadLength);
+            return data;
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    private static PageHeader readFrom(ByteBuffer buffer, String name) throws CorruptedPageException {
+        int magic = buffer.getInt();
+        if(MAGIC != magic){
+            throw new CorruptedPageException("Not a page file: " + name + ", magic=" + Integer.toHexString(magic));
+        }
+        byte version = buffer.get();
+        if(VERSION != version){
+            throw new CorruptedPageException("Page version not supported: " + name + ", version=" + version);
+        }
+
+        PageHeader header = new PageHeader();
+        header.checksumType = buffer.get();
+        buffer.getShort();
+        header.count = buffer.getInt();
+        header.payloadLength = buffer.getInt();
+        header.firstEnqueueTime = buffer.getLong();
+        header.lastEnqueueTime = buffer.getLong();
+        header.checksum = buffer.getInt();
+
+        if(header.count < 0 || header.payloadLength < 0){
+            throw new CorruptedPageException("Page header damaged: " + name + ", count=" + header.count + ", length=" + header.payloadLength);
+        }
+        return header;
+    }
+
+    public void writeTo(ByteBuffer buffer){
+        buffer.putInt(MAGIC);
+        buffer.put(VERSION);
+        buffer.put(checksumType);
+        buffer.putShort((short) 0);
+        buffer.putInt(count);
+        buffer.putInt(payloadLength);
+        buffer.putLong(firstEnqueueTime);
+        buffer.putLong(lastEnqueueTime);
+        buffer.putInt(checksum);
+    }
+
+    /**
+     * The checksum is not verified if its type is not supported by this JVM.
+     * Failed: throw CorruptedPageException if the checksum does not match;
+     * @param payload
+     * @param offset
+     * @param name file name for messages
+     * @throws CorruptedPageException
+     */
+    public void verify(byte[] payload, int offset, String name) throws CorruptedPageException {
+        Checksum crc = newChecksum(checksumType);
+        if(null == crc){
+            LOGGER.debug("Checksum type " + checksumType + " not supported, page not verified: " + name);
+            return;
+        }
+
+        crc.update(payload, offset, payloadLength);
+        if((int) crc.getValue() != checksum){
+            throw new CorruptedPageException("Page checksum mismatch: " + name + ", checksum=" + Integer.toHexString((int) crc.getValue())
+                    + ", expected=" + Integer.toHexString(checksum));
+        }
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    public long getFirstEnqueueTime() {
+        return firstEnqueueTime;
+    }
+
+    public long getLastEnqueueTime() {
+        return lastEnqueueTime;
+    }
+
+    public byte getChecksumType() {
+        return checksumType;
+    }
+
+    public int getChecksum() {
+        return checksum;
+    }
+}
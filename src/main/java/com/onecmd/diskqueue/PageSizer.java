@@ -0,0 +1,95 @@
+package com.onecmd.diskqueue;
+
+/**
+ * Capacity of each new sub pool chosen to make pages of about targetPageBytes,
+ * from moving averages of the encoded object size and of the page write and read throughput.
+ * A page is also kept small enough to be written or read in targetPageMillis, so drainTo() does not stall on a large page.
+ * Before the first page is written the configured page size is used.
+ */
+public class PageSizer {
+
+    /**
+     * Weight of the latest sample in the moving averages.
+     */
+    private static final double ALPHA = 0.2;
+
+    private long targetPageBytes;
+    private long targetPageNanos;
+    private int defaultCapacity;
+    private int maxCapacity;
+
+    private double objectBytes = 0;
+    private double bytesPerNano = 0;
+    private int capacity;
+
+    /**
+     * @param targetPageBytes
+     * @param targetPageMillis 0 means the I/O latency is not considered
+     * @param defaultCapacity
+     * @param maxCapacity
+     */
+    public PageSizer(long targetPageBytes, long targetPageMillis, int defaultCapacity, int maxCapacity){
+        this.targetPageBytes = targetPageBytes;
+        this.targetPageNanos = targetPageMillis * 1000000L;
+        this.maxCapacity = Math.max(1, maxCapacity);
+        this.defaultCapacity = Math.max(1, Math.min(defaultCapacity, this.maxCapacity));
+        this.capacity = this.defaultCapacity;
+    }
+
+    /**
+     * A page was encoded, written or read.
+     * @param count objects in the page
+     * @param bytes encoded size of the page
+     * @param nanos time to write or read the page, 0 if not measured, e.g. pages kept in memory
+     */
+    public synchronized void record(int count, long bytes, long nanos){
+        if(count < 1 || bytes < 1){
+            return;
+        }
+
+        double size = (double) bytes / count;
+        objectBytes = objectBytes <= 0 ? size : objectBytes + ALPHA * (size - objectBytes);
+
+        if(nanos > 0){
+            double throughput = (double) bytes / nanos;
+            bytesPerNano = bytesPerNano <= 0 ? throughput : bytesPerNano + ALPHA * (throughput - bytesPerNano);
+        }
+    }
+
+    /**
+     * @return capacity of the next sub pool
+     */
+    public synchronized int nextCapacity(){
+        if(objectBytes <= 0){
+            return defaultCapacity;
+        }
+
+        double bytes = targetPageBytes;
+        if(targetPageNanos > 0 && bytesPerNano > 0){
+            bytes = Math.min(bytes, bytesPerNano * targetPageNanos);
+        }
+        long next = (long) (bytes / objectBytes);
+        capacity = (int) Math.max(1, Math.min(maxCapacity, next));
+        return capacity;
+    }
+
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getObjectBytes() {
+        return Math.round(objectBytes);
+    }
+
+    /**
+     * @return bytes written or read per millisecond, 0 if not measured yet
+     */
+    public synchronized long getBytesPerMilli() {
+        return Math.round(bytesPerNano * 1000000L);
+    }
+
+    public synchronized String toString(){
+        return "capacity=" + capacity + ", objectBytes=" + getObjectBytes() + ", bytesPerMilli=" + getBytesPerMilli()
+                + ", targetPageBytes=" + targetPageBytes;
+    }
+}
@@ -0,0 +1,78 @@
+package com.onecmd.diskqueue;
+
+import java.nio.ByteBuffer;
+
+/**
+ * DataPage of a primitive array, values are copied in and out with System.arraycopy.
+ * @param <A> the array type, e.g. long[]
+ */
+public abstract class PrimitivePage<A> extends DataPage {
+    private final int valueBytes;
+    private int capacity;
+    private A values;
+    private int head = 0;
+    private int tail = 0;
+
+    /**
+     * @param id
+     * @param capacity
+     * @param valueBytes bytes of one value in disk
+     */
+    protected PrimitivePage(long id, int capacity, int valueBytes){
+        super(id);
+        this.capacity = capacity;
+        this.valueBytes = valueBytes;
+        this.values = newArray(capacity);
+    }
+
+    protected abstract A newArray(int length);
+
+    /**
+     * Write values[offset, offset + length) to buffer, the position is not changed.
+     */
+    protected abstract void put(ByteBuffer buffer, A values, int offset, int length);
+
+    /**
+     * Read length values from buffer to values[0, length), the position is not changed.
+     */
+    protected abstract void get(ByteBuffer buffer, A values, int length);
+
+    public int size(){
+        return tail - head;
+    }
+
+    public int getFreeSize(){
+        return capacity - tail;
+    }
+
+    public long getByteSize(){
+        return (long) valueBytes * size();
+    }
+
+    void add(A src, int offset, int length){
+        System.arraycopy(src, offset, values, tail, length);
+        tail += length;
+    }
+
+    int drainTo(A dst, int offset, int fetchSize){
+        int count = Math.min(fetchSize, size());
+        System.arraycopy(values, head, dst, offset, count);
+        head += count;
+        return count;
+    }
+
+    protected void writeTo(ByteBuffer buffer){
+        put(buffer, values, head, size());
+        buffer.position(buffer.position() + valueBytes * size());
+        values = null;
+    }
+
+    protected void readFrom(ByteBuffer buffer, int count){
+        values = newArray(count);
+        get(buffer, values, count);
+        buffer.position(buffer.position() + valueBytes * count);
+        capacity = count;
+        head = 0;
+        tail = count;
+    }
+}
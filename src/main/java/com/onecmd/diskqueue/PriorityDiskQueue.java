@@ -0,0 +1,226 @@
+package com.onecmd.diskqueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue draining objects of the highest priority first, FIFO within a priority.
+ * Priority 0 is the highest, each priority is a chain of sub pools sharing the heap capacity.
+ * When heap is full, the lowest priorities are persisted first, so the highest priorities stay in heap.
+ */
+public class PriorityDiskQueue<T> {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(PriorityDiskQueue.class);
+
+    private String name;
+    private CacheConfig config;
+    private CacheStatistics statistics;
+
+    private List<SubPoolChain<T>> levels;
+
+    private Lock lock = new ReentrantLock();
+
+    /**
+     * @param name
+     * @param objectType
+     * @param priorities number of priorities, objects are added with priority 0 (highest) to priorities-1 (lowest)
+     * @param capacity
+     * @param heapCapacity
+     * @param maxDiskSizeInMB
+     * @param filePageSize
+     * @param usingDisk
+     * @param diskCacheFileRoot
+     */
+    public PriorityDiskQueue(String name, Class<T> objectType, int priorities, int capacity, int heapCapacity, long maxDiskSizeInMB, int filePageSize, boolean usingDisk, String diskCacheFileRoot){
+        if(priorities < 1){
+            throw new IllegalArgumentException("Parameter priorities should be greater than 0: " + priorities);
+        }
+
+        this.name = name;
+        statistics = new CacheStatistics();
+
+        config = CacheConfig.create(name, capacity, heapCapacity, maxDiskSizeInMB, filePageSize, usingDisk, diskCacheFileRoot);
+        config.initDiskStorage();
+
+        levels = new ArrayList<>(priorities);
+        for(int i=0; i<priorities; i++){
+            levels.add(new SubPoolChain<T>(config, statistics, objectType));
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public CacheConfig getConfig() {
+        return config;
+    }
+
+    public CacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    public int getPriorities(){
+        return levels.size();
+    }
+
+    public int size(){
+        return statistics.getCacheSize();
+    }
+
+    /**
+     * @param priority
+     * @return number of objects of the priority
+     */
+    public int size(int priority){
+        checkPriority(priority);
+        try {
+            lock.lock();
+            return levels.get(priority).size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public int getHeapSize(){
+        return statistics.getHeapSize();
+    }
+
+    public boolean isEmpty(){
+        return size()<1;
+    }
+
+    public boolean isDiskFull(){
+        return statistics.getDiskFileSize() >= config.getMaxDiskSize();
+    }
+
+    private void checkPriority(int priority){
+        if(priority < 0 || priority >= levels.size()){
+            throw new IllegalArgumentException("Parameter priority should be 0 to " + (levels.size() - 1) + ": " + priority);
+        }
+    }
+
+    /**
+     * Success: return true;
+     * Queue full, heap full or disk full: return false;
+     * @param obj
+     * @param priority 0 is the highest
+     * @return
+     */
+    public boolean add(T obj, int priority){
+        LOGGER.trace("Enter add(priority=" + priority + ")");
+        if(null == obj){
+            throw new NullPointerException("Parameter obj should not be NULL.");
+        }
+        checkPriority(priority);
+
+        try {
+            lock.lock();
+
+            if(size() >= config.getCapacity()){
+                LOGGER.warn("Failed to add to queue[name=" + name + "]: queue full: capacity=" + config.getCapacity() + ", size: " + size());
+                return false;
+            }
+
+            if(getHeapSize() >= config.getHeapCapacity()){
+                spill();
+            }
+            if(getHeapSize() >= config.getHeapCapacity()){
+                LOGGER.warn("Failed to add to queue[name=" + name + "]: heap full: heapCapacity=" + config.getHeapCapacity() + ", heapSize=" + getHeapSize()
+                        + ", diskFull=" + isDiskFull());
+                return false;
+            }
+
+            levels.get(priority).add(obj);
+            return true;
+        }
+        catch (Exception e){
+            LOGGER.error("Failed to add to queue[name=" + name + "]: " + e.getMessage(), e);
+            return false;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Must hold lock.
+     * Persist the lowest priorities first, until the heap size is a page below heap capacity.
+     */
+    private void spill(){
+        if(!config.isUsingDisk()){
+            return;
+        }
+
+        for(int i=levels.size()-1; i>=0 && !isDiskFull(); i--){
+            int excess = getHeapSize() + config.getPageSize() - config.getHeapCapacity();
+            if(excess <= 0){
+                break;
+            }
+            levels.get(i).spill(excess);
+        }
+    }
+
+    /**
+     * Drain the highest priority first.
+     * Success: return how much drained;
+     * Failed: throw exception;
+     * @param list
+     * @param fetchSize
+     * @return
+     * @throws Exception
+     */
+    public int drainTo(List<T> list, int fetchSize) throws Exception {
+        if(null == list){
+            throw new NullPointerException("Parameter list should not be NULL.");
+        }
+
+        int total = 0;
+        try {
+            lock.lock();
+
+            for(int i=0; i<levels.size() && total < fetchSize; i++){
+                total += levels.get(i).drainTo(list, fetchSize - total);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+
+        LOGGER.trace("Exit drainTo(fetchSize=" + fetchSize + ", drained=" + total + ")");
+        return total;
+    }
+
+    /**
+     * @return the head object of the highest priority, null if the queue is empty
+     * @throws Exception
+     */
+    public T poll() throws Exception {
+        ArrayList<T> list = new ArrayList<>(1);
+        drainTo(list, 1);
+        return list.isEmpty() ? null : list.get(0);
+    }
+
+    public void clear(){
+        LOGGER.trace("Enter clear()");
+        try {
+            lock.lock();
+
+            for(SubPoolChain<T> level : levels){
+                level.clear();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public String getSummary(){
+        return config.toString() + ", priorities=" + levels.size() + ", " + statistics.toString();
+    }
+}
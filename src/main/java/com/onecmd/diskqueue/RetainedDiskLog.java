@@ -0,0 +1,888 @@
+package com.onecmd.diskqueue;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Log of objects written to disk once and read by many consumer groups, each group has its own cursor.
+ * Objects are numbered by offset, full pages are written to files named by their first offset and size.
+ * A page file is deleted only when every group has read past it.
+ * Cursors are persisted in the groups folder, page files and cursors are recovered when the log is created again.
+ * <p>
+ * lease() delivers at least once: a delivery stays in flight until acknowledged by ack(),
+ * a delivery not acknowledged in time is delivered again by a later lease().
+ * Acknowledged offsets are kept as ranges, the cursor moves over the ranges once they are contiguous.
+ * Acknowledgements are persisted in batches: after ackBatchSize acknowledgements, when the cursor passes a page or by flush(),
+ * objects whose acknowledgement was not persisted yet are delivered again after a crash.
+ */
+public class RetainedDiskLog<T> {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(RetainedDiskLog.class);
+
+    private static final Pattern PAGE_FILE = Pattern.compile("(\\d+)_(\\d+)\\.log");
+    private static final Pattern GROUP_NAME = Pattern.compile("[A-Za-z0-9_.\\-]+");
+    private static final String CURSOR_SUFFIX = ".cursor";
+    private static final int CACHED_PAGES = 2;
+    private static final int DEFAULT_ACK_BATCH_SIZE = 100;
+
+    private String name;
+    private Class<T> objectType;
+    private CacheConfig config;
+    private CacheStatistics statistics;
+    private CachePersiter<T> cachePersiter = new JsonFilePersister<T>();
+
+    /**
+     * First offset -> page written to disk.
+     */
+    private TreeMap<Long, Page> pages = new TreeMap<>();
+    private ArrayList<T> tail = new ArrayList<>();
+    private long tailOffset = 0;
+
+    private HashMap<String, Group> groups = new HashMap<>();
+    private long deliveryId = 0;
+    private int ackBatchSize = DEFAULT_ACK_BATCH_SIZE;
+
+    /**
+     * Pages read recently, a page read by several groups is decoded once.
+     */
+    private LinkedHashMap<Long, List<T>> cachedPages = new LinkedHashMap<Long, List<T>>(CACHED_PAGES * 2, 0.75f, true){
+        protected boolean removeEldestEntry(Map.Entry<Long, List<T>> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+
+    private Lock lock = new ReentrantLock();
+
+    public RetainedDiskLog(String name, Class<T> objectType, long maxDiskSizeInMB, int filePageSize, String diskCacheFileRoot){
+        this.name = name;
+        this.objectType = objectType;
+        statistics = new CacheStatistics();
+
+        config = new CacheConfig();
+
+        long maxDiskSize = maxDiskSizeInMB < 1 ? config.getMaxDiskSize() : maxDiskSizeInMB*1024*1024;
+        config.setMaxDiskSize(maxDiskSize);
+        config.setPageSize(filePageSize < 1 ? 1 : filePageSize);
+        config.setDiskCacheFileRoot(diskCacheFileRoot + File.separator + name);
+
+        recover();
+    }
+
+    /**
+     * @param ackBatchSize acknowledgements kept in heap before they are persisted, 1 to persist every acknowledgement
+     */
+    public void setAckBatchSize(int ackBatchSize) {
+        this.ackBatchSize = ackBatchSize < 1 ? 1 : ackBatchSize;
+    }
+
+    public int getAckBatchSize() {
+        return ackBatchSize;
+    }
+
+    protected void setCachePersiter(CachePersiter<T> cachePersiter){
+        this.cachePersiter = cachePersiter;
+    }
+
+    private File getGroupsFolder(){
+        return new File(config.getDiskCacheFileRoot() + File.separator + "groups");
+    }
+
+    private File getCursorFile(String group){
+        return new File(getGroupsFolder(), group + CURSOR_SUFFIX);
+    }
+
+    /**
+     * Load the pages and cursors left by a previous log of the same name.
+     */
+    private void recover(){
+        File root = new File(config.getDiskCacheFileRoot());
+        root.mkdirs();
+        getGroupsFolder().mkdirs();
+        config.setDiskCacheFileRoot(root.getAbsolutePath());
+        LOGGER.info("Disk data file path: " + root.getAbsolutePath());
+
+        File[] files = root.listFiles();
+        for(File file : null == files ? new File[0] : files){
+            Matcher matcher = PAGE_FILE.matcher(file.getName());
+            if(matcher.matches()){
+                Page page = new Page(Long.parseLong(matcher.group(1)), Integer.parseInt(matcher.group(2)), file);
+                pages.put(page.offset, page);
+                statistics.getAndAddCacheSize(page.count);
+                statistics.getAndAddDiskSize(page.count);
+                statistics.getAndAddDiskFileSize(file.length());
+                statistics.getAndAddPersistedFiles(1);
+            }
+        }
+        tailOffset = pages.isEmpty() ? 0 : pages.lastEntry().getValue().getEnd();
+        long start = pages.isEmpty() ? tailOffset : pages.firstKey();
+
+        File[] cursorFiles = getGroupsFolder().listFiles();
+        for(File file : null == cursorFiles ? new File[0] : cursorFiles){
+            if(!file.getName().endsWith(CURSOR_SUFFIX)){
+                continue;
+            }
+
+            String group = file.getName().substring(0, file.getName().length() - CURSOR_SUFFIX.length());
+            try {
+                String[] lines = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim().split("\n");
+                Group g = new Group(Long.parseLong(lines[0].trim()));
+                for(int i=1; i<lines.length; i++){
+                    String[] range = lines[i].trim().split("-");
+                    g.acked.put(Long.parseLong(range[0]), Long.parseLong(range[1]));
+                }
+                tailOffset = Math.max(tailOffset, g.acked.isEmpty() ? g.cursor : Math.max(g.cursor, g.acked.lastEntry().getValue()));
+                g.markAcked(g.cursor, Math.max(g.cursor, start));
+                g.readOffset = g.cursor;
+                groups.put(group, g);
+            }
+            catch (Exception e){
+                LOGGER.warn("Failed to recover cursor of group[" + group + "] of log[name=" + name + "]: " + e.getMessage(), e);
+            }
+        }
+
+        if(!pages.isEmpty() || !groups.isEmpty()){
+            LOGGER.info("Recovered log[name=" + name + "]: pages=" + pages.size() + ", groups=" + groups.keySet() + ", offsets=" + getStartOffset() + "-" + getEndOffset());
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public CacheConfig getConfig() {
+        return config;
+    }
+
+    public CacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * @return number of objects retained, in heap or in disk
+     */
+    public int size(){
+        return statistics.getCacheSize();
+    }
+
+    public boolean isDiskFull(){
+        return statistics.getDiskFileSize() >= config.getMaxDiskSize();
+    }
+
+    /**
+     * @return offset of the oldest object retained
+     */
+    public long getStartOffset(){
+        try {
+            lock.lock();
+            return pages.isEmpty() ? tailOffset : pages.firstKey();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return offset of the next object appended
+     */
+    public long getEndOffset(){
+        try {
+            lock.lock();
+            return tailOffset + tail.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Success: return true;
+     * Disk full or write failed: return false;
+     * @param obj
+     * @return
+     */
+    public boolean append(T obj){
+        LOGGER.trace("Enter append()");
+        if(null == obj){
+            throw new NullPointerException("Parameter obj should not be NULL.");
+        }
+
+        try {
+            lock.lock();
+
+            if(tail.size() >= config.getPageSize() && !writeTail()){
+                return false;
+            }
+
+            tail.add(obj);
+            statistics.getAndAddCacheSize(1);
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write the objects not written yet to disk, e.g. before shutdown, they are then written as a smaller page.
+     * Acknowledgements not persisted yet are persisted too.
+     * Success: return true;
+     * Failed: return false;
+     */
+    public boolean flush(){
+        try {
+            lock.lock();
+
+            boolean success = tail.isEmpty() || writeTail();
+            for(Map.Entry<String, Group> entry : groups.entrySet()){
+                if(entry.getValue().unpersistedAcks > 0){
+                    try {
+                        writeCursor(entry.getKey(), entry.getValue());
+                    }
+                    catch (IOException e){
+                        LOGGER.warn("Failed to write cursor of group[" + entry.getKey() + "] of log[name=" + name + "]: " + e.getMessage(), e);
+                        success = false;
+                    }
+                }
+            }
+            trim();
+            return success;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Must hold lock.
+     * @return
+     */
+    private boolean writeTail(){
+        if(isDiskFull()){
+            LOGGER.warn("Failed to write page of log[name=" + name + "]: disk full: MaxDiskSize=" + config.getMaxDiskSize() + ", fileSize: " + statistics.getDiskFileSize());
+            return false;
+        }
+
+        File file = new File(config.getDiskCacheFileRoot() + File.separator + tailOffset + "_" + tail.size() + ".log");
+        try {
+            long fileSize = cachePersiter.write(file, tail);
+            Page page = new Page(tailOffset, tail.size(), file);
+            pages.put(page.offset, page);
+
+            statistics.getAndAddDiskSize(page.count);
+            statistics.getAndAddDiskFileSize(fileSize);
+            statistics.getAndAddPersistedFiles(1);
+
+            cachedPages.put(page.offset, tail);
+            tailOffset = page.getEnd();
+            tail = new ArrayList<>();
+            return true;
+        }
+        catch (Exception e){
+            LOGGER.warn("Failed to write page of log[name=" + name + "]: " + e.getMessage(), e);
+            FileUtils.deleteQuietly(file);
+            return false;
+        }
+    }
+
+    /**
+     * Create the group if it does not exist, it starts reading at the oldest object retained.
+     * @param group letters, digits, '_', '.' or '-'
+     * @return the cursor of the group
+     * @throws IOException
+     */
+    public long subscribe(String group) throws IOException {
+        if(null == group || !GROUP_NAME.matcher(group).matches()){
+            throw new IllegalArgumentException("Parameter group should only contain letters, digits, '_', '.' or '-': " + group);
+        }
+
+        try {
+            lock.lock();
+
+            Group g = groups.get(group);
+            if(null == g){
+                g = new Group(getStartOffset());
+                writeCursor(group, g);
+                groups.put(group, g);
+            }
+            return g.cursor;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the group, pages only it had not read are deleted.
+     * @param group
+     */
+    public void unsubscribe(String group){
+        try {
+            lock.lock();
+
+            if(null != groups.remove(group)){
+                FileUtils.deleteQuietly(getCursorFile(group));
+                trim();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public Set<String> getGroups(){
+        try {
+            lock.lock();
+            return Collections.unmodifiableSet(new HashSet<String>(groups.keySet()));
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param group
+     * @return objects not delivered to the group yet
+     */
+    public long getLag(String group){
+        try {
+            lock.lock();
+            return getEndOffset() - Math.max(getGroup(group).readOffset, getStartOffset());
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param group
+     * @return objects delivered to the group and not acknowledged yet, including expired deliveries
+     */
+    public long getInFlightSize(String group){
+        try {
+            lock.lock();
+
+            long total = 0;
+            for(Delivery<T> delivery : getGroup(group).inFlight.values()){
+                total += delivery.size();
+            }
+            return total;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param group
+     * @return offset before which all objects are acknowledged
+     */
+    public long getCursor(String group){
+        try {
+            lock.lock();
+            return getGroup(group).cursor;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private Group getGroup(String group){
+        Group g = groups.get(group);
+        if(null == g){
+            throw new IllegalArgumentException("Group not subscribed: " + group);
+        }
+        return g;
+    }
+
+    /**
+     * Read objects not delivered to group yet, they are acknowledged at once.
+     * The acknowledgement is persisted in batches like ack(), then page files read by every group are deleted.
+     * Success: return how much read;
+     * Failed: throw exception, the cursor is not moved;
+     * @param group
+     * @param list
+     * @param fetchSize
+     * @return
+     * @throws Exception
+     */
+    public int drainTo(String group, List<T> list, int fetchSize) throws Exception {
+        if(null == list){
+            throw new NullPointerException("Parameter list should not be NULL.");
+        }
+
+        try {
+            lock.lock();
+
+            Group g = getGroup(group);
+            Delivery<T> delivery = readNew(group, g, fetchSize, 0);
+            if(null == delivery){
+                return 0;
+            }
+
+            g.readOffset = delivery.to;
+            g.markAcked(delivery.from, delivery.to);
+            list.addAll(delivery.objects);
+            acked(group, g);
+
+            LOGGER.trace("Exit drainTo(group=" + group + ", fetchSize=" + fetchSize + ", drained=" + delivery.size() + ")");
+            return delivery.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deliver objects to group, they stay in flight until ack(), and are delivered again after leaseMillis.
+     * Expired deliveries are delivered again before new objects, in the order of offset.
+     * Success: return the delivery, null if nothing to deliver;
+     * Failed: throw exception;
+     * @param group
+     * @param fetchSize
+     * @param leaseMillis
+     * @return
+     * @throws Exception
+     */
+    public Delivery<T> lease(String group, int fetchSize, long leaseMillis) throws Exception {
+        if(leaseMillis < 1){
+            throw new IllegalArgumentException("Parameter leaseMillis should be greater than 0: " + leaseMillis);
+        }
+
+        try {
+            lock.lock();
+
+            Group g = getGroup(group);
+            long now = System.currentTimeMillis();
+
+            Delivery<T> expired = null;
+            for(Delivery<T> delivery : g.inFlight.values()){
+                if(delivery.expireAt <= now && (null == expired || delivery.from < expired.from)){
+                    expired = delivery;
+                }
+            }
+
+            Delivery<T> delivery;
+            if(null != expired){
+                long to = Math.min(expired.to, expired.from + fetchSize);
+                ArrayList<T> objects = new ArrayList<>();
+                read(expired.from, to, objects);
+
+                delivery = new Delivery<T>(group, ++deliveryId, expired.from, to, objects, now + leaseMillis);
+                g.inFlight.remove(expired.id);
+                if(to < expired.to){
+                    Delivery<T> rest = new Delivery<T>(group, expired.id, to, expired.to, null, expired.expireAt);
+                    g.inFlight.put(rest.id, rest);
+                }
+                statistics.getAndAddRedeliveredSize(delivery.size());
+                LOGGER.debug("Delivery[" + expired.id + "] of group[" + group + "] of log[name=" + name + "] expired, delivered again: offsets=" + delivery.from + "-" + delivery.to);
+            }
+            else {
+                delivery = readNew(group, g, fetchSize, now + leaseMillis);
+                if(null == delivery){
+                    return null;
+                }
+                g.readOffset = delivery.to;
+            }
+
+            g.inFlight.put(delivery.id, delivery);
+            return delivery;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Acknowledge a delivery of lease(), even if it expired, unless it was delivered again.
+     * The acknowledgements are persisted in batches, see setAckBatchSize().
+     * Success: return true;
+     * Failed: return false, it was delivered again or the group was removed;
+     * @param delivery
+     * @return
+     */
+    public boolean ack(Delivery<T> delivery){
+        if(null == delivery){
+            throw new NullPointerException("Parameter delivery should not be NULL.");
+        }
+
+        try {
+            lock.lock();
+
+            Group g = groups.get(delivery.group);
+            Delivery<T> inFlight = null == g ? null : g.inFlight.get(delivery.id);
+            if(null == inFlight || inFlight.from != delivery.from){
+                LOGGER.debug("Delivery[" + delivery.id + "] of group[" + delivery.group + "] of log[name=" + name + "] not in flight, ignore ack.");
+                return false;
+            }
+
+            g.inFlight.remove(delivery.id);
+            g.markAcked(delivery.from, delivery.to);
+            acked(delivery.group, g);
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Must hold lock.
+     * Count an acknowledgement of group, the cursor is persisted and pages are trimmed
+     * after ackBatchSize acknowledgements or when the cursor passes the first page.
+     * @param group
+     * @param g
+     */
+    private void acked(String group, Group g){
+        g.unpersistedAcks++;
+
+        Map.Entry<Long, Page> first = pages.firstEntry();
+        boolean pagePassed = null != first && g.persistedCursor < first.getValue().getEnd() && first.getValue().getEnd() <= g.cursor;
+        if(g.unpersistedAcks >= ackBatchSize || pagePassed){
+            try {
+                writeCursor(group, g);
+                trim();
+            }
+            catch (IOException e){
+                LOGGER.warn("Failed to write cursor of group[" + group + "] of log[name=" + name + "]: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Must hold lock.
+     * Read the objects not delivered yet from readOffset, until an acknowledged range or a lost range.
+     * Ranges acknowledged or lost before them are skipped.
+     * @param group
+     * @param g
+     * @param fetchSize
+     * @param expireAt
+     * @return null if nothing to deliver
+     * @throws Exception
+     */
+    private Delivery<T> readNew(String group, Group g, int fetchSize, long expireAt) throws Exception {
+        long end = getEndOffset();
+        long offset = Math.max(Math.max(g.readOffset, g.cursor), getStartOffset());
+        while (offset < end){
+            Map.Entry<Long, Long> acked = g.acked.floorEntry(offset);
+            if(null != acked && acked.getValue() > offset){
+                offset = acked.getValue();
+                continue;
+            }
+
+            if(offset < tailOffset){
+                Map.Entry<Long, Page> entry = pages.floorEntry(offset);
+                if(null == entry || offset >= entry.getValue().getEnd()){
+                    // objects lost, e.g. not flushed before a crash
+                    Long next = pages.higherKey(offset);
+                    long to = null == next ? tailOffset : next;
+                    g.markAcked(offset, to);
+                    offset = to;
+                    continue;
+                }
+            }
+            break;
+        }
+        g.readOffset = offset;
+        if(offset >= end || fetchSize < 1){
+            return null;
+        }
+
+        long to = Math.min(end, offset + fetchSize);
+        Long nextAcked = g.acked.higherKey(offset);
+        if(null != nextAcked){
+            to = Math.min(to, nextAcked);
+        }
+
+        ArrayList<T> objects = new ArrayList<>();
+        to = offset + read(offset, to, objects);
+        return new Delivery<T>(group, ++deliveryId, offset, to, objects, expireAt);
+    }
+
+    /**
+     * Must hold lock.
+     * Read objects of [from, to), stop at a lost range.
+     * @param from
+     * @param to
+     * @param list
+     * @return how much read
+     * @throws Exception
+     */
+    private int read(long from, long to, List<T> list) throws Exception {
+        long offset = from;
+        while (offset < to){
+            List<T> page;
+            long pageOffset;
+            if(offset >= tailOffset){
+                page = tail;
+                pageOffset = tailOffset;
+            }
+            else {
+                Map.Entry<Long, Page> entry = pages.floorEntry(offset);
+                if(null == entry || offset >= entry.getValue().getEnd()){
+                    break;
+                }
+                page = readPage(entry.getValue());
+                pageOffset = entry.getKey();
+            }
+
+            int start = (int) (offset - pageOffset);
+            int count = (int) Math.min(to - offset, page.size() - start);
+            list.addAll(page.subList(start, start + count));
+            offset += count;
+        }
+        return (int) (offset - from);
+    }
+
+    /**
+     * Must hold lock.
+     * @param page
+     * @return
+     * @throws Exception
+     */
+    private List<T> readPage(Page page) throws Exception {
+        List<T> objects = cachedPages.get(page.offset);
+        if(null == objects){
+            objects = cachePersiter.read(page.file, objectType);
+            if(objects.size() != page.count){
+                throw new IOException("File damaged: " + page.file.getName() + ", size=" + objects.size() + ", expected=" + page.count);
+            }
+            cachedPages.put(page.offset, objects);
+        }
+        return objects;
+    }
+
+    /**
+     * Must hold lock.
+     * Write the cursor and the acknowledged ranges after it, one per line.
+     * Write to a temporary file and rename it, so a crash leaves the previous cursor.
+     * @param group
+     * @param g
+     * @throws IOException
+     */
+    private void writeCursor(String group, Group g) throws IOException {
+        StringBuilder content = new StringBuilder(Long.toString(g.cursor));
+        for(Map.Entry<Long, Long> range : g.acked.entrySet()){
+            content.append('\n').append(range.getKey()).append('-').append(range.getValue());
+        }
+
+        File file = getCursorFile(group);
+        File temp = new File(file.getPath() + ".tmp");
+        Files.write(temp.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        g.persistedCursor = g.cursor;
+        g.unpersistedAcks = 0;
+    }
+
+    /**
+     * Must hold lock.
+     * Delete the pages acknowledged by every group and persisted, nothing is deleted if there is no group.
+     */
+    private void trim(){
+        if(groups.isEmpty()){
+            return;
+        }
+
+        long min = Long.MAX_VALUE;
+        for(Group g : groups.values()){
+            min = Math.min(min, g.persistedCursor);
+        }
+
+        Iterator<Page> iter = pages.values().iterator();
+        while (iter.hasNext()){
+            Page page = iter.next();
+            if(page.getEnd() > min){
+                break;
+            }
+
+            iter.remove();
+            cachedPages.remove(page.offset);
+            statistics.getAndAddDiskFileSize(-1 * page.file.length());
+            FileUtils.deleteQuietly(page.file);
+
+            statistics.getAndAddDiskSize(-1 * page.count);
+            statistics.getAndAddCacheSize(-1 * page.count);
+            statistics.getAndAddTrimmedFiles(1);
+            LOGGER.trace("Page[" + page.offset + "] of log[name=" + name + "] read by all groups, deleted.");
+        }
+    }
+
+    /**
+     * Delete all pages and groups.
+     */
+    public void clear(){
+        LOGGER.trace("Enter clear()");
+        try {
+            lock.lock();
+
+            for(Page page : pages.values()){
+                statistics.getAndAddDiskFileSize(-1 * page.file.length());
+                statistics.getAndAddDiskSize(-1 * page.count);
+                FileUtils.deleteQuietly(page.file);
+            }
+            pages.clear();
+            cachedPages.clear();
+            tail.clear();
+            tailOffset = 0;
+
+            for(String group : groups.keySet()){
+                FileUtils.deleteQuietly(getCursorFile(group));
+            }
+            groups.clear();
+
+            statistics.getAndAddCacheSize(-1 * statistics.getCacheSize());
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public String getSummary(){
+        return config.toString() + ", groups=" + getGroups() + ", offsets=" + getStartOffset() + "-" + getEndOffset() + ", " + statistics.toString();
+    }
+
+    /**
+     * Objects of [from, to) delivered to a group by lease(), acknowledge them by ack().
+     */
+    public static class Delivery<T> {
+        private String group;
+        private long id;
+        private long from;
+        private long to;
+        private List<T> objects;
+        private long expireAt;
+
+        private Delivery(String group, long id, long from, long to, List<T> objects, long expireAt){
+            this.group = group;
+            this.id = id;
+            this.from = from;
+            this.to = to;
+            this.objects = objects;
+            this.expireAt = expireAt;
+        }
+
+        public String getGroup() {
+            return group;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public long getFromOffset() {
+            return from;
+        }
+
+        public long getToOffset() {
+            return to;
+        }
+
+        public List<T> getObjects() {
+            return objects;
+        }
+
+        public long getExpireAt() {
+            return expireAt;
+        }
+
+        public int size(){
+            return (int) (to - from);
+        }
+    }
+
+    /**
+     * Not thread safe, guarded by the lock of the log.
+     */
+    private class Group {
+        /**
+         * Objects before it are all acknowledged.
+         */
+        private long cursor;
+        private long persistedCursor;
+        /**
+         * Objects from it are not delivered yet.
+         */
+        private long readOffset;
+        /**
+         * Acknowledged ranges after cursor: from -> to, not overlapped nor adjacent.
+         */
+        private TreeMap<Long, Long> acked = new TreeMap<>();
+        /**
+         * Deliveries not acknowledged: id -> delivery.
+         */
+        private LinkedHashMap<Long, Delivery<T>> inFlight = new LinkedHashMap<>();
+        private int unpersistedAcks = 0;
+
+        Group(long cursor){
+            this.cursor = cursor;
+            this.persistedCursor = cursor;
+            this.readOffset = cursor;
+        }
+
+        /**
+         * Merge [from, to) into the acknowledged ranges, then move the cursor over the ranges contiguous to it.
+         */
+        void markAcked(long from, long to){
+            if(from >= to){
+                return;
+            }
+
+            Map.Entry<Long, Long> prev = acked.floorEntry(from);
+            if(null != prev && prev.getValue() >= from){
+                from = prev.getKey();
+                to = Math.max(to, prev.getValue());
+                acked.remove(prev.getKey());
+            }
+
+            Map.Entry<Long, Long> next;
+            while (null != (next = acked.ceilingEntry(from)) && next.getKey() <= to){
+                to = Math.max(to, next.getValue());
+                acked.remove(next.getKey());
+            }
+            acked.put(from, to);
+
+            Map.Entry<Long, Long> first;
+            while (null != (first = acked.firstEntry()) && first.getKey() <= cursor){
+                cursor = Math.max(cursor, first.getValue());
+                acked.remove(first.getKey());
+            }
+            readOffset = Math.max(readOffset, cursor);
+        }
+    }
+
+    private static class Page {
+        private long offset;
+        private int count;
+        private File file;
+
+        Page(long offset, int count, File file){
+            this.offset = offset;
+            this.count = count;
+            this.file = file;
+        }
+
+        long getEnd(){
+            return offset + count;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.onecmd.diskqueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * FIFO chain of sub pools sharing the config and statistics of their owner,
+ * e.g. one time bucket of DelayedDiskQueue. Not thread safe, the owner must hold its lock.
+ */
+class SubPoolChain<T> {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(SubPoolChain.class);
+
+    private CacheConfig config;
+    private CacheStatistics statistics;
+    private Class<T> objectType;
+
+    private ArrayDeque<CacheSubPool<T>> pools = new ArrayDeque<>();
+    private int size = 0;
+
+    SubPoolChain(CacheConfig config, CacheStatistics statistics, Class<T> objectType){
+        this.config = config;
+        this.statistics = statistics;
+        this.objectType = objectType;
+    }
+
+    int size(){
+        return size;
+    }
+
+    boolean isEmpty(){
+        return size < 1;
+    }
+
+    /**
+     * Objects in heap, persisted pools excluded.
+     * @return
+     */
+    int getHeapSize(){
+        int total = 0;
+        for(CacheSubPool<T> pool : pools){
+            total += pool.getHeapSize();
+        }
+        return total;
+    }
+
+    void add(T obj) throws Exception {
+        CacheSubPool<T> last = pools.peekLast();
+        if(null == last || last.isFull() || last.isPersisted()){
+            last = new CacheSubPool<T>(config.getNewSubPoolId(), config, statistics, objectType);
+            pools.addLast(last);
+        }
+
+        last.add(obj);
+        size++;
+        statistics.getAndAddCacheSize(1);
+    }
+
+    /**
+     * Success: return how much drained;
+     * Failed: throw exception;
+     * @param list
+     * @param fetchSize
+     * @return
+     * @throws Exception
+     */
+    int drainTo(Collection<T> list, int fetchSize) throws Exception {
+        int total = 0;
+        CacheSubPool<T> pool;
+        while (total < fetchSize && null != (pool = pools.peekFirst())){
+            int prevSize = pool.size();
+            try {
+                total += pool.drainTo(list, fetchSize - total);
+            }
+            finally {
+                // also objects expired or lost in a corrupted file
+                int removed = prevSize - pool.size();
+                size -= removed;
+                statistics.getAndAddCacheSize(-1 * removed);
+            }
+            if(pool.size() > 0){
+                break;
+            }
+            pools.pollFirst();
+        }
+        return total;
+    }
+
+    /**
+     * Persist pools having objects in heap, the newest first, until at least maxObjects are persisted.
+     * @param maxObjects
+     * @return how much persisted, stop at the first failed pool
+     */
+    int spill(int maxObjects){
+        int total = 0;
+        Iterator<CacheSubPool<T>> iter = pools.descendingIterator();
+        while (iter.hasNext() && total < maxObjects){
+            CacheSubPool<T> pool = iter.next();
+            if(pool.getHeapSize() < 1){
+                continue;
+            }
+
+            try {
+                int persisted = pool.persist();
+                if(persisted < 1){
+                    break;
+                }
+                total += persisted;
+            }
+            catch (Exception e){
+                LOGGER.warn("Failed to persist subPool[" + pool.getId() + "]: " + e.getMessage(), e);
+                break;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Load persisted pools to heap, the oldest first, until maxObjects would be exceeded.
+     * @param maxObjects
+     * @return how much objects loaded, stop at the first pool not fitting or failed
+     */
+    int prefetch(int maxObjects){
+        int total = 0;
+        for(CacheSubPool<T> pool : pools){
+            if(!pool.isPersisted()){
+                continue;
+            }
+
+            int inDisk = pool.getSizeInDisk();
+            if(total + inDisk > maxObjects){
+                break;
+            }
+            try {
+                pool.load();
+                total += inDisk;
+            }
+            catch (Exception e){
+                LOGGER.warn("Failed to load subPool[" + pool.getId() + "]: " + e.getMessage(), e);
+                break;
+            }
+        }
+        return total;
+    }
+
+    void clear(){
+        for(CacheSubPool<T> pool : pools){
+            pool.clear();
+        }
+        pools.clear();
+
+        statistics.getAndAddCacheSize(-1 * size);
+        size = 0;
+    }
+}
@@ -0,0 +1,89 @@
+package com.onecmd.diskqueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Walk the objects of sub pools in FIFO order without draining them, one sub pool at a time:
+ * in heap objects are copied, persisted objects are read from their file without loading the sub pool.
+ * Split at sub pool boundaries, so a parallel stream reads the page files on many threads.
+ */
+class SubPoolSpliterator<T> implements Spliterator<T> {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(SubPoolSpliterator.class);
+
+    private List<CacheSubPool<T>> pools;
+    private int from;
+    private int to;
+
+    private Iterator<T> current = null;
+
+    /**
+     * @param pools sub pools in FIFO order
+     * @param from first sub pool, inclusive
+     * @param to last sub pool, exclusive
+     */
+    SubPoolSpliterator(List<CacheSubPool<T>> pools, int from, int to){
+        this.pools = pools;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        while (null == current || !current.hasNext()){
+            if(from >= to){
+                current = null;
+                return false;
+            }
+            current = read(pools.get(from++)).iterator();
+        }
+
+        action.accept(current.next());
+        return true;
+    }
+
+    private List<T> read(CacheSubPool<T> pool){
+        try {
+            return pool.snapshot();
+        }
+        catch (Exception e){
+            LOGGER.warn("Failed to read subPool[" + pool.getId() + "]: " + e.getMessage(), e);
+            throw new IllegalStateException("Failed to read subPool[" + pool.getId() + "]: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Split the sub pools not started yet in two halves, the first half is returned.
+     * @return null if less than two sub pools left or a sub pool is being read
+     */
+    @Override
+    public Spliterator<T> trySplit() {
+        if(null != current || to - from < 2){
+            return null;
+        }
+
+        int mid = (from + to) >>> 1;
+        SubPoolSpliterator<T> prefix = new SubPoolSpliterator<T>(pools, from, mid);
+        from = mid;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        long total = 0;
+        for(int i=from; i<to; i++){
+            total += pools.get(i).size();
+        }
+        return total;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+}
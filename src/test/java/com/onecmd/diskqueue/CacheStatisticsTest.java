@@ -63,6 +63,21 @@ public class CacheStatisticsTest {
     }
 
 
+    @Test
+    public void testDroppedFiles(){
+        int rnd = new Random().nextInt(100);
+        int delta = 10;
+        statistics.getAndAddPersistedFiles(rnd+delta);
+
+        long prev = statistics.getAndAddDroppedFiles(delta);
+        assertEquals(prev, 0);
+        assertEquals(rnd,statistics.getDiskFiles());
+        assertEquals(delta,statistics.getDroppedFiles());
+
+        statistics.getAndAddDroppedSize(rnd);
+        assertEquals(rnd,statistics.getDroppedSize());
+    }
+
     @Test
     public void testGetFileSizeStr(){
 
@@ -7,7 +7,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.function.Consumer;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.TestCase.fail;
@@ -159,6 +159,49 @@ public class CacheSubPoolTest {
         subPool.clear();
     }
 
+    @Test
+    public void testDraigToLazyDecodeAfterPersist_Expect_Draged() throws Exception {
+        CacheConfig config = createConfig();
+        config.setLazyDecode(true);
+        CacheStatistics statistics = new CacheStatistics();
+        CachePersiter<Integer> persiter = new JsonFilePersister<Integer>();
+
+        int poolId = 3;
+        CacheSubPool<Integer> subPool = new CacheSubPool<>(poolId, config, statistics,  Integer.class);
+        subPool.setCachePersiter(persiter);
+
+        String filePath = config.getDiskCacheFileRoot()+File.separator+poolId+".dat";
+
+        int total = 30;
+        for(int i=0; i< total; i++){
+            statistics.getAndAddCacheSize(1);
+            subPool.add(i);
+        }
+
+        subPool.persist();
+
+        ArrayList<Integer> list = new ArrayList<>();
+        subPool.drainTo(list, 10);
+        assertEquals(10, list.size());
+        assertTrue(!new File(filePath).exists());
+        assertEquals("size not right", total - 10, subPool.size());
+        assertEquals("disk size not right", 0, subPool.getSizeInDisk());
+        assertEquals(1, statistics.getLoadedFiles());
+
+        subPool.persist();
+        assertTrue("Expect persisted again after decoding the left objects", new File(filePath).exists());
+
+        subPool.drainTo(list, total);
+        assertEquals(total, list.size());
+        for(int i=0; i< total; i++){
+            assertTrue("Draig out data not FIFO", list.get(i).equals(i));
+        }
+        assertEquals("size not right", 0, subPool.size());
+        assertEquals("heap size not right", 0, subPool.getHeapSize());
+
+        subPool.clear();
+    }
+
     @Test
     public void testClear_Expect_FileDeletedAndPoolEmpty() throws Exception {
         CacheConfig config = createConfig();
@@ -185,6 +228,43 @@ public class CacheSubPoolTest {
         TestCase.assertEquals(0, subPool.size());
     }
 
+    @Test
+    public void testDropAfterPersist_Expect_FileDeletedWithoutLoad() throws Exception {
+        CacheConfig config = createConfig();
+        CacheStatistics statistics = new CacheStatistics();
+        CachePersiter<Integer> persiter = new JsonFilePersister<Integer>();
+
+        int poolId = 3;
+        CacheSubPool<Integer> subPool = new CacheSubPool<>(poolId, config, statistics,  Integer.class);
+        subPool.setCachePersiter(persiter);
+
+        String filePath = config.getDiskCacheFileRoot()+File.separator+poolId+".dat";
+
+        int total = 30;
+        for(int i=0; i< total; i++){
+            statistics.getAndAddCacheSize(1);
+            subPool.add(i);
+        }
+
+        subPool.persist();
+        assertTrue(new File(filePath).exists());
+
+        int dropped = subPool.drop();
+        statistics.getAndAddCacheSize(-1 * dropped);
+
+        TestCase.assertEquals(total, dropped);
+        assertTrue(!new File(filePath).exists());
+        TestCase.assertEquals(0, subPool.size());
+        TestCase.assertEquals(0, statistics.getCacheSize());
+        TestCase.assertEquals(0, statistics.getHeapSize());
+        TestCase.assertEquals(0, statistics.getDiskSize());
+        TestCase.assertEquals(0, statistics.getDiskFiles());
+        TestCase.assertEquals(0, statistics.getLoadedFiles());
+        TestCase.assertEquals(1, statistics.getDroppedFiles());
+        TestCase.assertEquals(total, statistics.getDroppedSize());
+        TestCase.assertTrue(statistics.getDiskFileSize() == 0);
+    }
+
     @Test
     public void testStatictisWhenNoData_Expect_NoChanged() throws Exception {
         CacheConfig config = createConfig();
@@ -322,6 +402,38 @@ public class CacheSubPoolTest {
 
     }
 
+    @Test
+    public void testFileCorrupted_Expect_Quarantined() throws Exception {
+        CacheConfig config = createConfig();
+        CacheStatistics statistics = new CacheStatistics();
+
+        CacheSubPool<Integer> subPool = new CacheSubPool<>(3, config, statistics,  Integer.class);
+
+        int total = 5;
+        for(int i=0; i< total; i++){
+            subPool.add(i);
+        }
+        assertEquals(total, subPool.persist());
+
+        File file = new File(subPool.getFilePath());
+        byte[] data = FileUtils.readFileToByteArray(file);
+        data[data.length - 2] = '7';
+        FileUtils.writeByteArrayToFile(file, data);
+
+        ArrayList<Integer> list = new ArrayList<>();
+        assertEquals(0, subPool.drainTo(list, total));
+        assertEquals(0, subPool.size());
+        assertEquals(total, subPool.takeDiscarded());
+        assertEquals(0, subPool.takeDiscarded());
+        assertEquals(total, statistics.getCorruptedSize());
+        assertEquals(1, statistics.getCorruptedFiles());
+        assertEquals(0, statistics.getDiskSize());
+        assertEquals(0, statistics.getDiskFileSize());
+        assertTrue(!file.exists());
+        assertTrue("Expect moved to quarantine", new File(config.getDiskCacheFileRoot() + File.separator
+                + CacheSubPool.QUARANTINE_FOLDER + File.separator + file.getName()).exists());
+    }
+
     @Test
     public void testReadFailedWhenDrag_Expect_SizeNoChange() throws Exception {
         CacheConfig config = createConfig();
@@ -364,32 +476,132 @@ public class CacheSubPoolTest {
     }
 
     @Test
-    public void testAddListToQueueHead_Expect_OK(){
+    public void testDrainAfterPersist_Expect_FIFO() throws Exception {
         CacheConfig config = createConfig();
         CacheStatistics statistics = new CacheStatistics();
 
         int poolId = 3;
         CacheSubPool<Integer> subPool = new CacheSubPool<>(poolId, config, statistics,  Integer.class);
 
-        LinkedBlockingDeque<Integer> queue = new LinkedBlockingDeque<>();
+        int total = 5;
+        for(int i=0; i< total; i++){
+            statistics.getAndAddCacheSize(1);
+            subPool.add(i);
+        }
+        assertEquals(total, subPool.persist());
+        subPool.add(total);
 
-        int maxValue = 50;
-        queue.add(maxValue);
+        final ArrayList<Integer> list = new ArrayList<>();
+        int drained = subPool.drain(total + 1, new Consumer<Integer>() {
+            public void accept(Integer obj) {
+                list.add(obj);
+            }
+        });
 
-        ArrayList<Integer> list = new ArrayList<>();
+        assertEquals(total + 1, drained);
+        assertEquals(0, subPool.size());
+        for(int i=0; i< total + 1; i++){
+            assertEquals("Not FIFO", i, list.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testDrainBatchSinkFailed_Expect_ObjectsKept() throws Exception {
+        CacheConfig config = createConfig();
+        CacheStatistics statistics = new CacheStatistics();
 
-        subPool.addListToQueueHead(queue, list);
+        int poolId = 3;
+        CacheSubPool<Integer> subPool = new CacheSubPool<>(poolId, config, statistics,  Integer.class);
 
-        TestCase.assertEquals(maxValue, queue.getFirst().intValue());
+        int total = 5;
+        for(int i=0; i< total; i++){
+            subPool.add(i);
+        }
 
-        for(int i=0; i< maxValue; i++){
-            list.add(i);
+        try {
+            subPool.drainBatch(total, new Consumer<List<Integer>>() {
+                public void accept(List<Integer> batch) {
+                    throw new IllegalStateException("Sink failed");
+                }
+            });
+            fail("Expect exception thrown by sink.");
         }
+        catch (IllegalStateException e){
 
-        subPool.addListToQueueHead(queue, list);
-        for(int i=0; i< maxValue +1; i++){
-            TestCase.assertEquals(i, queue.poll().intValue());
+        }
+        assertEquals(total, subPool.size());
+
+        final ArrayList<Integer> list = new ArrayList<>();
+        int drained = subPool.drainBatch(3, new Consumer<List<Integer>>() {
+            public void accept(List<Integer> batch) {
+                list.addAll(batch);
+            }
+        });
+
+        assertEquals(3, drained);
+        assertEquals(total - 3, subPool.size());
+        for(int i=0; i< 3; i++){
+            assertEquals("Not FIFO", i, list.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testSnapshot_Expect_PoolNotChanged() throws Exception {
+        CacheConfig config = createConfig();
+        config.setLazyDecode(true);
+        CacheStatistics statistics = new CacheStatistics();
+
+        int poolId = 3;
+        CacheSubPool<Integer> subPool = new CacheSubPool<>(poolId, config, statistics,  Integer.class);
+
+        int total = 5;
+        for(int i=0; i< total; i++){
+            subPool.add(i);
+        }
+        subPool.persist();
+        subPool.add(total);
+
+        List<Integer> list = subPool.snapshot();
+        assertEquals(total + 1, list.size());
+        assertEquals(total, subPool.getSizeInDisk());
+        assertTrue(new File(subPool.getFilePath()).exists());
+
+        ArrayList<Integer> drained = new ArrayList<>();
+        subPool.drainTo(drained, 2);
+        list = subPool.snapshot();
+        assertEquals(total - 1, list.size());
+        for(int i=0; i< list.size(); i++){
+            assertEquals("Not FIFO", i + 2, list.get(i).intValue());
+        }
+        assertEquals(total - 1, subPool.size());
+    }
+
+    @Test
+    public void testDrainWithExpiredObjects_Expect_LiveObjectsFIFO() throws Exception {
+        CacheConfig config = createConfig();
+        config.setLazyDecode(true);
+        CacheStatistics statistics = new CacheStatistics();
+
+        int poolId = 3;
+        CacheSubPool<Integer> subPool = new CacheSubPool<>(poolId, config, statistics,  Integer.class);
+
+        int total = 10;
+        long now = System.currentTimeMillis();
+        for(int i=0; i< total; i++){
+            subPool.add(i, i % 2 == 0 ? now - 1 : Long.MAX_VALUE);
+        }
+        subPool.persist();
+
+        ArrayList<Integer> list = new ArrayList<>();
+        assertEquals(3, subPool.drainTo(list, 3));
+        assertEquals(2, subPool.drainTo(list, total));
+        for(int i=0; i< list.size(); i++){
+            assertEquals("Not FIFO", i * 2 + 1, list.get(i).intValue());
         }
 
+        assertEquals(0, subPool.size());
+        assertEquals(total / 2, subPool.takeDiscarded());
+        assertEquals(total / 2, statistics.getExpiredSize());
+        assertEquals(0, statistics.getExpiredFiles());
     }
 }
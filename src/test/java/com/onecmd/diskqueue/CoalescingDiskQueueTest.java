@@ -0,0 +1,109 @@
+package com.onecmd.diskqueue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ */
+public class CoalescingDiskQueueTest {
+
+    @Test
+    public void testUpdateSameKey_Expect_LatestDelivered() throws Exception {
+        CoalescingDiskQueue<Integer> queue = new CoalescingDiskQueue<>("test", Integer.class, 1000, 100, 100, 10, true, "./testqueue");
+
+        int keys = 10;
+        int versions = 5;
+        for(int v=0; v<versions; v++){
+            for(int k=0; k<keys; k++){
+                assertTrue(queue.add(k, k * 100 + v));
+            }
+        }
+        assertEquals(keys, queue.getKeySize());
+        assertEquals(keys * versions, queue.size());
+
+        ArrayList<Integer> list = new ArrayList<>();
+        assertEquals(keys, queue.drainTo(list, keys * versions));
+        for(int k=0; k<keys; k++){
+            assertEquals(k * 100 + versions - 1, list.get(k).intValue());
+        }
+
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.getKeySize());
+        assertEquals(keys * (versions - 1), queue.getStatistics().getCoalescedSize());
+        assertNull(queue.poll());
+
+        assertTrue(queue.add(3, 1));
+        assertEquals(1, queue.poll().intValue());
+    }
+
+    @Test
+    public void testPersistedPagesSuperseded_Expect_DeletedWithoutLoading() throws Exception {
+        CoalescingDiskQueue<Integer> queue = new CoalescingDiskQueue<>("test", Integer.class, 1000, 30, 100, 10, true, "./testqueue");
+
+        int keys = 60;
+        for(int k=0; k<keys; k++){
+            assertTrue(queue.add(k, k));
+        }
+        assertTrue(queue.getStatistics().getDiskFiles() > 0);
+        for(int k=0; k<keys; k++){
+            assertTrue(queue.add(k, keys + k));
+        }
+
+        ArrayList<Integer> list = new ArrayList<>();
+        assertEquals(keys, queue.drainTo(list, keys * 2));
+        for(int k=0; k<keys; k++){
+            assertEquals("Not FIFO", keys + k, list.get(k).intValue());
+        }
+
+        assertEquals(keys, queue.getStatistics().getCoalescedSize());
+        assertTrue(queue.getStatistics().getCoalescedFiles() > 0);
+        assertEquals(0, queue.getStatistics().getDiskFiles());
+        assertEquals(0, queue.getStatistics().getDiskFileSize());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testPersistedPagesPartlySuperseded_Expect_LatestDeliveredInOrder() throws Exception {
+        CoalescingDiskQueue<Integer> queue = new CoalescingDiskQueue<>("test", Integer.class, 1000, 30, 100, 10, true, "./testqueue");
+        assertTrue(queue.getConfig().isLazyDecode());
+
+        int keys = 60;
+        for(int k=0; k<keys; k++){
+            assertTrue(queue.add(k, k));
+        }
+        assertTrue(queue.getStatistics().getDiskFiles() > 0);
+        assertTrue("Keys of persisted pages not on disk", countKeysFiles(queue) > 0);
+        for(int k=0; k<keys; k+=2){
+            assertTrue(queue.add(k, keys + k));
+        }
+
+        ArrayList<Integer> list = new ArrayList<>();
+        assertEquals(keys, queue.drainTo(list, keys * 2));
+        for(int i=0; i<keys/2; i++){
+            assertEquals("Not FIFO", 2 * i + 1, list.get(i).intValue());
+            assertEquals("Not FIFO", keys + 2 * i, list.get(keys/2 + i).intValue());
+        }
+
+        assertEquals(keys / 2, queue.getStatistics().getCoalescedSize());
+        assertEquals(0, countKeysFiles(queue));
+        assertEquals(0, queue.getStatistics().getDiskFileSize());
+        assertTrue(queue.isEmpty());
+    }
+
+    private static int countKeysFiles(CoalescingDiskQueue<?> queue){
+        File[] files = new File(queue.getConfig().getDiskCacheFileRoot()).listFiles();
+        int total = 0;
+        for(File file : files){
+            if(file.getName().endsWith(".keys")){
+                total++;
+            }
+        }
+        return total;
+    }
+}
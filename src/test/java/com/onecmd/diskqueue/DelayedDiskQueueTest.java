@@ -0,0 +1,124 @@
+package com.onecmd.diskqueue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ */
+public class DelayedDiskQueueTest {
+
+    @Test
+    public void testPollBeforeDue_Expect_Null() throws Exception {
+        DelayedDiskQueue<Integer> queue = new DelayedDiskQueue<>("test", Integer.class, 1000, 100, 100, 10, true, 10, "./testqueue");
+
+        assertTrue(queue.add(1, 1, TimeUnit.HOURS));
+        assertTrue(queue.add(2, 0, TimeUnit.MILLISECONDS));
+        assertEquals(-1, new DelayedDiskQueue<>("empty", Integer.class, 1000, 100, 100, 10, true, 10, "./testqueue").getDelayMillis());
+
+        Thread.sleep(20);
+        assertEquals(2, queue.poll().intValue());
+        assertNull(queue.poll());
+        assertTrue(queue.getDelayMillis() > 0);
+        assertEquals(1, queue.size());
+
+        queue.clear();
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testFarBucketsSpilled_Expect_NearBucketsInHeap() throws Exception {
+        int heapCapacity = 50;
+        DelayedDiskQueue<Integer> queue = new DelayedDiskQueue<>("test", Integer.class, 1000, heapCapacity, 100, 10, true, 100, "./testqueue");
+
+        int near = 30;
+        for(int i=0; i<near; i++){
+            assertTrue(queue.add(i, 0, TimeUnit.MILLISECONDS));
+        }
+        int far = 300;
+        for(int i=0; i<far; i++){
+            assertTrue(queue.add(near + i, 60 + i, TimeUnit.MINUTES));
+        }
+
+        assertEquals(near + far, queue.size());
+        assertTrue("Heap should be bounded", queue.getHeapSize() <= heapCapacity);
+        assertEquals(far + near - queue.getHeapSize(), queue.getStatistics().getDiskSize());
+
+        Thread.sleep(150);
+        ArrayList<Integer> list = new ArrayList<>();
+        assertEquals(near, queue.drainTo(list, near + far));
+        for(int i=0; i<near; i++){
+            assertEquals("Not FIFO", i, list.get(i).intValue());
+        }
+        assertEquals(0, queue.getStatistics().getLoadedFiles());
+
+        queue.clear();
+        assertEquals(0, queue.getStatistics().getDiskSize());
+        assertEquals(0, queue.getStatistics().getDiskFileSize());
+    }
+
+    @Test
+    public void testSpilledBucketDueSoon_Expect_PrefetchedWithinHeapCapacity() throws Exception {
+        int heapCapacity = 30;
+        DelayedDiskQueue<Integer> queue = new DelayedDiskQueue<>("test", Integer.class, 1000, heapCapacity, 100, 10, true, 100, "./testqueue");
+
+        int first = 20;
+        for(int i=0; i<first; i++){
+            assertTrue(queue.add(i, 200, TimeUnit.MILLISECONDS));
+        }
+        int total = 50;
+        for(int i=0; i<total; i++){
+            assertTrue(queue.add(first + i, 1500, TimeUnit.MILLISECONDS));
+        }
+        assertTrue(queue.getStatistics().getDiskSize() > 0);
+
+        Thread.sleep(400);
+        ArrayList<Integer> list = new ArrayList<>();
+        assertEquals(first, queue.drainTo(list, first + total));
+        assertEquals(0, queue.getStatistics().getLoadedFiles());
+
+        queue.setPrefetchMillis(10000);
+        long deadline = System.currentTimeMillis() + 500;
+        while (queue.getStatistics().getLoadedFiles() < 1 && System.currentTimeMillis() < deadline){
+            Thread.sleep(10);
+        }
+        assertTrue("Expect pages loaded by the timer", queue.getStatistics().getLoadedFiles() > 0);
+        assertTrue("Heap should be bounded", queue.getHeapSize() <= heapCapacity);
+        assertTrue("Pages not fitting in heap are left on disk", queue.getStatistics().getDiskSize() > 0);
+
+        Thread.sleep(1200);
+        list.clear();
+        assertEquals(total, queue.drainTo(list, total));
+        for(int i=0; i<total; i++){
+            assertEquals("Not FIFO", first + i, list.get(i).intValue());
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testHeapFullOfBucketsDueSoon_Expect_Spilled() throws Exception {
+        int heapCapacity = 30;
+        DelayedDiskQueue<Integer> queue = new DelayedDiskQueue<>("test", Integer.class, 1000, heapCapacity, 100, 10, true, 100, "./testqueue");
+        queue.setPrefetchMillis(10000);
+
+        int total = 100;
+        for(int i=0; i<total; i++){
+            assertTrue(queue.add(i, 200 + i, TimeUnit.MILLISECONDS));
+        }
+        assertTrue("Heap should be bounded", queue.getHeapSize() <= heapCapacity);
+        assertTrue(queue.getStatistics().getDiskSize() > 0);
+
+        Thread.sleep(500);
+        ArrayList<Integer> list = new ArrayList<>();
+        assertEquals(total, queue.drainTo(list, total));
+        for(int i=0; i<total; i++){
+            assertEquals("Not FIFO", i, list.get(i).intValue());
+        }
+        assertTrue(queue.isEmpty());
+    }
+}
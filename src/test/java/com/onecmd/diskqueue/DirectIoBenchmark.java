@@ -0,0 +1,129 @@
+package com.onecmd.diskqueue;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compare spilling through the page cache with DirectPageIO while the application re-reads a hot file.
+ * Not run by the tests, run it under memory pressure, e.g. in a cgroup whose memory is a bit larger than the hot file:
+ *   systemd-run --scope -p MemoryMax=512M java -cp $CLASSPATH \
+ *       com.onecmd.diskqueue.DirectIoBenchmark ./benchqueue 256 2048
+ * Arguments: folder, hot file size in MB, spilled MB per mode.
+ * With the page cache the spilled pages evict the hot file and the hot reads slow down, with direct I/O they should not.
+ */
+public class DirectIoBenchmark {
+
+    private static final int HOT_BLOCK = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        String root = args.length > 0 ? args[0] : "./benchqueue";
+        int hotMB = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        int spillMB = args.length > 2 ? Integer.parseInt(args[2]) : 2048;
+
+        File folder = new File(root);
+        folder.mkdirs();
+        File hotFile = new File(folder.getAbsoluteFile().getParentFile(), folder.getName() + ".hot");
+        createHotFile(hotFile, hotMB);
+
+        try {
+            for (boolean direct : new boolean[]{false, true}) {
+                run(root, hotFile, spillMB, direct);
+            }
+        }
+        finally {
+            FileUtils.deleteQuietly(hotFile);
+            FileUtils.deleteQuietly(folder);
+        }
+        System.exit(0);
+    }
+
+    private static void createHotFile(File file, int sizeInMB) throws Exception {
+        byte[] block = new byte[HOT_BLOCK];
+        new Random(1).nextBytes(block);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            for (long written = 0; written < sizeInMB * 1024L * 1024L; written += block.length) {
+                raf.write(block);
+            }
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return nanoseconds to read the whole file
+     */
+    private static long readHotFile(File file) throws Exception {
+        byte[] block = new byte[HOT_BLOCK];
+        long start = System.nanoTime();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            while (raf.read(block) > 0) {
+            }
+        }
+        finally {
+            raf.close();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void run(String root, File hotFile, int spillMB, boolean direct) throws Exception {
+        int pageSize = 1000;
+        int objects = spillMB * 1024;
+        DiskQueue<CacheExample> queue = new DiskQueue("bench", CacheExample.class, objects + pageSize, pageSize * 4,
+                spillMB * 2, pageSize, true, 60, root);
+        queue.getConfig().setDirectIo(direct);
+
+        readHotFile(hotFile);
+        long hotBefore = readHotFile(hotFile);
+
+        char[] chars = new char[1000];
+        Arrays.fill(chars, 'x');
+        String payload = new String(chars);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < objects; i++) {
+            CacheExample example = new CacheExample();
+            example.setId(i);
+            example.setName(payload);
+            queue.add(example);
+        }
+        long addNanos = System.nanoTime() - start;
+
+        long hotDuring = readHotFile(hotFile);
+
+        start = System.nanoTime();
+        ArrayList<CacheExample> list = new ArrayList<>(pageSize);
+        while (queue.size() > 0) {
+            list.clear();
+            queue.drainTo(list, pageSize);
+        }
+        long drainNanos = System.nanoTime() - start;
+
+        long hotAfter = readHotFile(hotFile);
+
+        DirectPageIO io = queue.getConfig().getDirectPageIO();
+        System.out.println((direct ? "direct" : "page cache") + (null != io ? " [" + io + "]" : "")
+                + ": add " + mbPerSecond(spillMB, addNanos) + " MB/s"
+                + ", drain " + mbPerSecond(spillMB, drainNanos) + " MB/s"
+                + ", hot read before " + millis(hotBefore) + " ms"
+                + ", after spilling " + millis(hotDuring) + " ms"
+                + ", after draining " + millis(hotAfter) + " ms"
+                + ", " + queue.getStatistics());
+        queue.clear();
+    }
+
+    private static long mbPerSecond(int mb, long nanos) {
+        return nanos <= 0 ? 0 : mb * 1000000000L / nanos;
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1000000;
+    }
+}
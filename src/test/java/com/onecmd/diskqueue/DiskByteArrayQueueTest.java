@@ -0,0 +1,60 @@
+package com.onecmd.diskqueue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ */
+public class DiskByteArrayQueueTest {
+
+    private byte[] createValue(int i){
+        byte[] value = new byte[i % 50];
+        Arrays.fill(value, (byte) i);
+        return value;
+    }
+
+    @Test
+    public void testAddAndDrain_Expect_FIFO() throws Exception {
+        DiskByteArrayQueue queue = new DiskByteArrayQueue("testBytes", 1000, 60, 0, 10, true, "./testqueue");
+
+        int total = 500;
+        List<byte[]> values = new ArrayList<>();
+        for(int i=0; i<total; i++) {
+            values.add(createValue(i));
+        }
+        assertEquals(total, queue.addAll(values));
+        assertTrue("Expect pages persisted", queue.getStatistics().getDiskSize() > 0);
+
+        ArrayList<byte[]> list = new ArrayList<>();
+        while (list.size() < total){
+            queue.drainTo(list, 33);
+        }
+        for(int i=0; i<total; i++){
+            assertTrue("Not FIFO", Arrays.equals(createValue(i), list.get(i)));
+        }
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+        assertEquals(0, queue.getStatistics().getDiskFileSize());
+    }
+
+    @Test
+    public void testWrongParameters_Expect_ThrowExceptions() throws Exception {
+        DiskByteArrayQueue queue = new DiskByteArrayQueue("testBytes", 1000, 60, 0, 10, true, "./testqueue");
+
+        try {
+            queue.add(null);
+            junit.framework.Assert.fail("Expect throw NullPointerException when value is null");
+        }
+        catch (NullPointerException e){
+
+        }
+        assertEquals(0, queue.size());
+    }
+}
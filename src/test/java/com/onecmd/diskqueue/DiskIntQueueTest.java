@@ -0,0 +1,31 @@
+package com.onecmd.diskqueue;
+
+import org.junit.Test;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ */
+public class DiskIntQueueTest {
+
+    @Test
+    public void testAddAndDrain_Expect_FIFO() throws Exception {
+        DiskIntQueue queue = new DiskIntQueue("testInt", 1000, 60, 0, 10, true, "./testqueue");
+
+        int total = 500;
+        int[] values = new int[total];
+        for(int i=0; i<total; i++) {
+            values[i] = Integer.MIN_VALUE + i;
+        }
+        assertEquals(total, queue.addAll(values, 0, total));
+        assertTrue("Expect pages persisted", queue.getStatistics().getDiskSize() > 0);
+        assertEquals(4 * queue.getStatistics().getDiskSize() + 4 * queue.getStatistics().getDiskFiles(), queue.getStatistics().getDiskFileSize());
+
+        for(int i=0; i<total; i++){
+            assertEquals("Not FIFO", Integer.MIN_VALUE + i, queue.remove());
+        }
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.getStatistics().getDiskFileSize());
+    }
+}
@@ -0,0 +1,93 @@
+package com.onecmd.diskqueue;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.NoSuchElementException;
+
+import static junit.framework.Assert.fail;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ */
+public class DiskLongQueueTest {
+
+    @Test
+    public void testAddAndDrain_Expect_FIFO() throws Exception {
+        DiskLongQueue queue = new DiskLongQueue("testLong", 1000, 60, 0, 10, true, "./testqueue");
+
+        int total = 500;
+        for(int i=0; i<total; i++) {
+            assertTrue(queue.add(Long.MAX_VALUE - i));
+        }
+        assertEquals(total, queue.size());
+        assertTrue("Expect pages persisted", queue.getStatistics().getDiskSize() > 0);
+        assertTrue(queue.getHeapSize() <= queue.getConfig().getHeapCapacity());
+
+        long[] buffer = new long[total];
+        int drained = 0;
+        while (drained < total){
+            drained += queue.drainTo(buffer, drained, 33);
+        }
+        for(int i=0; i<total; i++){
+            assertEquals("Not FIFO", Long.MAX_VALUE - i, buffer[i]);
+        }
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.getStatistics().getDiskSize());
+        assertEquals(0, queue.getStatistics().getDiskFileSize());
+        assertEquals(0, queue.getHeapSize());
+
+        try {
+            queue.remove();
+            fail("Expect throw NoSuchElementException when queue is empty");
+        }
+        catch (NoSuchElementException e){
+
+        }
+    }
+
+    @Test
+    public void testAddAllCapacityExceed_Expect_PartlyAdded() throws Exception {
+        DiskLongQueue queue = new DiskLongQueue("testLong", 100, 30, 0, 10, true, "./testqueue");
+
+        long[] values = new long[150];
+        for(int i=0; i<values.length; i++){
+            values[i] = i;
+        }
+
+        assertEquals(100, queue.addAll(values, 0, values.length));
+        assertEquals(false, queue.add(1000));
+        assertEquals(0, queue.remove());
+        assertEquals(true, queue.add(1000));
+
+        queue.clear();
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.getStatistics().getDiskFileSize());
+        assertTrue("Persist files should be 0", new File(queue.getConfig().getDiskCacheFileRoot()).list().length == 0);
+    }
+
+    @Test
+    public void testDataFileDamaged_Expect_LoadFailed() throws Exception {
+        DiskLongQueue queue = new DiskLongQueue("testLong", 100, 30, 0, 10, true, "./testqueue");
+
+        for(int i=0; i<100; i++) {
+            queue.add(i);
+        }
+
+        FileUtils.cleanDirectory(new File(queue.getConfig().getDiskCacheFileRoot()));
+
+        long[] buffer = new long[100];
+        int drained = queue.drainTo(buffer, 0, 100);
+        assertTrue("Expect drained until the damaged page", drained > 0 && drained < 100);
+
+        try {
+            queue.drainTo(buffer, 0, 100);
+            fail("Expect failed.");
+        }
+        catch (Exception e){
+
+        }
+    }
+}
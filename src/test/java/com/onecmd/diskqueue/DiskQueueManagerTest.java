@@ -0,0 +1,167 @@
+package com.onecmd.diskqueue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static junit.framework.Assert.fail;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNotNull;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ */
+public class DiskQueueManagerTest {
+
+    @Test
+    public void testCreateQueue_Expect_SharedStatistics() throws Exception {
+        DiskQueueManager manager = new DiskQueueManager(2, 1000, 100, "./testqueue");
+
+        DiskQueue<Integer> queue1 = manager.createQueue("test1", Integer.class, 1000, 100, 100, 10, true, 10);
+        DiskQueue<Integer> queue2 = manager.createQueue("test2", Integer.class, 1000, 100, 100, 10, true, 10);
+        assertNotNull(manager.getQueue("test1"));
+        assertEquals(2, manager.getQueues().size());
+
+        for(int i=0; i<30; i++){
+            queue1.add(i);
+            queue2.add(i);
+        }
+
+        assertEquals(60, manager.getStatistics().getCacheSize());
+        assertEquals(queue1.getStatistics().getHeapSize() + queue2.getStatistics().getHeapSize(), manager.getStatistics().getHeapSize());
+
+        try {
+            manager.createQueue("test1", Integer.class, 1000, 100, 100, 10, true, 10);
+            fail("Expect throw exception when queue exists.");
+        }
+        catch (IllegalArgumentException e){
+
+        }
+
+        manager.removeQueue("test1");
+        assertEquals(30, manager.getStatistics().getCacheSize());
+
+        manager.shutdown();
+        assertEquals(0, manager.getStatistics().getCacheSize());
+        assertEquals(0, manager.getQueues().size());
+    }
+
+    @Test
+    public void testGlobalHeapExceed_Expect_ColdestQueueSpilled() throws Exception {
+        int heapCapacity = 50;
+        DiskQueueManager manager = new DiskQueueManager(2, heapCapacity, 100, "./testqueue");
+
+        DiskQueue<Integer> cold = manager.createQueue("cold", Integer.class, 1000, 300, 100, 10, true, 10);
+        DiskQueue<Integer> hot = manager.createQueue("hot", Integer.class, 1000, 300, 100, 10, true, 10);
+
+        int total = 200;
+        for(int i=0; i<total; i++){
+            assertTrue(cold.add(i));
+        }
+        for(int i=0; i<10; i++){
+            assertTrue(hot.add(i));
+        }
+
+        assertTrue("Global heap should be kept around heap capacity", manager.getStatistics().getHeapSize() <= heapCapacity + 10);
+        assertTrue("Cold queue should be spilled", cold.getStatistics().getDiskSize() > 0);
+        assertEquals(0, hot.getStatistics().getDiskSize());
+
+        ArrayList<Integer> list = new ArrayList<>();
+        cold.drainTo(list, total);
+        assertEquals(total, list.size());
+        for(int i=0; i<total; i++){
+            assertEquals("Not FIFO", i, list.get(i).intValue());
+        }
+
+        manager.shutdown();
+    }
+
+    @Test
+    public void testGlobalDiskExceed_Expect_AddedFailed() throws Exception {
+        DiskQueueManager manager = new DiskQueueManager(1, 20, 1, "./testqueue");
+
+        DiskQueue<Integer> queue = manager.createQueue("test1", Integer.class, 1000, 20, 100, 10, true, 10);
+        for(int i=0; i<100; i++){
+            queue.add(i);
+        }
+        assertTrue(!manager.isDiskFull());
+
+        manager.getStatistics().getAndAddDiskFileSize(manager.getMaxDiskSize());
+        assertTrue(manager.isDiskFull());
+        assertTrue(queue.isDiskFull());
+        assertEquals(false, queue.add(100));
+
+        manager.getStatistics().getAndAddDiskFileSize(-1 * manager.getMaxDiskSize());
+        manager.shutdown();
+    }
+
+    @Test
+    public void testDrainPersistedQueue_Expect_NextPageLoadedAhead() throws Exception {
+        DiskQueueManager manager = new DiskQueueManager(2, 100, 100, "./testqueue");
+        DiskQueue<Integer> queue = manager.createQueue("test1", Integer.class, 1000, 100, 100, 10, true, 10);
+
+        int total = 500;
+        for(int i=0; i<total; i++){
+            assertTrue(queue.add(i));
+        }
+        assertTrue(queue.getStatistics().getDiskSize() > 0);
+
+        boolean loadedAhead = false;
+        ArrayList<Integer> list = new ArrayList<>();
+        while (queue.size() > 0){
+            queue.drainTo(list, 10);
+            long diskSize = queue.getStatistics().getDiskSize();
+            long deadline = System.currentTimeMillis() + 200;
+            while (!loadedAhead && diskSize > 0 && System.currentTimeMillis() < deadline){
+                loadedAhead = queue.getStatistics().getDiskSize() < diskSize;
+                Thread.sleep(1);
+            }
+        }
+        assertTrue("Expect a page loaded without draining it", loadedAhead);
+        assertEquals(total, list.size());
+        for(int i=0; i<total; i++){
+            assertEquals("Not FIFO", i, list.get(i).intValue());
+        }
+
+        manager.shutdown();
+    }
+
+    @Test
+    public void testGlobalHeapHasRoom_Expect_QueueHeapCapacityExceeded() throws Exception {
+        int heapCapacity = 100;
+        DiskQueueManager manager = new DiskQueueManager(2, heapCapacity, 100, "./testqueue");
+
+        DiskQueue<Integer> first = manager.createQueue("first", Integer.class, 1000, 20, 100, 10, true, 10);
+        DiskQueue<Integer> second = manager.createQueue("second", Integer.class, 1000, 20, 100, 10, true, 10);
+
+        for(int i=0; i<80; i++){
+            assertTrue(first.add(i));
+        }
+        assertEquals(80, first.getHeapSize());
+        assertEquals(0, first.getStatistics().getDiskSize());
+
+        int total = 100;
+        for(int i=0; i<total; i++){
+            assertTrue(second.add(i));
+        }
+        assertTrue("Global heap should be kept within heap capacity", manager.getStatistics().getHeapSize() <= heapCapacity);
+        assertEquals("First queue keeps the heap it took while the budget had room", 80, first.getHeapSize());
+        assertTrue("Second queue should spill at its own heap capacity", second.getHeapSize() <= 20);
+        assertTrue(second.getStatistics().getDiskSize() > 0);
+
+        ArrayList<Integer> list = new ArrayList<>();
+        first.drainTo(list, total);
+        assertEquals(80, list.size());
+        for(int i=0; i<80; i++){
+            assertEquals("Not FIFO", i, list.get(i).intValue());
+        }
+        list.clear();
+        second.drainTo(list, total);
+        assertEquals(total, list.size());
+        for(int i=0; i<total; i++){
+            assertEquals("Not FIFO", i, list.get(i).intValue());
+        }
+
+        manager.shutdown();
+    }
+}
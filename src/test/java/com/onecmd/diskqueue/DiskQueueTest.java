@@ -8,10 +8,17 @@ import java.io.File;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
 
 import static junit.framework.Assert.fail;
 import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNull;
 import static junit.framework.TestCase.assertTrue;
 
 /**
@@ -201,6 +208,490 @@ public class DiskQueueTest {
         queue.clear();
     }
 
+    @Test
+    public void testHeapCapacityBelowThreePages_Expect_PageSizeAtLeastOne() throws Exception {
+        String name = "test";
+        DiskQueue<Integer> queue = new DiskQueue(name, Integer.class, 100, 2, 100, 10, true, 10, "./testqueue");
+        assertEquals(1, queue.getConfig().getPageSize());
+
+        for(int i=0; i<20; i++) {
+            assertTrue(queue.add(i));
+        }
+        assertTrue(queue.getStatistics().getDiskSize() > 0);
+
+        ArrayList<Integer> list = new ArrayList<>();
+        assertEquals(20, queue.drainTo(list, 100));
+        for(int i=0; i<20; i++){
+            assertEquals("Not FIFO", i, list.get(i).intValue());
+        }
+        queue.clear();
+    }
+
+    @Test
+    public void testOfferTimeoutWhenFull_Expect_ReturnFalse() throws Exception {
+        String name = "test";
+        int total = 100;
+        DiskQueue<Integer> queue = new DiskQueue(name, Integer.class, total, 20, 100, 10, true, 10, "./testqueue");
+
+        for(int i=0; i<total; i++) {
+            assertEquals(true, queue.add(i));
+        }
+
+        long start = System.currentTimeMillis();
+        boolean result = queue.offer(total + 1, 200, TimeUnit.MILLISECONDS);
+        assertEquals("Expect failed when capacity exceed.", false, result);
+        assertTrue("Expect waited for the timeout", System.currentTimeMillis() - start >= 200);
+        assertEquals(total, queue.size());
+
+        queue.clear();
+    }
+
+    @Test
+    public void testPutWhenFull_Expect_BlockedUntilDrained() throws Exception {
+        String name = "test";
+        int total = 100;
+        final DiskQueue<Integer> queue = new DiskQueue(name, Integer.class, total, 20, 100, 10, true, 10, "./testqueue");
+
+        for(int i=0; i<total; i++) {
+            assertEquals(true, queue.add(i));
+        }
+
+        final int producers = 5;
+        final CountDownLatch added = new CountDownLatch(producers);
+        for(int i=0; i<producers; i++) {
+            final int value = total + i;
+            new Thread() {
+                public void run() {
+                    try {
+                        queue.put(value);
+                        added.countDown();
+                    } catch (InterruptedException e) {
+                    }
+                }
+            }.start();
+        }
+
+        assertEquals("Expect producers blocked when queue full", false, added.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(total, queue.size());
+
+        ArrayList<Integer> list = new ArrayList<>();
+        queue.drainTo(list, producers);
+        assertEquals(producers, list.size());
+
+        assertEquals("Expect producers woken after drained", true, added.await(5, TimeUnit.SECONDS));
+        assertEquals(total, queue.size());
+
+        list.clear();
+        queue.drainTo(list, total);
+        assertEquals(total, list.size());
+        for(int i=0; i<total - producers; i++){
+            assertEquals("Not FIFO", producers + i, list.get(i).intValue());
+        }
+
+        queue.clear();
+    }
+
+    @Test
+    public void testPutRacingDrain_Expect_NoLostWakeup() throws Exception {
+        String name = "test";
+        final int total = 5000;
+        final DiskQueue<Integer> queue = new DiskQueue(name, Integer.class, 30, 20, 100, 10, true, 10, "./testqueue");
+        final CountDownLatch added = new CountDownLatch(1);
+
+        new Thread() {
+            public void run() {
+                try {
+                    for(int i=0; i<total; i++) {
+                        queue.put(i);
+                    }
+                    added.countDown();
+                } catch (InterruptedException e) {
+                }
+            }
+        }.start();
+
+        ArrayList<Integer> list = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + 30000;
+        while (list.size() < total && System.currentTimeMillis() < deadline){
+            queue.drainTo(list, 1);
+        }
+        assertEquals("Expect the producer never missed a wakeup", true, added.await(1, TimeUnit.SECONDS));
+        assertEquals(total, list.size());
+        for(int i=0; i<total; i++){
+            assertEquals("Not FIFO", i, list.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testDropOldestWhenFull_Expect_HeadPagesDropped() throws Exception {
+        String name = "test";
+        int capacity = 100;
+        DiskQueue<Integer> queue = new DiskQueue(name, Integer.class, capacity, 20, 100, 10, true, 10, "./testqueue");
+        queue.getConfig().setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+
+        int total = 250;
+        for(int i=0; i<total; i++) {
+            assertEquals("Expect added when dropping oldest", true, queue.add(i));
+        }
+
+        assertTrue(queue.size() <= capacity);
+        assertEquals(total, queue.size() + queue.getStatistics().getDroppedSize());
+        assertTrue("Expect persisted pages dropped", queue.getStatistics().getDroppedFiles() > 0);
+
+        ArrayList<Integer> list = new ArrayList<>();
+        queue.drainTo(list, capacity);
+        assertEquals(queue.getStatistics().getDroppedSize(), list.get(0).intValue());
+        for(int i=1; i< list.size(); i++){
+            assertEquals("Not FIFO", list.get(i-1) + 1, list.get(i).intValue());
+        }
+        assertEquals(total - 1, list.get(list.size() - 1).intValue());
+        assertEquals(0, queue.getStatistics().getDiskFiles());
+
+        queue.clear();
+    }
+
+    @Test
+    public void testDrainWithConsumer_Expect_FIFO() throws Exception {
+        String name = "test";
+        DiskQueue<Integer> queue = new DiskQueue(name, Integer.class, 1000, 30, 100, 10, true, 10, "./testqueue");
+
+        int total = 200;
+        for(int i=0; i<total; i++) {
+            assertTrue(queue.add(i));
+        }
+        assertTrue("Expect pages persisted", queue.getStatistics().getDiskSize() > 0);
+
+        final ArrayList<Integer> list = new ArrayList<>();
+        assertEquals(15, queue.drain(15, new Consumer<Integer>() {
+            public void accept(Integer obj) {
+                list.add(obj);
+            }
+        }));
+
+        final ArrayList<Integer> sizes = new ArrayList<>();
+        assertEquals(total - 15, queue.drainBatches(total, new Consumer<List<Integer>>() {
+            public void accept(List<Integer> batch) {
+                sizes.add(batch.size());
+                list.addAll(batch);
+            }
+        }));
+
+        assertEquals(0, queue.size());
+        assertEquals(total, list.size());
+        for(int i=0; i<total; i++){
+            assertEquals("Not FIFO", i, list.get(i).intValue());
+        }
+        assertEquals("Expect one batch per page", 5, sizes.get(0).intValue());
+        assertEquals(10, sizes.get(1).intValue());
+
+        queue.clear();
+    }
+
+    @Test
+    public void testDrainSinkFailed_Expect_ObjectKept() throws Exception {
+        String name = "test";
+        DiskQueue<Integer> queue = new DiskQueue(name, Integer.class, 1000, 30, 100, 10, true, 10, "./testqueue");
+        for(int i=0; i<20; i++) {
+            queue.add(i);
+        }
+
+        try {
+            queue.drain(20, new Consumer<Integer>() {
+                public void accept(Integer obj) {
+                    if(obj == 12){
+                        throw new IllegalStateException("Sink failed");
+                    }
+                }
+            });
+            fail("Expect exception thrown by sink.");
+        }
+        catch (IllegalStateException e){
+
+        }
+
+        assertEquals(8, queue.size());
+        ArrayList<Integer> list = new ArrayList<>();
+        queue.drainTo(list, 20);
+        assertEquals(12, list.get(0).intValue());
+
+        queue.clear();
+    }
+
+    @Test
+    public void testIteratorAndStream_Expect_NotDrainedOrLoaded() throws Exception {
+        String name = "test";
+        DiskQueue<Integer> queue = new DiskQueue(name, Integer.class, 1000, 30, 100, 10, true, 10, "./testqueue");
+
+        int total = 200;
+        for(int i=0; i<total; i++) {
+            assertTrue(queue.add(i));
+        }
+        int diskSize = queue.getStatistics().getDiskSize();
+        assertTrue("Expect pages persisted", diskSize > 0);
+
+        Iterator<Integer> iter = queue.iterator();
+        for(int i=0; i<total; i++){
+            assertEquals("Not FIFO", i, iter.next().intValue());
+        }
+        assertTrue(!iter.hasNext());
+
+        long sum = queue.stream(true).mapToLong(Integer::longValue).sum();
+        assertEquals((long) total * (total - 1) / 2, sum);
+        assertEquals(total, queue.stream().count());
+
+        assertEquals(total, queue.size());
+        assertEquals(diskSize, queue.getStatistics().getDiskSize());
+        assertEquals(0, queue.getStatistics().getLoadedFiles());
+
+        ArrayList<Integer> list = new ArrayList<>();
+        queue.drainTo(list, total);
+        assertEquals(total, list.size());
+
+        queue.clear();
+    }
+
+    @Test
+    public void testTtlExpired_Expect_PagesDeletedWithoutLoading() throws Exception {
+        String name = "test";
+        DiskQueue<Integer> queue = new DiskQueue(name, Integer.class, 1000, 30, 100, 10, true, 10, "./testqueue");
+        queue.getConfig().setTtlMillis(50);
+
+        int total = 100;
+        for(int i=0; i<total; i++) {
+            assertTrue(queue.add(i));
+        }
+        assertTrue("Expect pages persisted", queue.getStatistics().getDiskFiles() > 0);
+
+        Thread.sleep(100);
+        for(int i=0; i<10; i++) {
+            assertTrue(queue.add(total + i, 0, TimeUnit.MILLISECONDS));
+        }
+
+        ArrayList<Integer> list = new ArrayList<>();
+        queue.drainTo(list, total);
+        assertEquals(10, list.size());
+        for(int i=0; i<10; i++){
+            assertEquals("Not FIFO", total + i, list.get(i).intValue());
+        }
+
+        assertEquals(0, queue.size());
+        assertEquals(total, queue.getStatistics().getExpiredSize());
+        assertTrue(queue.getStatistics().getExpiredFiles() > 0);
+        assertEquals(0, queue.getStatistics().getLoadedFiles());
+        assertEquals(0, queue.getStatistics().getDiskFiles());
+        assertEquals(0, queue.getStatistics().getDiskSize());
+
+        queue.clear();
+    }
+
+    @Test
+    public void testPageFileCorrupted_Expect_OtherPagesDrained() throws Exception {
+        String name = "test";
+        DiskQueue<Integer> queue = new DiskQueue(name, Integer.class, 1000, 30, 100, 10, true, 10, "./testqueue");
+
+        int total = 100;
+        for(int i=0; i<total; i++) {
+            assertTrue(queue.add(i));
+        }
+
+        File[] files = new File(queue.getConfig().getDiskCacheFileRoot()).listFiles();
+        assertTrue("Expect pages persisted", files.length > 1);
+        Arrays.sort(files);
+        File corrupted = files[0];
+        byte[] data = FileUtils.readFileToByteArray(corrupted);
+        data[PageHeader.SIZE + 1] = (byte) (data[PageHeader.SIZE + 1] == '1' ? '2' : '1');
+        FileUtils.writeByteArrayToFile(corrupted, data);
+
+        ArrayList<Integer> list = new ArrayList<>();
+        queue.drainTo(list, total);
+        assertEquals(total - 10, list.size());
+        assertEquals(0, queue.size());
+        assertEquals(10, queue.getStatistics().getCorruptedSize());
+        assertEquals(1, queue.getStatistics().getCorruptedFiles());
+        for(int i=1; i<list.size(); i++){
+            assertTrue("Not FIFO", list.get(i) > list.get(i - 1));
+        }
+
+        queue.clear();
+    }
+
+    @Test
+    public void testRecycledPageFiles_Expect_FilesReused() throws Exception {
+        String name = "test";
+        DiskQueue<Integer> queue = new DiskQueue(name, Integer.class, 1000, 30, 100, 10, true, 10, "./testqueue");
+        queue.getConfig().setRecycledPageFiles(10);
+
+        int value = 0;
+        for(int round=0; round<5; round++){
+            for(int i=0; i<100; i++) {
+                assertTrue(queue.add(value++));
+            }
+            assertDrainsInOrder(queue, round * 100, 100, 100, INTEGER_ID);
+        }
+
+        PageFilePool pool = queue.getConfig().getPageFilePool();
+        assertTrue("Expect files reused", pool.getReusedFiles() > 0);
+        assertTrue("Expect files created only in the first round", pool.getCreatedFiles() <= 10);
+        assertEquals(0, queue.getStatistics().getDiskFileSize());
+        for(File file : new File(queue.getConfig().getDiskCacheFileRoot()).listFiles()){
+            assertTrue("Expect no page file created per page: " + file.getName(), file.getName().endsWith(PageFilePool.FILE_SUFFIX));
+        }
+
+        queue.clear();
+        assertEquals(0, pool.getFreeFiles());
+    }
+
+    @Test
+    public void testAsyncPageIO_Expect_FIFO() throws Exception {
+        String name = "test";
+        DiskQueue<Integer> queue = new DiskQueue(name, Integer.class, 1000, 30, 100, 10, true, 10, "./testqueue");
+        queue.getConfig().setAsyncIoDepth(4);
+
+        for(int i=0; i<300; i++) {
+            assertTrue(queue.add(i));
+        }
+        assertTrue("Expect pages persisted", queue.getStatistics().getPersistedFiles() > 0);
+
+        assertDrainsInOrder(queue, 0, 300, 7, INTEGER_ID);
+
+        AsyncPageIO io = queue.getConfig().getAsyncPageIO();
+        assertTrue("Expect pages written asynchronously", io.getWrites() > 0);
+        assertTrue("Expect operations overlapped: " + io, io.getPeakOutstanding() > 1);
+        assertEquals(0, io.getOutstanding());
+        assertEquals(0, queue.getStatistics().getDiskFiles());
+    }
+
+    @Test
+    public void testDirectIo_Expect_FIFO() throws Exception {
+        for(int depth : new int[]{0, 4}) {
+            String name = "test";
+            DiskQueue<Integer> queue = new DiskQueue(name, Integer.class, 1000, 30, 100, 10, true, 10, "./testqueue");
+            queue.getConfig().setDirectIo(true);
+            queue.getConfig().setAsyncIoDepth(depth);
+
+            for (int i = 0; i < 300; i++) {
+                assertTrue(queue.add(i));
+            }
+            assertTrue("Expect pages persisted", queue.getStatistics().getPersistedFiles() > 0);
+
+            DirectPageIO direct = queue.getConfig().getDirectPageIO();
+            if (direct.isDirect()) {
+                for (File file : new File(queue.getConfig().getDiskCacheFileRoot()).listFiles()) {
+                    if (file.isFile()) {
+                        assertEquals("Expect page padded to block size: " + file.getName(), 0, file.length() % direct.getBlockSize());
+                    }
+                }
+            }
+
+            assertDrainsInOrder(queue, 0, 300, 7, INTEGER_ID);
+            assertEquals(0, queue.getStatistics().getDiskFiles());
+            queue.clear();
+        }
+    }
+
+    @Test
+    public void testCompressedTier_Expect_NoDiskFiles() throws Exception {
+        String name = "test";
+        DiskQueue<CacheExample> queue = new DiskQueue(name, CacheExample.class, 1000, 30, 100, 10, true, 10, "./testqueue");
+        queue.getConfig().setCompressedTierBytes(1024 * 1024);
+
+        for(int i=0; i<300; i++) {
+            assertTrue(queue.add(create1KSizeExample(i)));
+        }
+        assertEquals(0, queue.getStatistics().getPersistedFiles());
+        assertEquals(0, queue.getStatistics().getDiskSize());
+        assertTrue("Expect pages compressed", queue.getStatistics().getCompressedSize() > 0);
+
+        CompressedPageTier tier = queue.getConfig().getCompressedPageTier();
+        long pageBytes = queue.getStatistics().getCompressedSize() * 1024L;
+        assertTrue("Expect 1K objects compressed at least 5 times: " + tier, tier.getUsedBytes() * 5 < pageBytes);
+
+        assertDrainsInOrder(queue, 0, 300, 7, EXAMPLE_ID);
+        assertEquals(0, tier.getUsedBytes());
+        assertEquals(0, queue.getStatistics().getCompressedSize());
+        assertTrue(tier.getPromotedPages() > 0);
+    }
+
+    @Test
+    public void testCompressedTierFull_Expect_SpilledToDiskAndDemoted() throws Exception {
+        String name = "test";
+        DiskQueue<Integer> queue = new DiskQueue(name, Integer.class, 1000, 30, 100, 10, true, 10, "./testqueue");
+        queue.getConfig().setCompressedTierBytes(200);
+
+        for(int i=0; i<300; i++) {
+            assertTrue(queue.add(i));
+        }
+        assertTrue("Expect pages compressed", queue.getStatistics().getCompressedSize() > 0);
+        assertTrue("Expect pages on disk when the tier is full", queue.getStatistics().getDiskSize() > 0);
+
+        queue.spillColdPages(1000);
+        assertEquals(0, queue.getStatistics().getCompressedSize());
+        CompressedPageTier tier = queue.getConfig().getCompressedPageTier();
+        assertEquals(0, tier.getUsedBytes());
+        assertTrue(tier.getDemotedPages() > 0);
+
+        assertDrainsInOrder(queue, 0, 300, 7, INTEGER_ID);
+        assertEquals(0, queue.getStatistics().getDiskFiles());
+    }
+
+    @Test
+    public void testTargetPageBytes_Expect_CapacityFollowsObjectSize() throws Exception {
+        String name = "test";
+        DiskQueue<Integer> small = new DiskQueue(name, Integer.class, 10000, 3000, 100, 10, true, 10, "./testqueue");
+        small.getConfig().setTargetPageBytes(4 * 1024);
+        small.getConfig().setTargetPageMillis(0);
+
+        for(int i=0; i<5000; i++) {
+            assertTrue(small.add(i));
+        }
+        assertTrue("Expect larger pages for small objects: " + small.getConfig().getPageSizer(),
+                small.getStatistics().getPageCapacity() > 10);
+        assertTrue(small.getStatistics().getPageCapacity() <= 1000);
+
+        assertDrainsInOrder(small, 0, 5000, 77, INTEGER_ID);
+
+        DiskQueue<CacheExample> large = new DiskQueue(name, CacheExample.class, 1000, 300, 100, 100, true, 10, "./testqueue");
+        large.getConfig().setTargetPageBytes(8 * 1024);
+
+        for(int i=0; i<500; i++) {
+            assertTrue(large.add(create1KSizeExample(i)));
+        }
+        assertTrue("Expect smaller pages for large objects: " + large.getConfig().getPageSizer(),
+                large.getStatistics().getPageCapacity() < 100);
+
+        assertDrainsInOrder(large, 0, 500, 33, EXAMPLE_ID);
+    }
+
+    @Test
+    public void testTargetPageBytesRecycledFiles_Expect_PayloadMeasured() throws Exception {
+        String name = "test";
+        DiskQueue<String> queue = new DiskQueue(name, String.class, 1000, 30, 100, 10, true, 10, "./testqueue");
+        queue.getConfig().setRecycledPageFiles(10);
+        queue.getConfig().setTargetPageBytes(1024 * 1024);
+        queue.getConfig().setTargetPageMillis(0);
+
+        ArrayList<String> list = new ArrayList<>();
+        for(int i=0; i<300; i++) {
+            assertTrue(queue.add(repeat('x', 1000)));
+        }
+        queue.drainTo(list, 300);
+        assertEquals(300, list.size());
+
+        for(int round=0; round<5; round++){
+            for(int i=0; i<300; i++) {
+                assertTrue(queue.add("a"));
+            }
+            list.clear();
+            queue.drainTo(list, 300);
+            assertEquals(300, list.size());
+        }
+        assertTrue("Expect files reused", queue.getConfig().getPageFilePool().getReusedFiles() > 0);
+        assertTrue("Expect bytes left in recycled files not measured: " + queue.getConfig().getPageSizer(),
+                queue.getConfig().getPageSizer().getObjectBytes() < 10);
+
+        queue.clear();
+    }
+
     @Test
     public void testDiskFileSizeExceed_Expect_AddedFailed(){
         String name = "test";
@@ -222,6 +713,314 @@ public class DiskQueueTest {
         queue.clear();
     }
 
+    @Test
+    public void testDiskFileSizeExceed_Expect_RejectedBeforeOvershoot(){
+        String name = "test";
+        int total = 2000;
+        DiskQueue<CacheExample> queue = new DiskQueue(name, CacheExample.class, total, 60, 1, 20, true, 10, "./testqueue");
+
+        int added = 0;
+        for(int i=0; i<total; i++) {
+            if(!queue.offer(create1KSizeExample(i))){
+                break;
+            }
+            added++;
+        }
+
+        assertTrue("Expect rejected when the quota is reached", added < total);
+        assertTrue("Expect disk quota not overshot: " + queue.getStatistics().getDiskFileSize(),
+                queue.getStatistics().getDiskFileSize() <= queue.getConfig().getMaxDiskSize());
+        assertEquals(added, queue.size());
+
+        queue.clear();
+    }
+
+    @Test
+    public void testUsableSpaceLow_Expect_AddedFailed() throws Exception {
+        String name = "test";
+        DiskQueue<Integer> queue = new DiskQueue(name, Integer.class, 1000, 30, 100, 10, true, 10, "./testqueue");
+        assertTrue(queue.add(0));
+
+        queue.getConfig().setMinUsableSpace(Long.MAX_VALUE / 2);
+        queue.checkUsableSpace();
+        assertTrue(queue.getUsableSpace() < Long.MAX_VALUE);
+        assertTrue("Expect rejected when the usable space is low", !queue.add(1));
+
+        queue.getConfig().setMinUsableSpace(0);
+        queue.checkUsableSpace();
+        assertTrue(queue.add(1));
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void testAddAllQueueFull_Expect_AddedUntilFull() {
+        String name = "test";
+        DiskQueue<Integer> queue = new DiskQueue(name, Integer.class, 100, 30, 100, 10, true, 10, "./testqueue");
+
+        ArrayList<Integer> values = new ArrayList<>();
+        for(int i=0; i<150; i++){
+            values.add(i);
+        }
+        assertEquals(100, queue.addAll(values));
+        assertEquals(100, queue.size());
+        assertEquals(0, queue.addAll(Arrays.asList(1, 2)));
+    }
+
+    @Test
+    public void testProducers_Expect_AllAddedInOrderPerThread() throws Exception {
+        String name = "test";
+        final int threads = 8;
+        final int perThread = 1000;
+        final DiskQueue<Integer> queue = new DiskQueue(name, Integer.class, threads * perThread, 300, 100, 100, true, 10, "./testqueue");
+        queue.getConfig().setProducerBatchSize(64);
+
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        for(int t=0; t<threads; t++){
+            final int thread = t;
+            new Thread(){
+                public void run(){
+                    try {
+                        DiskQueue.Producer<Integer> producer = queue.producer();
+                        for(int i=0; i<perThread; i++){
+                            assertTrue(producer.add(thread * perThread + i));
+                        }
+                        producer.flush();
+                        assertEquals(0, producer.size());
+                    }
+                    catch (Throwable e){
+                        error.compareAndSet(null, e);
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertNull("Producer failed: " + error.get(), error.get());
+        assertEquals(threads * perThread, queue.size());
+
+        int[] next = new int[threads];
+        ArrayList<Integer> list = new ArrayList<>();
+        while (queue.size() > 0){
+            list.clear();
+            queue.drainTo(list, 100);
+            for(Integer value : list){
+                int thread = value / perThread;
+                assertEquals("Not FIFO per producer", thread * perThread + next[thread]++, value.intValue());
+            }
+        }
+        for(int count : next){
+            assertEquals(perThread, count);
+        }
+    }
+
+    @Test
+    public void testProducerLinger_Expect_AddedWithoutFlush() throws Exception {
+        String name = "test";
+        DiskQueue<Integer> queue = new DiskQueue(name, Integer.class, 1000, 300, 100, 100, true, 10, "./testqueue");
+        queue.getConfig().setProducerLingerMillis(10);
+
+        DiskQueue.Producer<Integer> producer = queue.producer();
+        assertTrue(producer.add(1));
+        assertTrue(producer.add(2));
+        assertEquals(2, producer.size());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queue.size() < 2 && System.currentTimeMillis() < deadline){
+            Thread.sleep(5);
+        }
+        assertEquals(2, queue.size());
+        assertEquals(0, producer.size());
+    }
+
+    @Test
+    public void testDrainToMinBatch_Expect_WokenByAdd() throws Exception {
+        String name = "test";
+        final DiskQueue<Integer> queue = new DiskQueue(name, Integer.class, 1000, 300, 100, 100, true, 10, "./testqueue");
+        final List<Integer> list = new ArrayList<>();
+        final long[] waited = new long[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        Thread consumer = new Thread(){
+            public void run(){
+                try {
+                    long start = System.currentTimeMillis();
+                    queue.drainTo(list, 50, 80, 10, TimeUnit.SECONDS);
+                    waited[0] = System.currentTimeMillis() - start;
+                }
+                catch (Throwable e){
+                    error.set(e);
+                }
+                finally {
+                    done.countDown();
+                }
+            }
+        };
+        consumer.start();
+
+        for (int i = 0; i < 49; i++) {
+            assertTrue(queue.add(i));
+        }
+        assertTrue(!done.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(0, list.size());
+
+        List<Integer> rest = new ArrayList<>();
+        for (int i = 49; i < 100; i++) {
+            rest.add(i);
+        }
+        assertEquals(51, queue.addAll(rest));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNull("Consumer failed: " + error.get(), error.get());
+        assertTrue("Woken up by add, waited " + waited[0] + " ms", waited[0] < 5000);
+        assertTrue(list.size() >= 50 && list.size() <= 80);
+        for (int i = 0; i < list.size(); i++) {
+            assertEquals(i, list.get(i).intValue());
+        }
+        queue.clear();
+    }
+
+    @Test
+    public void testDrainToMinBatchTimeout_Expect_PartialBatch() throws Exception {
+        String name = "test";
+        DiskQueue<Integer> queue = new DiskQueue(name, Integer.class, 1000, 300, 100, 100, true, 10, "./testqueue");
+        for (int i = 0; i < 3; i++) {
+            assertTrue(queue.add(i));
+        }
+
+        List<Integer> list = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        assertEquals(3, queue.drainTo(list, 10, 100, 100, TimeUnit.MILLISECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 90);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testDrainToMaxBytes_Expect_StoppedAtByteBudget() throws Exception {
+        String name = "test";
+        DiskQueue<String> queue = new DiskQueue(name, String.class, 1000, 300, 100, 100, true, 10, "./testqueue");
+        queue.setSizeEstimator(new ToLongFunction<String>() {
+            public long applyAsLong(String value) {
+                return value.length();
+            }
+        });
+        assertTrue(queue.add(repeat('a', 100)));
+        assertTrue(queue.add(repeat('b', 100)));
+        assertTrue(queue.add(repeat('c', 100)));
+        assertTrue(queue.add(repeat('d', 1000)));
+        assertTrue(queue.add(repeat('e', 10)));
+
+        List<String> list = new ArrayList<>();
+        assertEquals(2, queue.drainTo(list, 100, 250));
+        assertEquals(1, queue.drainTo(list, 100, 250));
+        assertEquals("Larger than maxBytes but first", 1, queue.drainTo(list, 100, 250));
+        assertEquals(1000, list.get(3).length());
+        assertEquals(1, queue.drainTo(list, 1, 250));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testDrainToMaxBytesFromDisk_Expect_AllDrainedInOrder() throws Exception {
+        String name = "test";
+        int total = 1000;
+        DiskQueue<String> queue = new DiskQueue(name, String.class, total, 300, 100, 100, true, 10, "./testqueue");
+        queue.getConfig().setLazyDecode(true);
+        for (int i = 0; i < total; i++) {
+            assertTrue(queue.add(String.format("%098d", i)));
+        }
+        assertTrue(queue.getStatistics().getDiskSize() > 0);
+
+        List<String> list = new ArrayList<>();
+        while (queue.size() > 0){
+            int drained = queue.drainTo(list, total, 1000);
+            assertTrue("Drained " + drained, drained >= 1 && drained <= 10);
+        }
+        assertEquals(total, list.size());
+        for (int i = 0; i < total; i++) {
+            assertEquals(i, Integer.parseInt(list.get(i)));
+        }
+    }
+
+    @Test
+    public void testDrainToMaxBytesWithoutEstimator_Expect_MeasuredByEncoding() throws Exception {
+        String name = "test";
+        DiskQueue<String> queue = new DiskQueue(name, String.class, 1000, 300, 100, 100, true, 10, "./testqueue");
+        assertTrue(queue.add(repeat('a', 97)));
+        assertTrue(queue.add(repeat('b', 97)));
+        assertTrue(queue.add(repeat('c', 97)));
+        assertTrue(queue.add(repeat('d', 997)));
+        assertEquals(0, queue.getStatistics().getDiskSize());
+
+        List<String> list = new ArrayList<>();
+        assertEquals("Expect 100 bytes per object", 2, queue.drainTo(list, 100, 250));
+        assertEquals(1, queue.drainTo(list, 100, 250));
+        assertEquals(1, queue.drainTo(list, 100, 250));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testDrainToMaxBytesRecycledFiles_Expect_PayloadAverage() throws Exception {
+        String name = "test";
+        DiskQueue<String> queue = new DiskQueue(name, String.class, 1000, 30, 100, 10, true, 10, "./testqueue");
+        queue.getConfig().setRecycledPageFiles(10);
+
+        List<String> list = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            assertTrue(queue.add(repeat('x', 1000)));
+        }
+        queue.drainTo(list, 300);
+        assertEquals(300, list.size());
+
+        for (int i = 0; i < 300; i++) {
+            assertTrue(queue.add("a"));
+        }
+        assertTrue(queue.getStatistics().getDiskSize() > 0);
+        while (queue.size() > 0){
+            int left = queue.size();
+            int drained = queue.drainTo(list, 300, 40);
+            assertTrue("Expect bytes left in recycled files not counted, drained " + drained, drained >= Math.min(left, 5));
+        }
+        assertEquals(600, list.size());
+        queue.clear();
+    }
+
+    private static final ToIntFunction<Integer> INTEGER_ID = new ToIntFunction<Integer>() {
+        public int applyAsInt(Integer value) {
+            return value;
+        }
+    };
+
+    private static final ToIntFunction<CacheExample> EXAMPLE_ID = new ToIntFunction<CacheExample>() {
+        public int applyAsInt(CacheExample example) {
+            return example.getId();
+        }
+    };
+
+    /**
+     * Drain the queue until empty, fetch objects at a time, the ids should be first to first + count - 1 in FIFO order.
+     */
+    private static <T> void assertDrainsInOrder(DiskQueue<T> queue, int first, int count, int fetch, ToIntFunction<? super T> id) throws Exception {
+        ArrayList<T> list = new ArrayList<>();
+        int next = first;
+        while (queue.size() > 0){
+            list.clear();
+            queue.drainTo(list, fetch);
+            assertTrue("Nothing drained, size=" + queue.size(), list.size() > 0);
+            for(T obj : list){
+                assertEquals("Not FIFO", next++, id.applyAsInt(obj));
+            }
+        }
+        assertEquals(first + count, next);
+    }
+
+    private static String repeat(char c, int length){
+        char[] chars = new char[length];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
     @Test
     public void testClear_ExpectNoFilesAndStatistisAreZero() {
         String name = "test";
@@ -0,0 +1,79 @@
+package com.onecmd.diskqueue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static junit.framework.Assert.fail;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ */
+public class HeapPressureMonitorTest {
+
+    @Test
+    public void testStartStop_Expect_Success(){
+        HeapPressureMonitor monitor = new HeapPressureMonitor(0.9, 0.7);
+        assertTrue("Expect heap pool supports usage threshold", monitor.start());
+        assertEquals(false, monitor.isUnderPressure());
+
+        monitor.stop();
+        try {
+            monitor.start();
+            fail("Expect throw exception when started after stopped.");
+        }
+        catch (IllegalStateException e){
+
+        }
+    }
+
+    @Test
+    public void testWrongThresholds_Expect_ThrowExceptions(){
+        try {
+            new HeapPressureMonitor(0.5, 0.7);
+            fail("Expect throw exception when low threshold is larger than high threshold.");
+        }
+        catch (IllegalArgumentException e){
+
+        }
+    }
+
+    @Test
+    public void testUnderPressure_Expect_ColdPagesSpilled() throws Exception {
+        DiskQueue<Integer> queue = new DiskQueue("test", Integer.class, 1000, 300, 100, 10, true, 10, "./testqueue");
+        HeapPressureMonitor monitor = new HeapPressureMonitor(0.8, 0.6);
+        monitor.register(queue);
+
+        int total = 100;
+        for(int i=0; i<total; i++){
+            assertTrue(queue.add(i));
+        }
+        assertEquals("No spilling without pressure", total, queue.getHeapSize());
+
+        monitor.checkUsage(85, 100);
+        assertTrue(monitor.isUnderPressure());
+        assertTrue(queue.isHeapPressure());
+
+        for(int i=total; i<total * 2; i++){
+            assertTrue(queue.add(i));
+        }
+        assertTrue("Expect at most 2 pages in heap under pressure", queue.getHeapSize() <= 3 * queue.getConfig().getPageSize());
+
+        monitor.checkUsage(70, 100);
+        assertTrue("Keep pressure between low and high threshold", queue.isHeapPressure());
+
+        monitor.checkUsage(50, 100);
+        assertEquals(false, monitor.isUnderPressure());
+        assertEquals(false, queue.isHeapPressure());
+
+        ArrayList<Integer> list = new ArrayList<>();
+        queue.drainTo(list, total * 2);
+        for(int i=0; i<total * 2; i++){
+            assertEquals("Not FIFO", i, list.get(i).intValue());
+        }
+
+        monitor.stop();
+        queue.clear();
+    }
+}
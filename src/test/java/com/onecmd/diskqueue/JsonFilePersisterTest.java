@@ -11,6 +11,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
 import static junit.framework.TestCase.fail;
 
 /**
@@ -50,6 +51,104 @@ public class JsonFilePersisterTest {
 
     }
 
+    @Test
+    public void testReadLazy_Expect_DecodedOneByOne() throws Exception {
+
+        ArrayList<CacheExample> list = new ArrayList<>();
+        for(int i=0; i< 30; i++){
+            CacheExample example = new CacheExample("name_" + i, "text, with [separators] {" + i + "}");
+            list.add(example);
+        }
+
+        File file = new File(getPath()+File.separator+"text.dat");
+
+        JsonFilePersister persister = new JsonFilePersister();
+        persister.write(file, list);
+
+        LazyPage<CacheExample> page = persister.readLazy(file, CacheExample.class);
+        assertEquals(list.size(), page.size());
+        assertEquals(file.length(), page.getByteSize());
+
+        ArrayList<CacheExample> list2 = new ArrayList<>();
+        assertEquals(10, page.drainTo(list2, 10));
+        assertEquals(list.size() - 10, page.size());
+        list2.addAll(page.decodeRemaining());
+        assertEquals(0, page.size());
+
+        for(int i=0; i<list.size(); i++){
+            assertTrue(list.get(i).equals(list2.get(i)));
+        }
+    }
+
+    @Test
+    public void testPayloadChanged_Expect_CorruptedPageException() throws Exception {
+
+        ArrayList<Integer> list = new ArrayList<>();
+        for(int i=0; i< 30; i++){
+            list.add(i);
+        }
+
+        File file = new File(getPath()+File.separator+"text.dat");
+
+        JsonFilePersister persister = new JsonFilePersister();
+        persister.write(file, list, 1000, 2000);
+
+        PageHeader header = PageHeader.read(file);
+        assertEquals(30, header.getCount());
+        assertEquals(file.length() - PageHeader.SIZE, header.getPayloadLength());
+        assertEquals(1000, header.getFirstEnqueueTime());
+        assertEquals(2000, header.getLastEnqueueTime());
+
+        byte[] data = FileUtils.readFileToByteArray(file);
+        data[PageHeader.SIZE + 1] = '9';
+        FileUtils.writeByteArrayToFile(file, data);
+
+        try {
+            persister.read(file, Integer.class);
+            fail("Expect throw exception.");
+        }
+        catch (CorruptedPageException e){
+
+        }
+
+        try {
+            persister.readLazy(file, Integer.class);
+            fail("Expect throw exception.");
+        }
+        catch (CorruptedPageException e){
+
+        }
+    }
+
+    @Test
+    public void testReadWithoutHeader_Expect_Success() throws Exception {
+
+        File file = new File(getPath()+File.separator+"text.dat");
+        FileUtils.write(file, "[1,2,3]", Charset.defaultCharset());
+
+        JsonFilePersister persister = new JsonFilePersister();
+        assertEquals(null, PageHeader.read(file));
+        assertEquals(3, persister.read(file, Integer.class).size());
+        assertEquals(3, persister.readLazy(file, Integer.class).size());
+    }
+
+    @Test
+    public void testReadLazyFailed_Expect_ThrowException() throws IOException {
+
+        File file = new File(getPath()+File.separator+"text.dat");
+        FileUtils.write(file, "[1, 2, ", Charset.defaultCharset());
+
+        JsonFilePersister persister = new JsonFilePersister();
+
+        try {
+            persister.readLazy(file, Integer.class);
+            fail("Expect throw exception.");
+        }
+        catch (Exception e){
+
+        }
+    }
+
     @Test
     public void testReadFailed_Expect_ThrowException() throws IOException {
 
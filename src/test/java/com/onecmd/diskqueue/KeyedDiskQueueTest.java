@@ -0,0 +1,216 @@
+package com.onecmd.diskqueue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static junit.framework.Assert.fail;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNotNull;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ */
+public class KeyedDiskQueueTest {
+
+    @Test
+    public void testNewConsumerJoined_Expect_LeasesRebalanced() throws Exception {
+        KeyedDiskQueue<Integer> queue = new KeyedDiskQueue<>("test", Integer.class, 4, 1000, 100, 100, 10, true, "./testqueue");
+
+        List<KeyedDiskQueue<Integer>.Lease> leases = new ArrayList<>();
+        KeyedDiskQueue<Integer>.Lease lease;
+        while (null != (lease = queue.acquire("a", 10000))){
+            leases.add(lease);
+        }
+        assertEquals(4, leases.size());
+
+        assertNull("All lanes leased", queue.acquire("b", 10000));
+
+        int renewed = 0;
+        for(KeyedDiskQueue<Integer>.Lease l : leases){
+            if(l.renew()){
+                renewed++;
+            }
+        }
+        assertEquals("Consumer a keeps its fair share", 2, renewed);
+
+        assertNotNull(queue.acquire("b", 10000));
+        assertNotNull(queue.acquire("b", 10000));
+        assertNull("Fair share reached", queue.acquire("b", 10000));
+
+        queue.leave("a");
+        assertNotNull(queue.acquire("b", 10000));
+    }
+
+    @Test
+    public void testLeaseExpired_Expect_DrainFailedAndLaneTakenOver() throws Exception {
+        KeyedDiskQueue<Integer> queue = new KeyedDiskQueue<>("test", Integer.class, 1, 1000, 100, 100, 10, true, "./testqueue");
+        queue.add("k", 1);
+
+        KeyedDiskQueue<Integer>.Lease lease = queue.acquire("a", 20);
+        assertNotNull(lease);
+        Thread.sleep(50);
+
+        try {
+            lease.drainTo(new ArrayList<Integer>(), 1);
+            fail("Expect exception when lease expired.");
+        }
+        catch (IllegalStateException e){
+
+        }
+
+        KeyedDiskQueue<Integer>.Lease other = queue.acquire("b", 10000);
+        assertNotNull(other);
+        ArrayList<Integer> list = new ArrayList<>();
+        assertEquals(1, other.drainTo(list, 10));
+        assertTrue(!lease.renew());
+    }
+
+    @Test
+    public void testConcurrentConsumers_Expect_OrderPerKey() throws Exception {
+        final KeyedDiskQueue<Integer> queue = new KeyedDiskQueue<>("test", Integer.class, 8, 100000, 200, 100, 20, true, "./testqueue");
+
+        final int keys = 50;
+        final int perKey = 100;
+        for(int i=0; i<perKey; i++){
+            for(int k=0; k<keys; k++){
+                assertTrue(queue.add("customer-" + k, k * perKey + i));
+            }
+        }
+        assertTrue(queue.getStatistics().getDiskSize() > 0);
+
+        final Map<Integer, List<Integer>> received = new ConcurrentHashMap<>();
+        final AtomicInteger total = new AtomicInteger(0);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for(int c=0; c<4; c++){
+            final String consumerId = "consumer-" + c;
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (total.get() < keys * perKey){
+                            KeyedDiskQueue<Integer>.Lease lease = queue.acquire(consumerId, 10000);
+                            if(null == lease){
+                                Thread.sleep(1);
+                                continue;
+                            }
+                            ArrayList<Integer> list = new ArrayList<>();
+                            lease.drainTo(list, 50);
+                            for(Integer value : list){
+                                List<Integer> values = received.get(value / perKey);
+                                if(null == values){
+                                    received.putIfAbsent(value / perKey, new CopyOnWriteArrayList<Integer>());
+                                    values = received.get(value / perKey);
+                                }
+                                values.add(value % perKey);
+                            }
+                            total.addAndGet(list.size());
+                            lease.release();
+                        }
+                    }
+                    catch (Throwable e){
+                        error.set(e);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for(Thread thread : threads){
+            thread.join(30000);
+        }
+
+        assertNull("Consumer failed: " + error.get(), error.get());
+        assertEquals(keys * perKey, total.get());
+        for(int k=0; k<keys; k++){
+            List<Integer> values = received.get(k);
+            assertEquals(perKey, values.size());
+            for(int i=0; i<perKey; i++){
+                assertEquals("Not FIFO per key", i, values.get(i).intValue());
+            }
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentAdds_Expect_CapacityNotExceeded() throws Exception {
+        final KeyedDiskQueue<Integer> queue = new KeyedDiskQueue<>("capacity", Integer.class, 8, 100, 10000, 100, 20, true, "./testqueue");
+
+        final AtomicInteger added = new AtomicInteger(0);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for(int t=0; t<8; t++){
+            final String key = "producer-" + t;
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch (InterruptedException e){
+                        return;
+                    }
+                    for(int i=0; i<1000; i++){
+                        if(queue.add(key, i)){
+                            added.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for(Thread thread : threads){
+            thread.join(30000);
+        }
+
+        assertEquals(100, added.get());
+        assertEquals(100, queue.size());
+    }
+
+    @Test
+    public void testConcurrentAddsWithoutDisk_Expect_HeapCapacityNotExceeded() throws Exception {
+        for(int round=0; round<200; round++){
+            final KeyedDiskQueue<Integer> queue = new KeyedDiskQueue<>("heap", Integer.class, 8, 10000, 20, 100, 20, false, "./testqueue");
+
+            final AtomicInteger added = new AtomicInteger(0);
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            for(int t=0; t<8; t++){
+                final String key = "producer-" + t;
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            start.await();
+                        }
+                        catch (InterruptedException e){
+                            return;
+                        }
+                        for(int i=0; i<40; i++){
+                            if(queue.add(key, i)){
+                                added.incrementAndGet();
+                            }
+                        }
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            start.countDown();
+            for(Thread thread : threads){
+                thread.join(30000);
+            }
+
+            assertTrue("Heap capacity exceeded: " + added.get(), added.get() <= 20);
+            assertEquals(added.get(), queue.getHeapSize());
+        }
+    }
+}
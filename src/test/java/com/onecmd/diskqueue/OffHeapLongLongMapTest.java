@@ -0,0 +1,57 @@
+package com.onecmd.diskqueue;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ */
+public class OffHeapLongLongMapTest {
+
+    @Test
+    public void testRandomOperations_Expect_SameAsHashMap() {
+        OffHeapLongLongMap map = new OffHeapLongLongMap(4);
+        HashMap<Long, Long> expected = new HashMap<>();
+        Random random = new Random(7);
+
+        for(int i=0; i<100000; i++){
+            long key = random.nextInt(5000) - 100;
+            long value = random.nextLong();
+            if(random.nextInt(3) == 0){
+                Long current = expected.get(key);
+                long toRemove = null != current && random.nextBoolean() ? current : value;
+                boolean removed = map.remove(key, toRemove);
+                assertEquals(null != current && current == toRemove, removed);
+                if(removed){
+                    expected.remove(key);
+                }
+            }
+            else {
+                Long prev = expected.put(key, value);
+                assertEquals(null == prev ? -1L : prev.longValue(), map.put(key, value, -1));
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        for(Map.Entry<Long, Long> entry : expected.entrySet()){
+            assertEquals(entry.getValue().longValue(), map.get(entry.getKey(), -1));
+        }
+        assertEquals(-1, map.get(100000, -1));
+        assertTrue(map.getOffHeapBytes() >= expected.size() * 16);
+
+        map.clear();
+        assertEquals(0, map.size());
+        assertEquals(-1, map.get(0, -1));
+    }
+
+    @Test
+    public void testMaxCapacity_Expect_TableFitsByteBuffer() {
+        assertEquals(1 << 26, OffHeapLongLongMap.MAX_CAPACITY);
+        assertTrue((long) OffHeapLongLongMap.MAX_CAPACITY * 16 <= Integer.MAX_VALUE);
+    }
+}
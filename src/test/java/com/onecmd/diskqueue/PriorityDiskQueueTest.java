@@ -0,0 +1,74 @@
+package com.onecmd.diskqueue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static junit.framework.Assert.fail;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ */
+public class PriorityDiskQueueTest {
+
+    @Test
+    public void testDrain_Expect_HighestPriorityFirst() throws Exception {
+        PriorityDiskQueue<Integer> queue = new PriorityDiskQueue<>("test", Integer.class, 3, 1000, 100, 100, 10, true, "./testqueue");
+
+        for(int i=0; i<30; i++){
+            assertTrue(queue.add(i, i % 3 == 0 ? 2 : i % 3 == 1 ? 1 : 0));
+        }
+        assertEquals(10, queue.size(0));
+
+        ArrayList<Integer> list = new ArrayList<>();
+        assertEquals(15, queue.drainTo(list, 15));
+        for(int i=0; i<10; i++){
+            assertEquals("Not FIFO in priority", i * 3 + 2, list.get(i).intValue());
+        }
+        for(int i=0; i<5; i++){
+            assertEquals("Not FIFO in priority", i * 3 + 1, list.get(10 + i).intValue());
+        }
+
+        assertEquals(15, queue.size());
+        queue.clear();
+        assertNull(queue.poll());
+
+        try {
+            queue.add(1, 3);
+            fail("Expect exception when priority out of range.");
+        }
+        catch (IllegalArgumentException e){
+
+        }
+    }
+
+    @Test
+    public void testHeapFull_Expect_LowestPrioritySpilled() throws Exception {
+        int heapCapacity = 60;
+        PriorityDiskQueue<Integer> queue = new PriorityDiskQueue<>("test", Integer.class, 2, 1000, heapCapacity, 100, 10, true, "./testqueue");
+
+        int high = 40;
+        for(int i=0; i<high; i++){
+            assertTrue(queue.add(i, 0));
+        }
+        int low = 200;
+        for(int i=0; i<low; i++){
+            assertTrue(queue.add(high + i, 1));
+        }
+
+        assertTrue("Heap should be bounded", queue.getHeapSize() <= heapCapacity);
+        assertEquals(low + high - queue.getHeapSize(), queue.getStatistics().getDiskSize());
+
+        ArrayList<Integer> list = new ArrayList<>();
+        assertEquals(high, queue.drainTo(list, high));
+        assertEquals("Highest priority should stay in heap", 0, queue.getStatistics().getLoadedFiles());
+
+        assertEquals(low, queue.drainTo(list, low));
+        for(int i=0; i<high + low; i++){
+            assertEquals("Not FIFO", i, list.get(i).intValue());
+        }
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,195 @@
+package com.onecmd.diskqueue;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import static junit.framework.Assert.fail;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ */
+public class RetainedDiskLogTest {
+
+    private String getRoot(){
+        File file = new File("./testqueue/retained");
+        FileUtils.deleteQuietly(file);
+        return file.getPath();
+    }
+
+    @Test
+    public void testTwoGroups_Expect_ReadIndependentlyAndPagesDeletedAfterBoth() throws Exception {
+        RetainedDiskLog<Integer> log = new RetainedDiskLog<>("test", Integer.class, 100, 10, getRoot());
+        log.subscribe("a");
+        log.subscribe("b");
+
+        int total = 55;
+        for(int i=0; i<total; i++){
+            assertTrue(log.append(i));
+        }
+        assertEquals(5, log.getStatistics().getPersistedFiles());
+
+        ArrayList<Integer> a = new ArrayList<>();
+        assertEquals(total, log.drainTo("a", a, 100));
+        for(int i=0; i<total; i++){
+            assertEquals("Not FIFO", i, a.get(i).intValue());
+        }
+        assertEquals(0, log.getLag("a"));
+        assertEquals("Pages kept for group b", 5, log.getStatistics().getDiskFiles());
+
+        ArrayList<Integer> b = new ArrayList<>();
+        assertEquals(25, log.drainTo("b", b, 25));
+        assertEquals(3, log.getStatistics().getDiskFiles());
+        assertEquals(total - 20, log.size());
+        assertEquals(30, log.getLag("b"));
+
+        log.unsubscribe("b");
+        assertEquals(0, log.getStatistics().getDiskFiles());
+        assertEquals(5, log.getStatistics().getTrimmedFiles());
+        assertEquals(0, log.getStatistics().getLoadedFiles());
+
+        try {
+            log.drainTo("b", b, 1);
+            fail("Expect exception when group not subscribed.");
+        }
+        catch (IllegalArgumentException e){
+
+        }
+        log.clear();
+    }
+
+    @Test
+    public void testReopen_Expect_PagesAndCursorsRecovered() throws Exception {
+        String root = getRoot();
+        RetainedDiskLog<Integer> log = new RetainedDiskLog<>("test", Integer.class, 100, 10, root);
+        log.subscribe("a");
+        for(int i=0; i<25; i++){
+            log.append(i);
+        }
+        assertTrue(log.flush());
+
+        ArrayList<Integer> list = new ArrayList<>();
+        assertEquals(12, log.drainTo("a", list, 12));
+
+        log = new RetainedDiskLog<>("test", Integer.class, 100, 10, root);
+        assertEquals(10, log.getStartOffset());
+        assertEquals(25, log.getEndOffset());
+        assertEquals(15, log.size());
+        assertEquals(10, log.subscribe("c"));
+
+        list.clear();
+        assertEquals(13, log.drainTo("a", list, 100));
+        assertEquals(12, list.get(0).intValue());
+
+        assertEquals("Pages kept for group c", 2, log.getStatistics().getDiskFiles());
+        log.append(25);
+        list.clear();
+        assertEquals(16, log.drainTo("c", list, 100));
+        assertEquals(25, list.get(15).intValue());
+
+        log.clear();
+    }
+
+    @Test
+    public void testLeaseNotAcked_Expect_DeliveredAgain() throws Exception {
+        RetainedDiskLog<Integer> log = new RetainedDiskLog<>("test", Integer.class, 100, 10, getRoot());
+        log.subscribe("a");
+        for(int i=0; i<30; i++){
+            log.append(i);
+        }
+
+        RetainedDiskLog.Delivery<Integer> first = log.lease("a", 10, 50);
+        RetainedDiskLog.Delivery<Integer> second = log.lease("a", 10, 60000);
+        assertEquals(0, first.getObjects().get(0).intValue());
+        assertEquals(10, second.getObjects().get(0).intValue());
+        assertEquals(20, log.getInFlightSize("a"));
+
+        assertTrue(log.ack(second));
+        assertEquals("Cursor moved before first acked", 0, log.getCursor("a"));
+        assertEquals(2, log.getStatistics().getDiskFiles());
+
+        Thread.sleep(100);
+        RetainedDiskLog.Delivery<Integer> again = log.lease("a", 5, 60000);
+        assertEquals(0, again.getFromOffset());
+        assertEquals(5, again.size());
+        assertEquals(0, again.getObjects().get(0).intValue());
+        assertEquals(5, log.getStatistics().getRedeliveredSize());
+        assertTrue("Delivered again, ack ignored", !log.ack(first));
+
+        RetainedDiskLog.Delivery<Integer> rest = log.lease("a", 100, 60000);
+        assertEquals(5, rest.getFromOffset());
+        assertEquals(10, rest.getToOffset());
+
+        assertTrue(log.ack(rest));
+        assertTrue(log.ack(again));
+        assertEquals(20, log.getCursor("a"));
+        assertEquals("Pages passed by cursor deleted", 0, log.getStatistics().getDiskFiles());
+
+        RetainedDiskLog.Delivery<Integer> last = log.lease("a", 100, 60000);
+        assertEquals(20, last.getFromOffset());
+        assertEquals(30, last.getToOffset());
+        assertEquals(null, log.lease("a", 100, 60000));
+
+        log.clear();
+    }
+
+    @Test
+    public void testReopenAfterAcks_Expect_OnlyUnpersistedDeliveredAgain() throws Exception {
+        String root = getRoot();
+        RetainedDiskLog<Integer> log = new RetainedDiskLog<>("test", Integer.class, 100, 100, root);
+        log.setAckBatchSize(1000);
+        log.subscribe("a");
+        for(int i=0; i<30; i++){
+            log.append(i);
+        }
+        assertTrue(log.flush());
+
+        RetainedDiskLog.Delivery<Integer> first = log.lease("a", 10, 60000);
+        RetainedDiskLog.Delivery<Integer> second = log.lease("a", 10, 60000);
+        RetainedDiskLog.Delivery<Integer> third = log.lease("a", 10, 60000);
+        assertTrue(log.ack(second));
+        assertTrue(log.flush());
+        assertTrue(log.ack(third));
+
+        log = new RetainedDiskLog<>("test", Integer.class, 100, 100, root);
+        assertEquals(0, log.getCursor("a"));
+
+        ArrayList<Integer> list = new ArrayList<>();
+        assertEquals(10, log.drainTo("a", list, 100));
+        assertEquals(0, list.get(0).intValue());
+        assertEquals(9, list.get(9).intValue());
+
+        list.clear();
+        assertEquals("Ack of third not persisted", 10, log.drainTo("a", list, 100));
+        assertEquals(20, list.get(0).intValue());
+        assertEquals(30, log.getCursor("a"));
+        assertEquals(0, log.getStatistics().getDiskFiles());
+
+        log.clear();
+    }
+
+    @Test
+    public void testDrainToBatchedAcks_Expect_CursorWrittenEveryBatch() throws Exception {
+        String root = getRoot();
+        RetainedDiskLog<Integer> log = new RetainedDiskLog<>("test", Integer.class, 100, 100, root);
+        log.setAckBatchSize(3);
+        log.subscribe("a");
+        for(int i=0; i<50; i++){
+            log.append(i);
+        }
+        assertTrue(log.flush());
+
+        ArrayList<Integer> list = new ArrayList<>();
+        assertEquals(5, log.drainTo("a", list, 5));
+        assertEquals(5, log.drainTo("a", list, 5));
+        assertEquals("Cursor not written before the batch is full", 0, new RetainedDiskLog<>("test", Integer.class, 100, 100, root).getCursor("a"));
+
+        assertEquals(5, log.drainTo("a", list, 5));
+        assertEquals(15, new RetainedDiskLog<>("test", Integer.class, 100, 100, root).getCursor("a"));
+
+        log.clear();
+    }
+}